@@ -23,15 +23,20 @@ package org.jdesktop.swingworker.demos.mandelbrot;
 import java.awt.Dimension;
 import java.awt.Rectangle;
 import java.awt.Toolkit;
-import java.awt.geom.Rectangle2D;
 import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
+import org.jdesktop.swingworker.demos.mandelbrot.model.ColorMapping;
 import org.jdesktop.swingworker.demos.mandelbrot.model.ConfigurationModel;
+import org.jdesktop.swingworker.demos.mandelbrot.model.EscapeTimeKernel;
 import org.jdesktop.swingworker.demos.mandelbrot.model.ExportImageSwingWorker;
 import org.jdesktop.swingworker.demos.mandelbrot.model.MandelbrotModel;
+import org.jdesktop.swingworker.demos.mandelbrot.model.NavigationHistory;
 import org.jdesktop.swingworker.demos.mandelbrot.view.config.ConfigurationDialog;
 import org.jdesktop.swingworker.demos.mandelbrot.view.progresspane.ProgressPane;
 import org.jdesktop.swingworker.demos.mandelbrot.view.progresspane.ProgressPaneCancelListener;
@@ -39,6 +44,10 @@ import org.jdesktop.swingworker.demos.mandelbrot.view.shiftpane.ShiftPane;
 import org.jdesktop.swingworker.demos.mandelbrot.view.zoompane.ZoomListener;
 import org.jdesktop.swingworker.demos.mandelbrot.view.zoompane.ZoomablePane;
 import org.jdesktop.swingworker.demos.mandelbrot.model.MandelbrotSwingWorker;
+import org.jdesktop.swingworker.demos.mandelbrot.model.RenderExecutor;
+import org.jdesktop.swingworker.demos.mandelbrot.model.TileCache;
+import org.jdesktop.swingworker.demos.mandelbrot.model.TileScheduler;
+import org.jdesktop.swingworker.demos.mandelbrot.model.Viewport;
 import org.jdesktop.swingworker.demos.mandelbrot.view.canvas.BufferedImagePane;
 import org.jdesktop.swingworker.demos.mandelbrot.view.infopane.InfoPane;
 import org.jdesktop.swingworker.demos.mandelbrot.view.shiftpane.ShiftListener;
@@ -61,6 +70,15 @@ public class MandelbrotViewController
    * TODO: Build a SwingWorkerHandler or something similar to a task manager.
    */
   private MandelbrotSwingWorker[] mandelbrotWorkers;
+  /**
+   * The scheduler that hands tiles to the SwingWorkers.
+   */
+  private TileScheduler tileScheduler;
+  /**
+   * The executor where the SwingWorkers run (instead of the shared
+   *  SwingWorker executor, which is limited to 10 threads).
+   */
+  private RenderExecutor renderExecutor;
   /**
    * A SwingWorker used to export images.
    */
@@ -98,6 +116,10 @@ public class MandelbrotViewController
    * A dialog used to allow the user to handle configuration parameters.
    */
   private ConfigurationDialog configurationDialog;
+  /**
+   * The viewports visited, so the user can go back and forward.
+   */
+  private NavigationHistory navigationHistory;
   
   //
   // Z-ORDER OF LAYERS:
@@ -151,6 +173,58 @@ public class MandelbrotViewController
    */
   private long startTimestamp = 0l;
   
+  /**
+   * The busy time of the render executor when we fire all SwingWorkers.
+   * This is used for timing purposes too.
+   */
+  private long startBusyTime = 0l;
+  
+  /**
+   * True if all the pixels of the image have been computed for the current
+   *  model (and false while computing or if computation was cancelled).
+   */
+  private boolean imageComplete;
+  
+  /**
+   * The areas of the image not computed for the current model (and the
+   *  rows mirroring them), so the rest of the pixels can be kept when
+   *  moving or zooming the image. Empty if the image is complete, and null
+   *  while computing (or if unknown).
+   */
+  private List<Rectangle> unfinishedAreas;
+  
+  /**
+   * True from the moment the SwingWorkers are fired until they're all done
+   *  (and the image has been finished, see finishImage()).
+   */
+  private boolean computing;
+  
+  /**
+   * The number of tiles found in the tile cache when we fire all
+   *  SwingWorkers.
+   */
+  private long startCacheHits;
+  
+  /**
+   * The number of colors the palette is rotated by "Shift colors".
+   */
+  private static final int COLOR_SHIFT = 32;
+  
+  /**
+   * The biggest number of colors per iteration set by "Denser colors".
+   */
+  private static final int MAX_COLOR_DENSITY = 8;
+  
+  /**
+   * The biggest zoom factor snapped to a pixel aligned zoom.
+   */
+  private static final int MAX_SNAP_FACTOR = 4;
+  
+  /**
+   * How far (relatively) a zoom factor may be from an integer to be snapped.
+   */
+  private static final double SNAP_TOLERANCE = 0.25;
+  
   /**
    * Creates new form MandelbrotViewController
    */
@@ -187,6 +261,10 @@ public class MandelbrotViewController
     pack();
     // BUILD A NEW MANDELBROT MODEL
     setModel( new MandelbrotModel() );
+    // AND AN EXECUTOR TO RENDER IT
+    renderExecutor = new RenderExecutor( model.getParallelizationRate() );
+    // AND A HISTORY OF THE VIEWPORTS VISITED
+    navigationHistory = NavigationHistory.createDefault();
     // CENTER ON SCREEN
     setLocationRelativeTo( null );
     // AN ICON
@@ -198,7 +276,7 @@ public class MandelbrotViewController
       
       
     // TODO: INVOKE THIS LATER ON SO AS TO ALLOW SWING TO PAINT THE GUI
-    updateModelToArea( model.getBounds() );
+    updateModelToArea( model.getViewport() );
   }
   
   // SETS THE CURRENT WORKING MODEL.
@@ -220,19 +298,21 @@ public class MandelbrotViewController
   private void setWorkingState( boolean isWorking )
   {
     boolean isZoomSelected = optZoomTool.isSelected();
+    // Images being computed are superseded by moving somewhere else, so
+    // navigation is only locked while exporting an image
+    boolean isLocked = isWorking && isExporting();
     
     // Disable the menu and the new diagram actions
     menuExport.setEnabled( ! isWorking );
-    cmdReset.setEnabled( ! isWorking );
+    cmdReset.setEnabled( ! isLocked );
+    cmdBack.setEnabled( ! isLocked && navigationHistory.canGoBack() );
+    cmdForward.setEnabled( ! isLocked && navigationHistory.canGoForward() );
     cmdExport.setEnabled( ! isWorking );
     menuConfig.setEnabled( ! isWorking );
     
-    // Make the progress pane visible if working
-    layeredPane.setLayer( progressPane, isWorking ? FOREGROUND_LAYER : BACKGROUND_LAYER );
-    
     // Make the appropriate tool visible by moving it between the FOREGROUND_LAYER,
     // the BACKGROUND_LAYER and the HIDDEN_LAYER
-    if ( isWorking )
+    if ( isLocked )
     {
       layeredPane.setLayer( zoomablePane, isZoomSelected ? BACKGROUND_LAYER : HIDDEN_LAYER );
       layeredPane.setLayer( shiftPane, isZoomSelected ? HIDDEN_LAYER : BACKGROUND_LAYER );
@@ -242,9 +322,18 @@ public class MandelbrotViewController
       layeredPane.setLayer( zoomablePane, isZoomSelected ? FOREGROUND_LAYER : HIDDEN_LAYER );
       layeredPane.setLayer( shiftPane, isZoomSelected ? HIDDEN_LAYER : FOREGROUND_LAYER );
     }
+    
+    // Make the progress pane visible if working, in front of the tool (it
+    // only takes the clicks on its Stop button, the rest go to the tool)
+    layeredPane.setLayer( progressPane, isWorking ? FOREGROUND_LAYER : BACKGROUND_LAYER, 0 );
     workingState = isWorking;
   }
   
+  private boolean isExporting()
+  {
+    return exportImageWorker != null && ! exportImageWorker.isDone();
+  }
+  
   /**
    * Updates the layers for the appropriate tool.
    */
@@ -266,6 +355,8 @@ public class MandelbrotViewController
         toolButtonGroup = new javax.swing.ButtonGroup();
         toolBar = new javax.swing.JToolBar();
         cmdReset = new javax.swing.JButton();
+        cmdBack = new javax.swing.JButton();
+        cmdForward = new javax.swing.JButton();
         optZoomTool = new javax.swing.JToggleButton();
         optHandTool = new javax.swing.JToggleButton();
         cmdExport = new javax.swing.JButton();
@@ -275,6 +366,7 @@ public class MandelbrotViewController
         jPanel1 = new javax.swing.JPanel();
         lblNThreads = new javax.swing.JLabel();
         lblResolution = new javax.swing.JLabel();
+        lblPrecision = new javax.swing.JLabel();
         lblLastTime = new javax.swing.JLabel();
         menuBar = new javax.swing.JMenuBar();
         menuFile = new javax.swing.JMenu();
@@ -283,6 +375,11 @@ public class MandelbrotViewController
         menuExit = new javax.swing.JMenuItem();
         menuConfig = new javax.swing.JMenu();
         mnuConfiguration = new javax.swing.JMenuItem();
+        menuColors = new javax.swing.JMenu();
+        mnuNextPalette = new javax.swing.JMenuItem();
+        mnuShiftColors = new javax.swing.JMenuItem();
+        mnuDenserColors = new javax.swing.JMenuItem();
+        mnuDefaultColors = new javax.swing.JMenuItem();
         menuHelp = new javax.swing.JMenu();
         menuAbout = new javax.swing.JMenuItem();
 
@@ -308,6 +405,30 @@ public class MandelbrotViewController
         });
         toolBar.add(cmdReset);
 
+        cmdBack.setText("Back");
+        cmdBack.setToolTipText("Go back to the previous image");
+        cmdBack.setBorderPainted(false);
+        cmdBack.setEnabled(false);
+        cmdBack.setMultiClickThreshhold(300L);
+        cmdBack.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                cmdBackActionPerformed(evt);
+            }
+        });
+        toolBar.add(cmdBack);
+
+        cmdForward.setText("Forward");
+        cmdForward.setToolTipText("Go forward to the next image");
+        cmdForward.setBorderPainted(false);
+        cmdForward.setEnabled(false);
+        cmdForward.setMultiClickThreshhold(300L);
+        cmdForward.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                cmdForwardActionPerformed(evt);
+            }
+        });
+        toolBar.add(cmdForward);
+
         toolButtonGroup.add(optZoomTool);
         optZoomTool.setIcon(new javax.swing.ImageIcon(getClass().getResource("/org/jdesktop/swingworker/demos/mandelbrot/view/icons/nuvola16/zoomarea.png"))); // NOI18N
         optZoomTool.setSelected(true);
@@ -376,6 +497,14 @@ public class MandelbrotViewController
         gridBagConstraints.insets = new java.awt.Insets(6, 0, 6, 0);
         jPanel1.add(lblResolution, gridBagConstraints);
 
+        lblPrecision.setHorizontalAlignment(javax.swing.SwingConstants.CENTER);
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.fill = java.awt.GridBagConstraints.BOTH;
+        gridBagConstraints.weightx = 5.0;
+        gridBagConstraints.weighty = 1.0;
+        gridBagConstraints.insets = new java.awt.Insets(6, 0, 6, 0);
+        jPanel1.add(lblPrecision, gridBagConstraints);
+
         lblLastTime.setHorizontalAlignment(javax.swing.SwingConstants.RIGHT);
         gridBagConstraints = new java.awt.GridBagConstraints();
         gridBagConstraints.fill = java.awt.GridBagConstraints.BOTH;
@@ -431,6 +560,42 @@ public class MandelbrotViewController
 
         menuBar.add(menuConfig);
 
+        menuColors.setText("Colors");
+
+        mnuNextPalette.setText("Change palette");
+        mnuNextPalette.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuNextPaletteActionPerformed(evt);
+            }
+        });
+        menuColors.add(mnuNextPalette);
+
+        mnuShiftColors.setText("Shift colors");
+        mnuShiftColors.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuShiftColorsActionPerformed(evt);
+            }
+        });
+        menuColors.add(mnuShiftColors);
+
+        mnuDenserColors.setText("Denser colors");
+        mnuDenserColors.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuDenserColorsActionPerformed(evt);
+            }
+        });
+        menuColors.add(mnuDenserColors);
+
+        mnuDefaultColors.setText("Default colors");
+        mnuDefaultColors.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuDefaultColorsActionPerformed(evt);
+            }
+        });
+        menuColors.add(mnuDefaultColors);
+
+        menuBar.add(menuColors);
+
         menuHelp.setText("Help");
 
         menuAbout.setIcon(new javax.swing.ImageIcon(getClass().getResource("/org/jdesktop/swingworker/demos/mandelbrot/view/icons/nuvola16/help.png"))); // NOI18N
@@ -463,15 +628,75 @@ public class MandelbrotViewController
     ConfigurationModel modified = getConfigurationDialog().getModel();
     if (  modified != null )
     {
-      model.setMaxIterations( modified.getDetailLevel() );
       model.setParallelizationRate( modified.getParallelizationRate() );
-      updateModelToArea( model.getBounds() );
+      // Pixels already computed are kept when changing the detail level,
+      // so only the ones that reached the previous level are computed
+      // (unless the image was not completely computed).
+      if ( imageComplete )
+      {
+        List<Rectangle> areas = model.changeMaxIterations( modified.getDetailLevel() );
+        imagePane.setImage( model.getImage() );
+        if ( ! areas.isEmpty() )
+        {
+          progressPane.setBusyMessage("Changing detail level, please wait...");
+          computeAreas( areas );
+        }
+      }
+      else
+      {
+        model.setMaxIterations( modified.getDetailLevel() );
+        updateModelToArea( model.getViewport() );
+      }
       lblNThreads.setText( model.getParallelizationRate() + " threads");
       lblResolution.setText( "Resolution: " + model.getMaxIterations() );
     }
     
   }//GEN-LAST:event_mnuConfigurationActionPerformed
   
+  private void mnuNextPaletteActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_mnuNextPaletteActionPerformed
+  {//GEN-HEADEREND:event_mnuNextPaletteActionPerformed
+    
+    updateColorMapping( model.getColorMapping().nextPalette() );
+    
+  }//GEN-LAST:event_mnuNextPaletteActionPerformed
+  
+  private void mnuShiftColorsActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_mnuShiftColorsActionPerformed
+  {//GEN-HEADEREND:event_mnuShiftColorsActionPerformed
+    
+    updateColorMapping( model.getColorMapping().shift( COLOR_SHIFT ) );
+    
+  }//GEN-LAST:event_mnuShiftColorsActionPerformed
+  
+  private void mnuDenserColorsActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_mnuDenserColorsActionPerformed
+  {//GEN-HEADEREND:event_mnuDenserColorsActionPerformed
+    
+    // 1, 2, 4, 8 and back to 1 color per iteration
+    int density = model.getColorMapping().getDensity();
+    updateColorMapping( model.getColorMapping().withDensity( density < MAX_COLOR_DENSITY ? 2*density : 1 ) );
+    
+  }//GEN-LAST:event_mnuDenserColorsActionPerformed
+  
+  private void mnuDefaultColorsActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_mnuDefaultColorsActionPerformed
+  {//GEN-HEADEREND:event_mnuDefaultColorsActionPerformed
+    
+    updateColorMapping( ColorMapping.DEFAULT );
+    
+  }//GEN-LAST:event_mnuDefaultColorsActionPerformed
+  
+  /**
+   * Changes the colors of the image, without computing anything again.
+   * The colors are computed in parallel on the render threads, unless
+   *  they're busy rendering.
+   */
+  private void updateColorMapping( ColorMapping aMapping )
+  {
+    ColorMapping previous = model.getColorMapping();
+    model.setColorMapping( aMapping );
+    if ( ! aMapping.hasSameIndexes( previous ) )
+      model.updateColors( workingState ? null : renderExecutor );
+    imagePane.setImage( model.getImage() );
+  }
+  
   private void menuAboutActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_menuAboutActionPerformed
   {//GEN-HEADEREND:event_menuAboutActionPerformed
     
@@ -515,15 +740,70 @@ public class MandelbrotViewController
   private void cmdResetActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_cmdResetActionPerformed
   {//GEN-HEADEREND:event_cmdResetActionPerformed
     
+    retireImage();
     MandelbrotModel newModel = new MandelbrotModel();
     newModel.setMaxIterations( model.getMaxIterations() );
     newModel.setParallelizationRate( model.getParallelizationRate() );
+    newModel.setKernelType( model.getKernelType() );
+    newModel.setAutomaticPrecision( model.isAutomaticPrecision() );
+    newModel.setRendererType( model.getRendererType() );
+    newModel.setTileProofs( model.isTileProofs() );
+    newModel.setSnapZoom( model.isSnapZoom() );
+    newModel.setColorMapping( model.getColorMapping() );
+    newModel.setTileCache( model.getTileCache() );
     setModel( newModel );
     progressPane.setBusyMessage("Returning to original size. Please wait...");
-    updateModelToArea( model.getBounds() );
+    updateModelToArea( model.getViewport() );
     
   }//GEN-LAST:event_cmdResetActionPerformed
   
+  private void cmdBackActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_cmdBackActionPerformed
+  {//GEN-HEADEREND:event_cmdBackActionPerformed
+    
+    if ( ! isExporting() && navigationHistory.canGoBack() )
+    {
+      retireImage();
+      showHistoryEntry( navigationHistory.back() );
+    }
+    
+  }//GEN-LAST:event_cmdBackActionPerformed
+  
+  private void cmdForwardActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_cmdForwardActionPerformed
+  {//GEN-HEADEREND:event_cmdForwardActionPerformed
+    
+    if ( ! isExporting() && navigationHistory.canGoForward() )
+    {
+      retireImage();
+      showHistoryEntry( navigationHistory.forward() );
+    }
+    
+  }//GEN-LAST:event_cmdForwardActionPerformed
+  
+  /**
+   * Shows the image of an entry of the history. Its snapshot is restored
+   *  if available, and if not the image is computed again (showing the
+   *  preview of the entry meanwhile).
+   */
+  private void showHistoryEntry( NavigationHistory.Entry anEntry )
+  {
+    showViewport( anEntry.getViewport() );
+    if ( navigationHistory.restore( anEntry, model ) )
+    {
+      imageComplete = true;
+      unfinishedAreas = Collections.emptyList();
+      imagePane.setImage( model.getImage() );
+      infoPane.setMessage( "Restored from history" );
+      setWorkingState( false );
+    }
+    else
+    {
+      imagePane.setImage( model.getImage() );
+      progressPane.setBusyMessage("Computing image again, please wait...");
+      computeAreas( Collections.singletonList(
+        new Rectangle( 0, 0, MandelbrotModel.XRESOLUTION, MandelbrotModel.YRESOLUTION ) ) );
+    }
+  }
+  
   private ConfigurationDialog getConfigurationDialog()
   {
     if ( configurationDialog == null )
@@ -538,9 +818,75 @@ public class MandelbrotViewController
   {
     if ( workingState )
     {
-      for ( MandelbrotSwingWorker worker : mandelbrotWorkers )
-        worker.cancel( true );
-      setWorkingState( false );
+      // Workers stop within a few milliseconds (even in the middle of a
+      // tile), and the tiles finished are cached once they're all done
+      if ( computing )
+        tileScheduler.cancel();
+      else
+        setWorkingState( false );
+    }
+  }
+  
+  /**
+   * Stops computing the current image (if being computed) so the model can
+   *  be changed right away: the SwingWorkers can't write in the image
+   *  anymore (see TileScheduler.retire()), and leave within a few
+   *  milliseconds. The pixels finished are kept, and their tiles are cached
+   *  once the SwingWorkers have left.
+   */
+  private void retireImage()
+  {
+    if ( ! computing )
+      return;
+    computing = false;
+    imageComplete = false;
+    MandelbrotModel.Frame frame = model.retireFrame( tileScheduler.retire() );
+    unfinishedAreas = frame.getUnfinishedAreas();
+    for( MandelbrotSwingWorker worker : mandelbrotWorkers )
+    {
+      // Their "state" events are not needed any more
+      worker.removePropertyChangeListener( this );
+    }
+    new RetiredFrame( mandelbrotWorkers, frame );
+  }
+  
+  /**
+   * Caches the tiles of an image retired (see retireImage()) once all its
+   *  SwingWorkers are done.
+   */
+  private static class RetiredFrame
+    implements PropertyChangeListener
+  {
+    private MandelbrotSwingWorker [] workers;
+    private MandelbrotModel.Frame frame;
+    
+    RetiredFrame( MandelbrotSwingWorker [] someWorkers, MandelbrotModel.Frame aFrame )
+    {
+      workers = someWorkers;
+      frame = aFrame;
+      for( MandelbrotSwingWorker worker : workers )
+        worker.addPropertyChangeListener( this );
+      // They may be done already
+      cacheTilesIfDone();
+    }
+    
+    public void propertyChange( java.beans.PropertyChangeEvent propertyChangeEvent )
+    {
+      if ( "state".equals( propertyChangeEvent.getPropertyName() ) )
+        cacheTilesIfDone();
+    }
+    
+    private void cacheTilesIfDone()
+    {
+      if ( frame == null )
+        return;
+      for( MandelbrotSwingWorker worker : workers )
+        if ( ! worker.isDone() )
+          return;
+      for( MandelbrotSwingWorker worker : workers )
+        worker.removePropertyChangeListener( this );
+      frame.cacheTiles();
+      frame = null;
     }
   }
   
@@ -549,29 +895,78 @@ public class MandelbrotViewController
    * Basically it sets the area to visualize, by invoking SwingWorkers
    *  appropriately to visualize the area.
    */
-  private void updateModelToArea( Rectangle2D.Double newRegion )
+  private void updateModelToArea( Viewport newViewport )
+  {
+    updateViewport( newViewport );
+    computeAreas( Collections.singletonList(
+      new Rectangle( 0, 0, MandelbrotModel.XRESOLUTION, MandelbrotModel.YRESOLUTION ) ) );
+  }
+  
+  /**
+   * Sets the viewport of the model, without computing anything, and adds it
+   *  to the history.
+   */
+  private void updateViewport( Viewport newViewport )
   {
-    model.setBounds( newRegion );
+    navigationHistory.visit( newViewport );
+    showViewport( newViewport );
+  }
+  
+  /**
+   * Sets the viewport of the model, without computing anything.
+   */
+  private void showViewport( Viewport newViewport )
+  {
+    model.setViewport( newViewport );
+    // Tell the user which numbers are used: deep zooms need more precision
+    // (and more time)
+    EscapeTimeKernel.Type kernelType = model.getKernelTypeInUse();
+    lblPrecision.setText( "Precision: "
+      + kernelType.getPrecision().name().toLowerCase().replace( '_', '-' )
+      + " (" + kernelType.name().toLowerCase().replace( '_', '-' )
+      + (model.isAutomaticPrecision() ? ")" : ", fixed)") );
+  }
+  
+  /**
+   * Invokes SwingWorkers to compute some areas of the image.
+   */
+  private void computeAreas( List<Rectangle> someAreas )
+  {
+    // Tiles computed before are copied from the cache
+    startCacheHits = model.getTileCache().getHits();
+    List<Rectangle> missingAreas = model.restoreCachedTiles( someAreas );
+    imagePane.setImage( model.getImage() );
+    
+    // Rows mirroring other rows are not computed, but copied (the ones
+    // mirroring rows about to be computed are published by the workers)
+    Rectangle computedArea = model.getComputedArea();
+    List<Rectangle> areas = new ArrayList<Rectangle>();
+    for( Rectangle area : missingAreas )
+    {
+      model.mirrorRows( area );
+      Rectangle computed = area.intersection( computedArea );
+      if ( ! computed.isEmpty() )
+        areas.add( computed );
+    }
+    
+    imageComplete = false;
+    unfinishedAreas = null;
+    computing = true;
     int nWorkers = model.getParallelizationRate();
     setWorkingState( true );
     mandelbrotWorkers = new MandelbrotSwingWorker[ nWorkers ];
     startTimestamp = System.currentTimeMillis();
+    startBusyTime = renderExecutor.getBusyTimeMillis();
+    renderExecutor.setThreadCount( nWorkers );
     
-    int workersPerRow = (int) Math.sqrt( nWorkers );
-    
-    int userSpaceDeltaX = MandelbrotModel.XRESOLUTION / workersPerRow;
-    int userSpaceDeltaY = MandelbrotModel.YRESOLUTION / workersPerRow;
-    int i=0;
-    for( int row=0; row<workersPerRow; row++)
+    // Cut the areas in small tiles. Workers pull (or steal) tiles until
+    // there's nothing left to compute.
+    tileScheduler = new TileScheduler( areas, nWorkers );
+    for( int i=0; i<nWorkers; i++ )
     {
-      for( int column = 0; column<workersPerRow; column++)
-      {
-        Rectangle workerUserArea = new Rectangle( row*userSpaceDeltaX, column*userSpaceDeltaY, userSpaceDeltaX, userSpaceDeltaY );
-        mandelbrotWorkers[i] = new MandelbrotSwingWorker( model, workerUserArea );
-        mandelbrotWorkers[i].addPropertyChangeListener( this );
-        mandelbrotWorkers[i].execute();
-        i++;
-      }
+      mandelbrotWorkers[i] = new MandelbrotSwingWorker( model, tileScheduler, i );
+      mandelbrotWorkers[i].addPropertyChangeListener( this );
+      renderExecutor.execute( mandelbrotWorkers[i] );
     }
   }
   
@@ -624,6 +1019,63 @@ public class MandelbrotViewController
     });
   }
   
+  /**
+   * Invoked once all the SwingWorkers are done (or have left because the
+   *  image has been cancelled): caches the tiles computed and tells the
+   *  user how long it took.
+   */
+  private void finishImage()
+  {
+    computing = false;
+    imageComplete = ! tileScheduler.isCancelled();
+    for( MandelbrotSwingWorker worker : mandelbrotWorkers )
+      imageComplete &= ! worker.isCancelled();
+    if ( imageComplete )
+    {
+      unfinishedAreas = Collections.emptyList();
+      model.cacheTiles();
+      navigationHistory.record( model );
+    }
+    else
+    {
+      unfinishedAreas = model.addMirrorRows( tileScheduler.getUnfinishedTiles() );
+      model.cacheTiles( unfinishedAreas );
+    }
+    TileCache tileCache = model.getTileCache();
+    long cached = tileCache.getHits() - startCacheHits;
+    setWorkingState( false );
+    double timeRequired = (System.currentTimeMillis()-startTimestamp)/1000.0;
+    long computed = tileScheduler.getComputedPixels();
+    long guessed = tileScheduler.getGuessedPixels();
+    int proven = tileScheduler.getProvenTiles();
+    long reused = tileScheduler.getReusedPixels();
+    long glitched = tileScheduler.getGlitchedPixels();
+    String details = "";
+    if ( guessed > 0 )
+      details += ", " + (100*guessed/(MandelbrotModel.XRESOLUTION*MandelbrotModel.YRESOLUTION)) + "% of the pixels guessed";
+    if ( proven > 0 )
+      details += ", " + proven + " tiles proven";
+    if ( cached > 0 )
+      details += ", " + cached + " tiles from cache";
+    if ( reused > 0 )
+      details += ", " + (100*reused/(MandelbrotModel.XRESOLUTION*MandelbrotModel.YRESOLUTION)) + "% of the pixels reused";
+    if ( glitched > 0 )
+      details += ", " + glitched + " pixels glitched";
+    String finished = imageComplete ? "Finished in " : "Cancelled after ";
+    if ( details.length() > 0 )
+      infoPane.setMessage( finished + timeRequired + " seconds (" + details.substring( 2 ) + ")");
+    else
+      infoPane.setMessage( finished + timeRequired + " seconds");
+    lblLastTime.setText( finished + timeRequired + " s.");
+    double busyTime = (renderExecutor.getBusyTimeMillis()-startBusyTime)/1000.0;
+    lblLastTime.setToolTipText( "Render threads busy for " + busyTime + " s, " +
+      computed + " pixels computed, " + guessed + " guessed, " + proven + " tiles proven, " + reused + " reused, " + glitched + " glitched. Tile cache: "
+      + tileCache.getHits() + " hits, " + tileCache.getMisses() + " misses, "
+      + tileCache.getTileCount() + " tiles, " + tileCache.getSize()/1024 + " KB."
+      + (tileCache.getStore() == null ? "" : " Tile store: " + tileCache.getStore().getHits()
+        + " tiles read, " + tileCache.getStore().getTileCount() + " tiles." ) );
+  }
+  
   public void propertyChange(java.beans.PropertyChangeEvent propertyChangeEvent)
   {
     // EVENTS FROM MANDELBROT SWING WORKERS
@@ -641,26 +1093,23 @@ public class MandelbrotViewController
             finishedWorkerCount ++;
           }
         }
-        if ( finishedWorkerCount == mandelbrotWorkers.length )
-        {
-          setWorkingState( false );
-          double timeRequired = (System.currentTimeMillis()-startTimestamp)/1000.0;
-          infoPane.setMessage( "Finished in " + timeRequired + " seconds");
-          lblLastTime.setText( "Finished in " + timeRequired + " s.");
-        }
+        if ( finishedWorkerCount == mandelbrotWorkers.length && computing )
+          finishImage();
         imagePane.setImage( model.getImage() );
       }
       // PROGRESS EVENTS
       else if ( "progress".equals( propertyChangeEvent.getPropertyName() ) )
       {
-        int overallProgress = 0;
-        for( MandelbrotSwingWorker worker : mandelbrotWorkers )
-        {
-          int workerProgress = worker.getProgress();
-          overallProgress += workerProgress;
-        }
-        overallProgress /= mandelbrotWorkers.length;
-        progressPane.setProgress( overallProgress );
+        progressPane.setProgress( tileScheduler.getProgress() );
+      }
+      // DIRTY EVENTS (workers have written some pixels of the image)
+      else if ( "dirty".equals( propertyChangeEvent.getPropertyName() ) )
+      {
+        imagePane.imageChanged( (Rectangle) propertyChangeEvent.getNewValue() );
+      }
+      // PASS EVENTS (a coarse image of the whole region is ready)
+      else if ( "pass".equals( propertyChangeEvent.getPropertyName() ) )
+      {
         imagePane.setImage( model.getImage() );
       }
     }
@@ -688,27 +1137,73 @@ public class MandelbrotViewController
   
   public void zoomRequested(org.jdesktop.swingworker.demos.mandelbrot.view.zoompane.ZoomEvent aZoomEvent)
   {
+    if ( isExporting() )
+      return;
+    // The image being computed (if any) is left as it is
+    retireImage();
     Rectangle userRectangle = aZoomEvent.getZoomRectangle();
     // userRectangle must be inside [0,0]x[MandelbrotModel.XRESOLUTION,MandelbrotModel.YRESOLUTION].
-    Rectangle2D.Double bounds = (Rectangle2D.Double) model.getBounds().clone() ;
-    
-    double xscale = bounds.width / MandelbrotModel.XRESOLUTION;
-    double yscale = bounds.height / MandelbrotModel.YRESOLUTION;
-    
-    double width = userRectangle.width * xscale;
-    double height = userRectangle.height * yscale;
-    
-    double xmin = (double) bounds.getMinX() + (double) (userRectangle.x*xscale);
-    double ymax = (double) bounds.getMaxY() - (double) ((MandelbrotModel.YRESOLUTION-userRectangle.y)*yscale);
-    
-    bounds.setRect( xmin, ymax, width, height );
-    
-    
+    // The viewport is kept in arbitrary precision, so we can zoom as
+    // deep as we want.
     progressPane.setBusyMessage("Zooming image, please wait...");
-    updateModelToArea( bounds );
+    // Zooms by 2x, 3x or 4x are snapped to the pixels of the image, so
+    // one pixel every factor^2 is already computed (unless it's in the
+    // areas of the image not computed).
+    int factor = getSnapFactor( userRectangle );
+    if ( factor > 1 && unfinishedAreas != null )
+    {
+      int column = getSnapOrigin( userRectangle.getCenterX(), MandelbrotModel.XRESOLUTION, factor );
+      int row = getSnapOrigin( userRectangle.getCenterY(), MandelbrotModel.YRESOLUTION, factor );
+      Viewport viewport = model.getViewport().zoom( column, row, factor );
+      updateViewport( viewport );
+      model.zoomImage( column, row, factor, unfinishedAreas );
+      imagePane.setImage( model.getImage() );
+      computeAreas( Collections.singletonList(
+        new Rectangle( 0, 0, MandelbrotModel.XRESOLUTION, MandelbrotModel.YRESOLUTION ) ) );
+    }
+    else
+    {
+      // The viewport is kept in arbitrary precision, so we can zoom as
+      // deep as we want.
+      updateModelToArea( model.getViewport().zoom( userRectangle ) );
+    }
     
   }
   
+  /**
+   * Returns the integer zoom factor a zoom rectangle can be snapped to.
+   * @param aRectangle the zoom rectangle.
+   * @return the zoom factor (from 2 to MAX_SNAP_FACTOR) or zero if the
+   *  rectangle should not be snapped.
+   */
+  private int getSnapFactor( Rectangle aRectangle )
+  {
+    if ( ! model.isSnapZoom() || aRectangle.width <= 0 || aRectangle.height <= 0 )
+      return 0;
+    double factor = Math.sqrt( (double) MandelbrotModel.XRESOLUTION / aRectangle.width
+      * MandelbrotModel.YRESOLUTION / aRectangle.height );
+    long snapped = Math.round( factor );
+    if ( snapped < 2 || snapped > MAX_SNAP_FACTOR
+      || Math.abs( factor - snapped ) > SNAP_TOLERANCE * snapped )
+      return 0;
+    return (int) snapped;
+  }
+  
+  /**
+   * Returns the first column (or row) of the image shown after snapping a
+   *  zoom.
+   * @param aCenter the center of the zoom rectangle.
+   * @param aResolution the width (or height) of the image.
+   * @param aFactor the zoom factor.
+   * @return the column (or row) at the left (or top) of the zoomed image.
+   */
+  private static int getSnapOrigin( double aCenter, int aResolution, int aFactor )
+  {
+    int origin = (int) Math.round( aCenter - aResolution / (2.0 * aFactor) );
+    int last = aResolution - (aResolution + aFactor - 1) / aFactor;
+    return Math.max( 0, Math.min( origin, last ) );
+  }
+  
   public void progressPaneCancelPressed(org.jdesktop.swingworker.demos.mandelbrot.view.progresspane.ProgressPaneCancelEvent anEvent)
   {
     cancel();
@@ -716,30 +1211,42 @@ public class MandelbrotViewController
   
   public void componentShifted(org.jdesktop.swingworker.demos.mandelbrot.view.shiftpane.ShiftEvent aShiftEvent)
   {
-    Rectangle2D.Double bounds = (Rectangle2D.Double) model.getBounds().clone() ;
-    
-    double width = model.getBounds().getWidth();
-    double height = model.getBounds().getHeight();
-    
-    double xscale = width / MandelbrotModel.XRESOLUTION;
-    double yscale = height / MandelbrotModel.YRESOLUTION;
-    
-    double dx = aShiftEvent.getShift().x * xscale;
-    double dy = aShiftEvent.getShift().y * yscale;
-    
-    double xmin = bounds.getMinX() - dx;
-    double ymax = bounds.getMinY() - dy;
-    
-    bounds.setRect( xmin, ymax, width, height );
+    if ( isExporting() )
+      return;
+    // The image being computed (if any) is left as it is
+    retireImage();
+    int dx = aShiftEvent.getShift().x;
+    int dy = aShiftEvent.getShift().y;
+    Viewport viewport = model.getViewport().shift( dx, dy );
     
     progressPane.setBusyMessage("Shifting image, please wait...");
-    updateModelToArea( bounds );
+    // Pixels still in the image are moved, so only the ones exposed need
+    // to be computed (and the ones not computed before, wherever they are
+    // now).
+    if ( unfinishedAreas != null )
+    {
+      List<Rectangle> exposed = model.shiftImage( dx, dy );
+      Rectangle image = new Rectangle( 0, 0, MandelbrotModel.XRESOLUTION, MandelbrotModel.YRESOLUTION );
+      for( Rectangle area : unfinishedAreas )
+      {
+        Rectangle moved = image.intersection( new Rectangle( area.x + dx, area.y + dy, area.width, area.height ) );
+        if ( ! moved.isEmpty() )
+          exposed.add( moved );
+      }
+      updateViewport( viewport );
+      imagePane.setImage( model.getImage() );
+      computeAreas( exposed );
+    }
+    else
+      updateModelToArea( viewport );
     
   }
   
   
     // Variables declaration - do not modify//GEN-BEGIN:variables
+    private javax.swing.JButton cmdBack;
     private javax.swing.JButton cmdExport;
+    private javax.swing.JButton cmdForward;
     private javax.swing.JButton cmdReset;
     private javax.swing.JFileChooser exportFileChooser;
     private javax.swing.JPanel jPanel1;
@@ -747,15 +1254,21 @@ public class MandelbrotViewController
     private javax.swing.JLayeredPane layeredPane;
     private javax.swing.JLabel lblLastTime;
     private javax.swing.JLabel lblNThreads;
+    private javax.swing.JLabel lblPrecision;
     private javax.swing.JLabel lblResolution;
     private javax.swing.JMenuItem menuAbout;
     private javax.swing.JMenuBar menuBar;
+    private javax.swing.JMenu menuColors;
     private javax.swing.JMenu menuConfig;
     private javax.swing.JMenuItem menuExit;
     private javax.swing.JMenuItem menuExport;
     private javax.swing.JMenu menuFile;
     private javax.swing.JMenu menuHelp;
     private javax.swing.JMenuItem mnuConfiguration;
+    private javax.swing.JMenuItem mnuDefaultColors;
+    private javax.swing.JMenuItem mnuDenserColors;
+    private javax.swing.JMenuItem mnuNextPalette;
+    private javax.swing.JMenuItem mnuShiftColors;
     private javax.swing.JToggleButton optHandTool;
     private javax.swing.JToggleButton optZoomTool;
     private javax.swing.JPanel pnlCanvasContainer;
@@ -0,0 +1,197 @@
+/*
+ * $Id $
+ *
+ * Copyright 2005 Sun Microsystems
+ *
+ * Initially developed by Antonio Vieiro (vieiro@dev.java.net).
+ *
+ * This software is released under the Common Development and Distribution
+ *  License, version 1.0. See http://www.opensource.org/licenses/cddl1.php
+ *  for details.
+ *
+ * This software is distributed on an "AS IS" basis, without warranty of any
+ *  kind, either express or implied.
+ *
+ * All this stuff basically means that you can use this source code in your
+ *  software, either proprietary or not. See
+ *  http://www.opensolaris.org/os/about/faq/licensing_faq/ for interesting
+ *  information about the CDDL license.
+ *
+ */
+package org.jdesktop.swingworker.demos.mandelbrot.model;
+import java.awt.image.IndexColorModel;
+
+/**
+ * ColorMapping turns the number of iterations of a pixel into a color.
+ * The image holds an index (from 0 to 255) for each pixel, and the palette
+ *  turns indexes into colors. Changing the palette just changes the color
+ *  model of the image, and changing the offset or the density of the
+ *  colors recomputes the indexes from the number of iterations kept by the
+ *  model, so no point is computed again.
+ * Points in the set (and points that diverge right away) get index 0,
+ *  which is black in all palettes.
+ * ColorMappings are immutable.
+ * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
+ * @version $Revision: $
+ */
+public class ColorMapping
+{
+  /**
+   * The palettes available.
+   */
+  public enum Palette
+  {
+    /**
+     * From black to red, yellow and white.
+     */
+    NICE,
+    /**
+     * From black to blue, cyan and white.
+     */
+    OCEAN,
+    /**
+     * From black to white.
+     */
+    GRAY;
+
+    private IndexColorModel colorModel;
+
+    /**
+     * Returns the color model of this palette.
+     * @return an IndexColorModel with 256 colors.
+     */
+    public synchronized IndexColorModel getColorModel()
+    {
+      if ( colorModel == null )
+      {
+        switch( this )
+        {
+          case NICE:
+            colorModel = NiceIndexColorModel.getInstance();
+            break;
+          case OCEAN:
+            // The nice colors, with red and blue swapped
+            colorModel = createColorModel( NiceIndexColorModel.getInstance(), 2, 1, 0 );
+            break;
+          default:
+            byte [] gray = new byte[ 256 ];
+            for( int i=0; i<256; i++ )
+              gray[i] = (byte) i;
+            colorModel = new IndexColorModel( 8, 256, gray, gray, gray );
+        }
+      }
+      return colorModel;
+    }
+
+    private static IndexColorModel createColorModel( IndexColorModel aColorModel,
+      int aRed, int aGreen, int aBlue )
+    {
+      byte [][] components = new byte[ 3 ][ 256 ];
+      aColorModel.getReds( components[0] );
+      aColorModel.getGreens( components[1] );
+      aColorModel.getBlues( components[2] );
+      return new IndexColorModel( 8, 256, components[ aRed ], components[ aGreen ], components[ aBlue ] );
+    }
+
+    /**
+     * Returns the palette after this one.
+     * @return the next palette, or the first one after the last one.
+     */
+    public Palette next()
+    {
+      return values()[ (ordinal() + 1) % values().length ];
+    }
+  }
+
+  /**
+   * The default mapping, with the nice colors.
+   */
+  public static final ColorMapping DEFAULT = new ColorMapping( Palette.NICE, 0, 1 );
+
+  private final Palette palette;
+  private final int offset;
+  private final int density;
+
+  /**
+   * Creates a new instance of ColorMapping.
+   * @param aPalette the palette.
+   * @param anOffset the number of colors the palette is rotated.
+   * @param aDensity the number of colors between consecutive numbers of
+   *  iterations.
+   */
+  public ColorMapping( Palette aPalette, int anOffset, int aDensity )
+  {
+    palette = aPalette;
+    offset = anOffset & 0xFF;
+    density = Math.max( 1, aDensity );
+  }
+
+  /**
+   * Returns the index of the color of a pixel.
+   * @param nIterations the number of iterations of the pixel.
+   * @param maxIterations the maximum number of iterations.
+   * @return the index of the color, from 0 to 255.
+   */
+  public int getColorIndex( int nIterations, int maxIterations )
+  {
+    int n = nIterations % maxIterations;
+    return n == 0 ? 0 : (n*density + offset) & 0xFF;
+  }
+
+  /**
+   * Returns a new mapping with the next palette.
+   * @return a new mapping.
+   */
+  public ColorMapping nextPalette()
+  {
+    return new ColorMapping( palette.next(), offset, density );
+  }
+
+  /**
+   * Returns a new mapping with the palette rotated some colors.
+   * @param aCount the number of colors to rotate the palette.
+   * @return a new mapping.
+   */
+  public ColorMapping shift( int aCount )
+  {
+    return new ColorMapping( palette, offset + aCount, density );
+  }
+
+  /**
+   * Returns a new mapping with a different density of colors.
+   * @param aDensity the number of colors between consecutive numbers of
+   *  iterations.
+   * @return a new mapping.
+   */
+  public ColorMapping withDensity( int aDensity )
+  {
+    return new ColorMapping( palette, offset, aDensity );
+  }
+
+  /**
+   * Tells if the index of the colors of two mappings are the same (their
+   *  palettes may be different).
+   * @param aMapping another mapping.
+   * @return true if both mappings give the same index to every pixel.
+   */
+  public boolean hasSameIndexes( ColorMapping aMapping )
+  {
+    return offset == aMapping.offset && density == aMapping.density;
+  }
+
+  public Palette getPalette()
+  {
+    return palette;
+  }
+
+  public int getOffset()
+  {
+    return offset;
+  }
+
+  public int getDensity()
+  {
+    return density;
+  }
+
+}
@@ -22,11 +22,14 @@ package org.jdesktop.swingworker.demos.mandelbrot.model;
 
 /**
  * ColorsForAMandelbrotColumn represents a set of columns on a Mandelbrot
- *  image.
+ *  image. Colors (and periods) are stored row after row.
  * Objects of this class are used to transfer partial information between
  *  a worker thread and the Swing thread. The worker thread computes pieces of
  *  the image that are sent (as instances of ColorsForAMandelbrotColumn) to
  *  the Swing thread, where the image is updated.
+ * Workers write the colors of the columns in the image themselves, so
+ *  these objects just tell which columns have to be repainted. Workers
+ *  recycle them once the Swing thread is done with them.
  * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
  * @version $Revision: $
  */
@@ -112,5 +115,104 @@ public class ColorsForAMandelbrotColumn
 
     this.rowIndex = rowIndex;
   }
+
+  /**
+   * Holds value of property periods.
+   */
+  private int[] periods;
+
+  /**
+   * Getter for property periods.
+   * @return Value of property periods (the period of the orbit of each
+   *  point, or zero if unknown).
+   */
+  public int[] getPeriods()
+  {
+    return this.periods;
+  }
+
+  /**
+   * Setter for property periods.
+   * @param periods New value of property periods.
+   */
+  public void setPeriods(int[] periods)
+  {
+
+    this.periods = periods;
+  }
+
+  /**
+   * Holds value of property width.
+   */
+  private int width = 1;
+
+  /**
+   * Getter for property width.
+   * @return Value of property width (the number of columns).
+   */
+  public int getWidth()
+  {
+    return this.width;
+  }
+
+  /**
+   * Setter for property width.
+   * @param width New value of property width.
+   */
+  public void setWidth(int width)
+  {
+
+    this.width = width;
+  }
+
+  /**
+   * Holds value of property colorVersion.
+   */
+  private int colorVersion;
+
+  /**
+   * Getter for property colorVersion.
+   * @return Value of property colorVersion (the version of the color
+   *  mapping of the model the colors of the columns were written with, see
+   *  MandelbrotModel.getColorVersion()).
+   */
+  public int getColorVersion()
+  {
+    return this.colorVersion;
+  }
+
+  /**
+   * Setter for property colorVersion.
+   * @param colorVersion New value of property colorVersion.
+   */
+  public void setColorVersion(int colorVersion)
+  {
+
+    this.colorVersion = colorVersion;
+  }
+
+  /**
+   * Holds value of property height.
+   */
+  private int height = 1;
+
+  /**
+   * Getter for property height.
+   * @return Value of property height (the number of rows).
+   */
+  public int getHeight()
+  {
+    return this.height;
+  }
+
+  /**
+   * Setter for property height.
+   * @param height New value of property height.
+   */
+  public void setHeight(int height)
+  {
+
+    this.height = height;
+  }
   
 }
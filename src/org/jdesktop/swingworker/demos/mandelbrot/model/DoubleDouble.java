@@ -0,0 +1,87 @@
+/*
+ * $Id $
+ *
+ * Copyright 2005 Sun Microsystems
+ *
+ * Initially developed by Antonio Vieiro (vieiro@dev.java.net).
+ *
+ * This software is released under the Common Development and Distribution
+ *  License, version 1.0. See http://www.opensource.org/licenses/cddl1.php
+ *  for details.
+ *
+ * This software is distributed on an "AS IS" basis, without warranty of any
+ *  kind, either express or implied.
+ *
+ * All this stuff basically means that you can use this source code in your
+ *  software, either proprietary or not. See
+ *  http://www.opensolaris.org/os/about/faq/licensing_faq/ for interesting
+ *  information about the CDDL license.
+ *
+ */
+package org.jdesktop.swingworker.demos.mandelbrot.model;
+import java.math.BigDecimal;
+
+/**
+ * DoubleDouble is a number held as the (unevaluated) sum of two doubles,
+ *  the second one holding the bits that don't fit in the first one. This
+ *  gives about 106 bits (32 decimal digits) of precision, using plain
+ *  double operations only.
+ * DoubleDoubles are immutable. The arithmetic itself is written inline in
+ *  DoubleDoubleEscapeTimeKernel, so it runs in registers.
+ * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
+ * @version $Revision: $
+ */
+public class DoubleDouble
+{
+  /**
+   * Multiplying by this constant splits a double in two halves of 26 bits
+   *  each (Dekker), whose products are exact.
+   */
+  public static final double SPLITTER = 134217729.0; // 2^27 + 1
+
+  private final double hi;
+  private final double lo;
+
+  /**
+   * Creates a new instance of DoubleDouble.
+   * @param aHi the most significant part.
+   * @param aLo the least significant part.
+   */
+  public DoubleDouble( double aHi, double aLo )
+  {
+    hi = aHi;
+    lo = aLo;
+  }
+
+  /**
+   * Returns the double-double nearest to a number.
+   * @param aValue the number.
+   * @return the nearest double-double.
+   */
+  public static DoubleDouble valueOf( BigDecimal aValue )
+  {
+    double hi = aValue.doubleValue();
+    double lo = aValue.subtract( new BigDecimal( hi ) ).doubleValue();
+    return new DoubleDouble( hi, lo );
+  }
+
+  public double getHi()
+  {
+    return hi;
+  }
+
+  public double getLo()
+  {
+    return lo;
+  }
+
+  /**
+   * Returns the value of this number, exactly.
+   * @return the sum of both parts.
+   */
+  public BigDecimal toBigDecimal()
+  {
+    return new BigDecimal( hi ).add( new BigDecimal( lo ) );
+  }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * $Id $
+ *
+ * Copyright 2005 Sun Microsystems
+ *
+ * Initially developed by Antonio Vieiro (vieiro@dev.java.net).
+ *
+ * This software is released under the Common Development and Distribution
+ *  License, version 1.0. See http://www.opensource.org/licenses/cddl1.php
+ *  for details.
+ *
+ * This software is distributed on an "AS IS" basis, without warranty of any
+ *  kind, either express or implied.
+ *
+ * All this stuff basically means that you can use this source code in your
+ *  software, either proprietary or not. See
+ *  http://www.opensolaris.org/os/about/faq/licensing_faq/ for interesting
+ *  information about the CDDL license.
+ *
+ */
+package org.jdesktop.swingworker.demos.mandelbrot.model;
+
+/**
+ * DoubleDoubleEscapeTimeKernel iterates one point at a time using
+ *  double-double numbers (see DoubleDouble), so it can compute images
+ *  whose pixels are down to about 1e-27 wide (deeper than that, rounding
+ *  errors add up along long orbits).
+ * Points are received as their distance to the center of the viewport,
+ *  and added to the (double-double) center of the viewport.
+ * Products are made exact by splitting doubles in halves (Dekker), so a
+ *  double-double iteration costs about five double iterations.
+ * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
+ * @version $Revision: $
+ */
+class DoubleDoubleEscapeTimeKernel
+  extends EscapeTimeKernel
+{
+  private static final double SPLITTER = DoubleDouble.SPLITTER;
+
+  private double centerXHi;
+  private double centerXLo;
+  private double centerYHi;
+  private double centerYLo;
+  /**
+   * The period of the last point computed, or zero if unknown.
+   */
+  private int lastPeriod;
+
+  @Override
+  public void setUp( MandelbrotModel aModel )
+  {
+    super.setUp( aModel );
+    Viewport viewport = aModel.getViewport();
+    centerXHi = viewport.getCenterX2().getHi();
+    centerXLo = viewport.getCenterX2().getLo();
+    centerYHi = viewport.getCenterY2().getHi();
+    centerYLo = viewport.getCenterY2().getLo();
+  }
+
+  @Override
+  public boolean isRelative()
+  {
+    return true;
+  }
+
+  @Override
+  public void compute( double[] a, double[] b, int count,
+    int[] iterations, int[] periods )
+  {
+    for( int i=0; i<count; i++ )
+    {
+      // c = center + distance
+      double s = centerXHi + a[i];
+      double v = s - centerXHi;
+      double e = (centerXHi - (s - v)) + (a[i] - v) + centerXLo;
+      double ah = s + e;
+      double al = e - (ah - s);
+      s = centerYHi + b[i];
+      v = s - centerYHi;
+      e = (centerYHi - (s - v)) + (b[i] - v) + centerYLo;
+      double bh = s + e;
+      double bl = e - (bh - s);
+
+      iterations[i] = getIterationsForPoint( ah, al, bh, bl );
+      periods[i] = lastPeriod;
+    }
+  }
+
+  /**
+   * Given a point on the complex plane this method computes the
+   *  number of iterations needed for divergence, just like
+   *  ScalarEscapeTimeKernel does, but in double-double.
+   * @param ah the real part of the point (most significant part).
+   * @param al the real part of the point (least significant part).
+   * @param bh the imaginary part of the point (most significant part).
+   * @param bl the imaginary part of the point (least significant part).
+   * @return the number of iterations needed for divergence.
+   */
+  private int getIterationsForPoint( double ah, double al, double bh, double bl )
+  {
+    lastPeriod = 0;
+    double xh = ah, xl = al;
+    double yh = bh, yl = bl;
+    double rho2 = 0.0;
+    int nIterations;
+
+    // Brent's cycle detection, see ScalarEscapeTimeKernel
+    double savedXh = xh, savedXl = xl;
+    double savedYh = yh, savedYl = yl;
+    int steps = 0;
+    int stepLimit = 2;
+
+    // The scheduler is looked at every now and then, see ScalarEscapeTimeKernel
+    int limit = 0;
+
+    for( nIterations=0;
+    rho2 < 4.0;
+    nIterations ++ )
+    {
+      if ( nIterations == limit )
+      {
+        if ( nIterations >= maxIterations )
+          break;
+        checkCancelled();
+        limit = Math.min( maxIterations, nIterations + CANCELLATION_INTERVAL );
+      }
+      // Split x and y in halves, so products of halves are exact
+      double t = SPLITTER * xh;
+      double xhh = t - (t - xh);
+      double xhl = xh - xhh;
+      t = SPLITTER * yh;
+      double yhh = t - (t - yh);
+      double yhl = yh - yhh;
+
+      // x^2
+      double p = xh * xh;
+      double e = ((xhh*xhh - p) + 2*xhh*xhl) + xhl*xhl + 2*xh*xl;
+      double xxh = p + e;
+      double xxl = e - (xxh - p);
+      // y^2
+      p = yh * yh;
+      e = ((yhh*yhh - p) + 2*yhh*yhl) + yhl*yhl + 2*yh*yl;
+      double yyh = p + e;
+      double yyl = e - (yyh - p);
+      // x*y
+      p = xh * yh;
+      e = ((xhh*yhh - p) + xhh*yhl + xhl*yhh) + xhl*yhl + (xh*yl + xl*yh);
+      double xyh = p + e;
+      double xyl = e - (xyh - p);
+
+      // x^2 - y^2
+      double s = xxh - yyh;
+      double v = s - xxh;
+      e = (xxh - (s - v)) + (-yyh - v) + (xxl - yyl);
+      double th = s + e;
+      double tl = e - (th - s);
+      // x' = x^2 - y^2 + a
+      s = th + ah;
+      v = s - th;
+      e = (th - (s - v)) + (ah - v) + (tl + al);
+      xh = s + e;
+      xl = e - (xh - s);
+      // y' = 2xy + b
+      s = 2*xyh + bh;
+      v = s - 2*xyh;
+      e = (2*xyh - (s - v)) + (bh - v) + (2*xyl + bl);
+      yh = s + e;
+      yl = e - (yh - s);
+
+      rho2 = xh*xh + yh*yh;
+
+      steps++;
+      double dx = (xh - savedXh) + (xl - savedXl);
+      double dy = (yh - savedYh) + (yl - savedYl);
+      if ( dx*dx + dy*dy < periodicityTolerance2 )
+      {
+        lastPeriod = steps;
+        return maxIterations;
+      }
+      if ( steps == stepLimit )
+      {
+        savedXh = xh;
+        savedXl = xl;
+        savedYh = yh;
+        savedYl = yl;
+        steps = 0;
+        stepLimit *= 2;
+      }
+    }
+
+    return nIterations;
+  }
+
+}
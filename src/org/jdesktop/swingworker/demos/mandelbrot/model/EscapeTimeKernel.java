@@ -0,0 +1,376 @@
+/*
+ * $Id $
+ *
+ * Copyright 2005 Sun Microsystems
+ *
+ * Initially developed by Antonio Vieiro (vieiro@dev.java.net).
+ *
+ * This software is released under the Common Development and Distribution
+ *  License, version 1.0. See http://www.opensource.org/licenses/cddl1.php
+ *  for details.
+ *
+ * This software is distributed on an "AS IS" basis, without warranty of any
+ *  kind, either express or implied.
+ *
+ * All this stuff basically means that you can use this source code in your
+ *  software, either proprietary or not. See
+ *  http://www.opensolaris.org/os/about/faq/licensing_faq/ for interesting
+ *  information about the CDDL license.
+ *
+ */
+package org.jdesktop.swingworker.demos.mandelbrot.model;
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+
+/**
+ * EscapeTimeKernel computes the number of iterations needed for divergence
+ *  for a set of points of the complex plane.
+ * Kernels are not thread safe: each worker uses its own kernel.
+ * Kernels look at the scheduler of the tiles they compute every few
+ *  iterations, and stop as soon as it's cancelled (see checkCancelled()).
+ * All kernels working on plain doubles compute exactly the same number of
+ *  iterations (and periods) for a given point, they only differ in how fast
+ *  they do it.
+ * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
+ * @version $Revision: $
+ */
+public abstract class EscapeTimeKernel
+{
+  /**
+   * The precision of the numbers kernels iterate with.
+   */
+  public enum Precision
+  {
+    /**
+     * Plain doubles.
+     */
+    DOUBLE( 53 ),
+    /**
+     * Double-doubles.
+     */
+    DOUBLE_DOUBLE( 106 ),
+    /**
+     * Arbitrary precision.
+     */
+    ARBITRARY( Integer.MAX_VALUE );
+
+    private final int bits;
+
+    Precision( int aBits )
+    {
+      bits = aBits;
+    }
+
+    /**
+     * Returns the number of significant bits of the numbers.
+     * @return the number of bits.
+     */
+    public int getBits()
+    {
+      return bits;
+    }
+  }
+
+  /**
+   * The different kernels available, with the precision of the numbers
+   *  they iterate with, and their (measured) cost per iteration relative to
+   *  the scalar kernel.
+   */
+  public enum Type
+  {
+    /**
+     * Iterates one point at a time.
+     */
+    SCALAR( Precision.DOUBLE, 1 ),
+    /**
+     * Iterates one point at a time in double-double (about 32 digits),
+     *  for zooms down to pixels about 1e-27 wide.
+     */
+    DOUBLE_DOUBLE( Precision.DOUBLE_DOUBLE, 4 ),
+    /**
+     * Iterates the distance of each point to a reference orbit computed in
+     *  arbitrary precision, for deep zooms. Iterations are plain doubles,
+     *  and the first ones are skipped, so this is cheaper than double-double.
+     */
+    PERTURBATION( Precision.ARBITRARY, 2 );
+
+    private final Precision precision;
+    private final int cost;
+
+    Type( Precision aPrecision, int aCost )
+    {
+      precision = aPrecision;
+      cost = aCost;
+    }
+
+    /**
+     * Returns the precision of the numbers this kernel iterates with.
+     * @return the precision of this kernel.
+     */
+    public Precision getPrecision()
+    {
+      return precision;
+    }
+
+    /**
+     * Returns the cost of an iteration, relative to the scalar kernel.
+     * @return the relative cost of this kernel.
+     */
+    public int getCost()
+    {
+      return cost;
+    }
+  }
+
+  /**
+   * The number of bits kept beyond the ones needed to tell pixels apart, so
+   *  rounding errors don't add up to a pixel along long orbits.
+   */
+  public static final int GUARD_BITS = 16;
+
+  /**
+   * Orbit points closer than this fraction of a pixel are considered equal
+   *  when detecting cycles.
+   */
+  public static final double PERIODICITY_TOLERANCE = 1e-3;
+
+  /**
+   * The number of iterations between two looks at the scheduler (a power
+   *  of two), so a cancelled image releases its workers within a few
+   *  milliseconds, even if its points take millions of iterations.
+   */
+  public static final int CANCELLATION_INTERVAL = 1 << 12;
+
+  /**
+   * The maximum number of iterations.
+   */
+  protected int maxIterations;
+
+  /**
+   * The square of the distance under which two points of an orbit are
+   *  considered the same point.
+   */
+  protected double periodicityTolerance2;
+
+  /**
+   * The scheduler of the tiles computed, or null if the kernel can't be
+   *  cancelled.
+   */
+  private TileScheduler scheduler;
+
+  /**
+   * Creates a new kernel.
+   * @param aType the type of kernel.
+   * @return a new kernel of the given type.
+   */
+  public static EscapeTimeKernel create( Type aType )
+  {
+    switch( aType )
+    {
+      case DOUBLE_DOUBLE:
+        return new DoubleDoubleEscapeTimeKernel();
+      case PERTURBATION:
+        return new PerturbationEscapeTimeKernel();
+      default:
+        return new ScalarEscapeTimeKernel();
+    }
+  }
+
+  /**
+   * Returns the cheapest type of kernel with, at least, a given precision.
+   * @param aPrecision the precision needed.
+   * @param aPreferredType the type of kernel to use, if it's one of the
+   *  cheapest ones.
+   * @return the cheapest type of kernel with the given precision.
+   */
+  public static Type getType( Precision aPrecision, Type aPreferredType )
+  {
+    Type cheapest = null;
+    for( Type type : Type.values() )
+    {
+      if ( type.getPrecision().compareTo( aPrecision ) < 0 )
+        continue;
+      if ( cheapest == null || type.getCost() < cheapest.getCost()
+        || type.getCost() == cheapest.getCost() && type == aPreferredType )
+        cheapest = type;
+    }
+    return cheapest;
+  }
+
+  /**
+   * Returns the lowest precision that can tell apart the pixels of a
+   *  region of the complex plane.
+   * Orbits move around the origin (at a distance of about 1) whatever the
+   *  points are, so points are never considered smaller than 1.
+   * @param aRegion the region of the complex plane.
+   * @param anXScale the width of a pixel.
+   * @param anYScale the height of a pixel.
+   * @return the precision needed to compute the region.
+   */
+  public static Precision getRequiredPrecision( Rectangle2D.Double aRegion,
+    double anXScale, double anYScale )
+  {
+    double x = Math.max( 1.0, Math.max( Math.abs( aRegion.getMinX() ), Math.abs( aRegion.getMaxX() ) ) );
+    double y = Math.max( 1.0, Math.max( Math.abs( aRegion.getMinY() ), Math.abs( aRegion.getMaxY() ) ) );
+    // The bits between the magnitude of the points and the size of a pixel
+    int bits = Math.max(
+      Math.getExponent( x ) - Math.getExponent( anXScale ),
+      Math.getExponent( y ) - Math.getExponent( anYScale ) ) + GUARD_BITS;
+    for( Precision precision : Precision.values() )
+      if ( bits <= precision.getBits() )
+        return precision;
+    return Precision.ARBITRARY;
+  }
+
+  /**
+   * Returns the default type of kernel, as specified by the
+   *  "mandelbrot.kernel" system property (SCALAR if missing or unknown).
+   * @return the default type of kernel.
+   */
+  public static Type getDefaultType()
+  {
+    try
+    {
+      return Type.valueOf( System.getProperty( "mandelbrot.kernel", "SCALAR" ).toUpperCase() );
+    }
+    catch( Exception e )
+    {
+      return Type.SCALAR;
+    }
+  }
+
+  /**
+   * Prepares this kernel for a new image.
+   * This method is invoked in a worker thread.
+   * @param aModel the model whose image is computed.
+   */
+  public void setUp( MandelbrotModel aModel )
+  {
+    maxIterations = aModel.getMaxIterations();
+    Rectangle2D.Double bounds = aModel.getBounds();
+    double pixelSize = Math.min( bounds.width / MandelbrotModel.XRESOLUTION,
+      bounds.height / MandelbrotModel.YRESOLUTION );
+    double tolerance = pixelSize * PERIODICITY_TOLERANCE;
+    periodicityTolerance2 = tolerance * tolerance;
+  }
+
+  /**
+   * Sets the scheduler whose cancellation stops this kernel.
+   * @param aScheduler the scheduler of the tiles computed with this kernel,
+   *  or null.
+   */
+  public void setScheduler( TileScheduler aScheduler )
+  {
+    scheduler = aScheduler;
+  }
+
+  /**
+   * Throws a CancellationException if the scheduler of this kernel has been
+   *  cancelled. Kernels invoke this at least every CANCELLATION_INTERVAL
+   *  iterations. The results of the points not finished yet are left as
+   *  they are, so they must not be published.
+   * @throws CancellationException if the image has been cancelled.
+   */
+  protected final void checkCancelled()
+  {
+    if ( scheduler != null && scheduler.isCancelled() )
+      throw new CancellationException();
+  }
+
+  /**
+   * Tells if this kernel receives points as their distance to the center of
+   *  the viewport, instead of the points themselves.
+   * @return true if points are relative to the center of the viewport.
+   */
+  public boolean isRelative()
+  {
+    return false;
+  }
+
+  /**
+   * Computes the number of iterations needed for divergence for a set of
+   *  points of the complex plane.
+   * Points that belong to the set get the maximum number of iterations,
+   *  and the period of their orbit (if it has been detected, zero otherwise).
+   * @param a the real parts of the complex points (or their distances to the
+   *  center of the viewport, for relative kernels).
+   * @param b the imaginary parts of the complex points (or their distances
+   *  to the center of the viewport, for relative kernels).
+   * @param count the number of points to compute.
+   * @param iterations where the number of iterations is stored.
+   * @param periods where the period of the orbit is stored.
+   * @throws CancellationException if the image has been cancelled.
+   */
+  public abstract void compute( double[] a, double[] b, int count,
+    int[] iterations, int[] periods );
+
+  /**
+   * Tells if this kernel can go on iterating points from where a previous
+   *  computation stopped (see resume()). This is just a hint: resume() works
+   *  for every kernel, but the rest compute the points from scratch, so
+   *  there's no point in keeping their orbits.
+   * @return true if this kernel really resumes orbits in resume().
+   */
+  public boolean isResumable()
+  {
+    return false;
+  }
+
+  /**
+   * Computes the number of iterations needed for divergence for a set of
+   *  points, as compute() does, but going on from the last point of their
+   *  orbits, if known. This way raising the maximum number of iterations
+   *  only costs the iterations beyond the previous maximum.
+   * Points that reach the maximum number of iterations (without a detected
+   *  period) leave the last point of their orbit in orbitX and orbitY, and
+   *  the maximum number of iterations in orbitIterations, so they can be
+   *  resumed later on. The rest of the points leave zero in orbitIterations.
+   * This implementation ignores the orbits and invokes compute() (leaving
+   *  zero in orbitIterations for all the points). Kernels that can resume
+   *  orbits override it (see isResumable()).
+   * @param a the real parts of the complex points.
+   * @param b the imaginary parts of the complex points.
+   * @param orbitX the real parts of the last point of the orbits.
+   * @param orbitY the imaginary parts of the last point of the orbits.
+   * @param orbitIterations the number of iterations it took to get to the
+   *  last point of each orbit, or zero to start the orbit from scratch
+   *  (orbits with more iterations than the maximum start from scratch too).
+   * @param count the number of points to compute.
+   * @param iterations where the number of iterations is stored.
+   * @param periods where the period of the orbit is stored.
+   * @throws CancellationException if the image has been cancelled.
+   */
+  public void resume( double[] a, double[] b, double[] orbitX, double[] orbitY,
+    int[] orbitIterations, int count, int[] iterations, int[] periods )
+  {
+    compute( a, b, count, iterations, periods );
+    if ( orbitIterations != null )
+      Arrays.fill( orbitIterations, 0, count, 0 );
+  }
+
+  /**
+   * Tells if a point on the complex plane lies inside the main cardioid
+   *  or inside the period-2 bulb (the circle of radius 1/4 centered at -1).
+   * Points there never diverge, and can be spotted without iterating at all.
+   * @param a the real part of the complex point.
+   * @param b the imaginary part of the complex point.
+   * @return 1 if the point is inside the main cardioid, 2 if the point is
+   *  inside the period-2 bulb, 0 otherwise.
+   */
+  static int getKnownComponentPeriod( double a, double b )
+  {
+    double b2 = b*b;
+    // Main cardioid: q*(q + (a-1/4)) <= b^2/4, where q = (a-1/4)^2 + b^2
+    double xq = a - 0.25;
+    double q = xq*xq + b2;
+    if ( q*(q + xq) <= 0.25*b2 )
+      return 1;
+    // Period-2 bulb: (a+1)^2 + b^2 <= 1/16
+    double xb = a + 1.0;
+    if ( xb*xb + b2 <= 0.0625 )
+      return 2;
+    return 0;
+  }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * $Id $
+ *
+ * Copyright 2005 Sun Microsystems
+ *
+ * Initially developed by Antonio Vieiro (vieiro@dev.java.net).
+ *
+ * This software is released under the Common Development and Distribution
+ *  License, version 1.0. See http://www.opensource.org/licenses/cddl1.php
+ *  for details.
+ *
+ * This software is distributed on an "AS IS" basis, without warranty of any
+ *  kind, either express or implied.
+ *
+ * All this stuff basically means that you can use this source code in your
+ *  software, either proprietary or not. See
+ *  http://www.opensolaris.org/os/about/faq/licensing_faq/ for interesting
+ *  information about the CDDL license.
+ *
+ */
+package org.jdesktop.swingworker.demos.mandelbrot.model;
+
+/**
+ * IntervalTileProver tries to prove that all the points of a region of the
+ *  complex plane have the same number of iterations, so a tile can be
+ *  filled without computing its points.
+ * The region is iterated as a whole, using interval arithmetic (rounding
+ *  outwards, so the intervals always contain every orbit of the region).
+ *  If the intervals get out of the circle of radius 2 at the same
+ *  iteration, all points escape at that iteration. If they stay inside the
+ *  circle for maxIterations, no point escapes.
+ * Regions inside the main cardioid or the period 2 bulb are proven not to
+ *  escape directly.
+ * Proofs fail quickly (as soon as the region straddles the circle), so
+ *  trying to prove a tile is cheap compared to computing its points.
+ * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
+ * @version $Revision: $
+ */
+class IntervalTileProver
+{
+  private int maxIterations;
+  /**
+   * The period of the points of the last region proven, or zero if
+   *  unknown.
+   */
+  private int period;
+
+  /**
+   * Creates a new instance of IntervalTileProver.
+   * @param aMaxIterations the maximum number of iterations.
+   */
+  IntervalTileProver( int aMaxIterations )
+  {
+    maxIterations = aMaxIterations;
+  }
+
+  /**
+   * Tries to prove that all points of a region have the same number of
+   *  iterations.
+   * @param a0 the minimum real part of the points in the region.
+   * @param a1 the maximum real part of the points in the region.
+   * @param b0 the minimum imaginary part of the points in the region.
+   * @param b1 the maximum imaginary part of the points in the region.
+   * @return the number of iterations of every point in the region, or -1 if
+   *  that can't be proven.
+   */
+  int getIterations( double a0, double a1, double b0, double b1 )
+  {
+    period = 0;
+    // The region comes from the (rounded) bounds of the image, so widen it
+    // a little
+    a0 = down( a0 - 4*Math.ulp( a0 ) );
+    a1 = up( a1 + 4*Math.ulp( a1 ) );
+    b0 = down( b0 - 4*Math.ulp( b0 ) );
+    b1 = up( b1 + 4*Math.ulp( b1 ) );
+
+    if ( isInsideCardioid( a0, a1, b0, b1 ) )
+    {
+      period = 1;
+      return maxIterations;
+    }
+    if ( isInsideBulb( a0, a1, b0, b1 ) )
+    {
+      period = 2;
+      return maxIterations;
+    }
+
+    // Iterate just like the kernels do
+    double x0 = a0, x1 = a1;
+    double y0 = b0, y1 = b1;
+    for( int nIterations = 1; nIterations <= maxIterations; nIterations++ )
+    {
+      double xx0 = squareLo( x0, x1 ), xx1 = squareHi( x0, x1 );
+      double yy0 = squareLo( y0, y1 ), yy1 = squareHi( y0, y1 );
+      double xy0 = productLo( x0, x1, y0, y1 ), xy1 = productHi( x0, x1, y0, y1 );
+      // x' = x^2 - y^2 + a
+      x0 = down( down( xx0 - yy1 ) + a0 );
+      x1 = up( up( xx1 - yy0 ) + a1 );
+      // y' = 2xy + b
+      y0 = down( 2*xy0 + b0 );
+      y1 = up( 2*xy1 + b1 );
+
+      double rho0 = down( squareLo( x0, x1 ) + squareLo( y0, y1 ) );
+      double rho1 = up( squareHi( x0, x1 ) + squareHi( y0, y1 ) );
+      if ( rho0 >= 4.0 )
+        return nIterations;
+      if ( rho1 >= 4.0 )
+        return -1;
+    }
+    return maxIterations;
+  }
+
+  /**
+   * Returns the period of the points of the last region proven.
+   * @return the period, or zero if unknown.
+   */
+  int getPeriod()
+  {
+    return period;
+  }
+
+  /**
+   * Tells if a region is inside the main cardioid, that is, if
+   *  q*(q + x - 1/4) < y^2/4 with q = (x-1/4)^2 + y^2 for every point.
+   */
+  private static boolean isInsideCardioid( double a0, double a1, double b0, double b1 )
+  {
+    double x0 = down( a0 - 0.25 ), x1 = up( a1 - 0.25 );
+    double yy0 = squareLo( b0, b1 ), yy1 = squareHi( b0, b1 );
+    double q0 = down( squareLo( x0, x1 ) + yy0 );
+    double q1 = up( squareHi( x0, x1 ) + yy1 );
+    double s0 = down( q0 + x0 ), s1 = up( q1 + x1 );
+    return productHi( q0, q1, s0, s1 ) < yy0 / 4;
+  }
+
+  /**
+   * Tells if a region is inside the period 2 bulb, the disk of radius 1/4
+   *  around -1.
+   */
+  private static boolean isInsideBulb( double a0, double a1, double b0, double b1 )
+  {
+    double x0 = down( a0 + 1.0 ), x1 = up( a1 + 1.0 );
+    return up( squareHi( x0, x1 ) + squareHi( b0, b1 ) ) < 0.0625;
+  }
+
+  private static double squareLo( double lo, double hi )
+  {
+    if ( lo > 0 )
+      return down( lo*lo );
+    if ( hi < 0 )
+      return down( hi*hi );
+    return 0.0;
+  }
+
+  private static double squareHi( double lo, double hi )
+  {
+    return up( Math.max( lo*lo, hi*hi ) );
+  }
+
+  private static double productLo( double x0, double x1, double y0, double y1 )
+  {
+    return down( Math.min( Math.min( x0*y0, x0*y1 ), Math.min( x1*y0, x1*y1 ) ) );
+  }
+
+  private static double productHi( double x0, double x1, double y0, double y1 )
+  {
+    return up( Math.max( Math.max( x0*y0, x0*y1 ), Math.max( x1*y0, x1*y1 ) ) );
+  }
+
+  private static double down( double v )
+  {
+    return Math.nextAfter( v, Double.NEGATIVE_INFINITY );
+  }
+
+  private static double up( double v )
+  {
+    return Math.nextUp( v );
+  }
+
+}
@@ -19,8 +19,21 @@
  *
  */
 package org.jdesktop.swingworker.demos.mandelbrot.model;
+import java.awt.Rectangle;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 /**
  * MandelbrotModel holds information about a Mandelbrot fractal.
@@ -36,9 +49,57 @@ public class MandelbrotModel
   public static final int XRESOLUTION=640;
   
   public static final int YRESOLUTION=480;
+  /**
+   * Rows mirror each other if the real axis is this close (in pixels) to
+   *  half way between them.
+   */
+  public static final double MIRROR_TOLERANCE=1e-3;
   
   private BufferedImage image;
   
+  /**
+   * The pixels of the image (an index in the palette for each pixel, row
+   *  after row). Workers write the colors of the tiles they compute here
+   *  directly: tiles don't overlap, so no locking is needed.
+   */
+  private byte[] pixels;
+  
+  /**
+   * The period of the orbit of each pixel of the image, or zero if
+   *  unknown (or if the point diverges).
+   */
+  private int[] periods;
+  
+  /**
+   * The number of iterations of each pixel of the image, as computed by the
+   *  workers (the image only holds them modulo the number of colors).
+   */
+  private int[] iterations;
+  
+  /**
+   * Which pixels of the image have a known number of iterations before
+   *  computing them (after zooming by an integer factor), or null if none.
+   */
+  private boolean[] known;
+  
+  /**
+   * The number of iterations (and periods) of the known pixels, as they
+   *  were before computing the image (workers may publish guesses over
+   *  them while computing).
+   */
+  private int[] knownIterations;
+  private int[] knownPeriods;
+  
+  /**
+   * The last point of the orbit of the pixels that reached the maximum
+   *  number of iterations, and the number of iterations it took to get
+   *  there (zero if not retained), so the pixels can be resumed when the
+   *  maximum number of iterations is raised.
+   */
+  private double[] orbitX;
+  private double[] orbitY;
+  private int[] orbitIterations;
+  
   /**
    * Creates a new instance of MandelbrotModel
    */
@@ -49,7 +110,21 @@ public class MandelbrotModel
     setMaxIterations( 1000 );
     image = new BufferedImage( XRESOLUTION, YRESOLUTION,
       BufferedImage.TYPE_BYTE_INDEXED, NiceIndexColorModel.getInstance() );
+    pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    periods = new int[ XRESOLUTION * YRESOLUTION ];
+    iterations = new int[ XRESOLUTION * YRESOLUTION ];
+    orbitX = new double[ XRESOLUTION * YRESOLUTION ];
+    orbitY = new double[ XRESOLUTION * YRESOLUTION ];
+    orbitIterations = new int[ XRESOLUTION * YRESOLUTION ];
     setParallelizationRate( 4 );
+    setKernelType( EscapeTimeKernel.getDefaultType() );
+    // Kernels explicitly asking for more precision than doubles are used
+    // for the whole image
+    setAutomaticPrecision( getKernelType().getPrecision() == EscapeTimeKernel.Precision.DOUBLE );
+    setRendererType( TileRenderer.getDefaultType() );
+    setTileProofs( Boolean.valueOf( System.getProperty( "mandelbrot.tileproofs", "true" ) ).booleanValue() );
+    setSnapZoom( Boolean.valueOf( System.getProperty( "mandelbrot.snapzoom", "true" ) ).booleanValue() );
+    setTileCache( TileCache.getInstance() );
   }  
   
   /**
@@ -103,25 +178,812 @@ public class MandelbrotModel
   }
   
   /**
-   * Setter for property bounds.
+   * Setter for property bounds. Sets the viewport as well.
    * @param bounds New value of property bounds.
    */
   public void setBounds(java.awt.geom.Rectangle2D.Double bounds)
   {
     
     this.bounds = bounds;
+    this.viewport = Viewport.fromBounds( bounds );
+    forgetOrbits();
+  }
+  
+  /**
+   * Holds value of property viewport.
+   */
+  private Viewport viewport;
+  
+  /**
+   * Getter for property viewport.
+   * @return Value of property viewport.
+   */
+  public Viewport getViewport()
+  {
+    
+    return this.viewport;
+  }
+  
+  /**
+   * Setter for property viewport. Sets the (approximate) bounds as well.
+   * @param viewport New value of property viewport.
+   */
+  public void setViewport(Viewport viewport)
+  {
+    
+    this.viewport = viewport;
+    this.bounds = viewport.getBounds();
+    this.known = null;
+    this.knownIterations = null;
+    this.knownPeriods = null;
+    forgetOrbits();
+  }
+  
+  /**
+   * The reference orbits for the current viewport.
+   */
+  private ReferenceOrbits referenceOrbits;
+  
+  /**
+   * Returns the reference orbits for the current viewport and maximum number
+   *  of iterations, shared by all the workers computing the image.
+   * This method is invoked in worker threads.
+   */
+  synchronized ReferenceOrbits getReferenceOrbits()
+  {
+    if ( referenceOrbits == null || referenceOrbits.getViewport() != viewport
+      || referenceOrbits.getMaxIterations() != maxIterations )
+      referenceOrbits = new ReferenceOrbits( viewport, maxIterations );
+    return referenceOrbits;
+  }
+  
+  /**
+   * Updates the number of iterations and periods of an area of the image.
+   * This is invoked in worker threads, as soon as points are computed.
+   * @param anArea the area of the image.
+   * @param newIterations the number of iterations, row after row (the
+   *  array may be longer than the area).
+   * @param newPeriods the periods, row after row.
+   */
+  public void updateIterations( Rectangle anArea, int [] newIterations, int [] newPeriods )
+  {
+    for( int i=0; i<anArea.height; i++ )
+    {
+      int offset = (anArea.y+i)*XRESOLUTION + anArea.x;
+      System.arraycopy( newIterations, i*anArea.width, iterations, offset, anArea.width );
+      System.arraycopy( newPeriods, i*anArea.width, periods, offset, anArea.width );
+    }
+  }
+  
+  /**
+   * Computes the colors of the whole image again, from the number of
+   *  iterations of its pixels. Nothing is computed again.
+   * @param anExecutor where the colors of bands of rows are computed in
+   *  parallel, or null to compute them in the current thread.
+   */
+  public void updateColors( ExecutorService anExecutor )
+  {
+    if ( anExecutor == null )
+    {
+      updateColors( 0, YRESOLUTION );
+      return;
+    }
+    List<Callable<Object>> bands = new ArrayList<Callable<Object>>();
+    for( int row = 0; row < YRESOLUTION; row += COLOR_BAND_HEIGHT )
+    {
+      final int firstRow = row;
+      final int lastRow = Math.min( row + COLOR_BAND_HEIGHT, YRESOLUTION );
+      bands.add( new Callable<Object>()
+      {
+        public Object call()
+        {
+          updateColors( firstRow, lastRow );
+          return null;
+        }
+      } );
+    }
+    try
+    {
+      anExecutor.invokeAll( bands );
+    }
+    catch( InterruptedException e )
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  /**
+   * The number of rows whose colors are computed in one go.
+   */
+  private static final int COLOR_BAND_HEIGHT = 32;
+  
+  private void updateColors( Rectangle anArea )
+  {
+    updateColors( anArea.x, anArea.y, anArea.width, anArea.height );
+  }
+  
+  /**
+   * Computes the colors of an area of the image from the number of
+   *  iterations of its pixels, and writes them in the image.
+   * This is invoked in worker threads too, as soon as points are computed
+   *  (the image has to be repainted afterwards).
+   * @param aColumn the first column.
+   * @param aRow the first row.
+   * @param aWidth the number of columns.
+   * @param aHeight the number of rows.
+   */
+  public void updateColors( int aColumn, int aRow, int aWidth, int aHeight )
+  {
+    ColorMapping mapping = colorMapping;
+    for( int iy=0; iy<aHeight; iy++ )
+    {
+      int offset = (aRow + iy)*XRESOLUTION + aColumn;
+      for( int ix=0; ix<aWidth; ix++ )
+        pixels[ offset + ix ] = (byte) mapping.getColorIndex( iterations[ offset + ix ], maxIterations );
+    }
+  }
+  
+  private void updateColors( int aFirstRow, int aLastRow )
+  {
+    updateColors( 0, aFirstRow, XRESOLUTION, aLastRow - aFirstRow );
+  }
+  
+  /**
+   * Returns the number of iterations of a pixel of the image.
+   * @param x the column of the pixel.
+   * @param y the row of the pixel.
+   * @return the number of iterations needed for divergence.
+   */
+  public int getIterations( int x, int y )
+  {
+    return iterations[ y*XRESOLUTION + x ];
+  }
+  
+  /**
+   * Returns the period of the orbit of a pixel of the image.
+   * @param x the column of the pixel.
+   * @param y the row of the pixel.
+   * @return the period of the orbit, or zero if unknown or if the point
+   *  diverges.
+   */
+  public int getPeriod( int x, int y )
+  {
+    return periods[ y*XRESOLUTION + x ];
+  }
+  
+  /**
+   * The image is symmetric about the real axis: if the real axis is half way
+   *  between two rows these are mirror images of each other. This returns
+   *  the sum of the indexes of the rows mirroring each other.
+   * @return the sum of the indexes of any two rows mirroring each other,
+   *  or -1 if no two rows of the image mirror each other.
+   */
+  public int getMirrorRowSum()
+  {
+    // The imaginary part of row r is centerY + (r - YRESOLUTION/2)*yScale,
+    // so rows r and k-r mirror each other if k = YRESOLUTION - 2*centerY/yScale
+    double k = YRESOLUTION - 2 * viewport.getCenterY().divide(
+      viewport.getYScale(), MathContext.DECIMAL64 ).doubleValue();
+    long rowSum = Math.round( k );
+    if ( Math.abs( k - rowSum ) > MIRROR_TOLERANCE || rowSum < 1 || rowSum > 2*YRESOLUTION - 3 )
+      return -1;
+    return (int) rowSum;
+  }
+  
+  /**
+   * Returns the area of the image that has to be computed: the whole image
+   *  but the rows that mirror other rows (see getMirrorRowSum()).
+   * @return the area of the image to compute.
+   */
+  public Rectangle getComputedArea()
+  {
+    int rowSum = getMirrorRowSum();
+    if ( rowSum < 0 )
+      return new Rectangle( 0, 0, XRESOLUTION, YRESOLUTION );
+    // Skip the side of the axis with more rows
+    if ( rowSum < YRESOLUTION )
+      return new Rectangle( 0, (rowSum+1)/2, XRESOLUTION, YRESOLUTION - (rowSum+1)/2 );
+    return new Rectangle( 0, 0, XRESOLUTION, rowSum/2 + 1 );
+  }
+  
+  /**
+   * Returns some areas of the image and the rows mirroring them (see
+   *  getMirrorRowSum()). Workers publish the rows mirroring the rows they
+   *  compute, so if some areas are not computed the rows mirroring them
+   *  are not computed either.
+   * @param someAreas the areas of the image.
+   * @return the areas and the rows mirroring them.
+   */
+  public List<Rectangle> addMirrorRows( List<Rectangle> someAreas )
+  {
+    List<Rectangle> areas = new ArrayList<Rectangle>( someAreas );
+    int rowSum = getMirrorRowSum();
+    if ( rowSum >= 0 )
+    {
+      Rectangle image = new Rectangle( 0, 0, XRESOLUTION, YRESOLUTION );
+      for( Rectangle area : someAreas )
+      {
+        Rectangle mirror = image.intersection(
+          new Rectangle( area.x, rowSum - (area.y + area.height - 1), area.width, area.height ) );
+        if ( ! mirror.isEmpty() )
+          areas.add( mirror );
+      }
+    }
+    return areas;
+  }
+  
+  /**
+   * Copies the rows of an area that mirror computed rows (see
+   *  getComputedArea()) from the rows they mirror, and updates their
+   *  colors.
+   * @param anArea the area of the image.
+   */
+  public void mirrorRows( Rectangle anArea )
+  {
+    int rowSum = getMirrorRowSum();
+    if ( rowSum < 0 )
+      return;
+    Rectangle computed = getComputedArea();
+    for( int row = anArea.y; row < anArea.y + anArea.height; row++ )
+    {
+      int mirror = rowSum - row;
+      if ( computed.contains( 0, row ) || mirror < 0 || mirror >= YRESOLUTION )
+        continue;
+      System.arraycopy( iterations, mirror*XRESOLUTION + anArea.x, iterations, row*XRESOLUTION + anArea.x, anArea.width );
+      System.arraycopy( periods, mirror*XRESOLUTION + anArea.x, periods, row*XRESOLUTION + anArea.x, anArea.width );
+      updateColors( anArea.x, row, anArea.width, 1 );
+    }
+  }
+  
+  /**
+   * Moves the image (and the number of iterations and periods of its
+   *  pixels) some pixels. Pixels moved out of the image are lost, and
+   *  pixels moved into the image are cleared.
+   * @param dx the number of pixels to move the image to the right.
+   * @param dy the number of pixels to move the image down.
+   * @return the areas of the image that have been cleared.
+   */
+  public List<Rectangle> shiftImage( int dx, int dy )
+  {
+    int width = XRESOLUTION - Math.abs( dx );
+    int height = YRESOLUTION - Math.abs( dy );
+    List<Rectangle> exposed = new ArrayList<Rectangle>();
+    if ( width <= 0 || height <= 0 )
+    {
+      exposed.add( new Rectangle( 0, 0, XRESOLUTION, YRESOLUTION ) );
+      width = height = 0;
+    }
+    else
+    {
+      // A column at the left or right of the image...
+      if ( dx != 0 )
+        exposed.add( new Rectangle( dx > 0 ? 0 : width, 0, Math.abs( dx ), YRESOLUTION ) );
+      // ... and a row at the top or bottom (without that column)
+      if ( dy != 0 )
+        exposed.add( new Rectangle( Math.max( 0, dx ), dy > 0 ? 0 : height, width, Math.abs( dy ) ) );
+    }
+    
+    known = null;
+    knownIterations = null;
+    knownPeriods = null;
+    forgetOrbits();
+    iterations = shift( iterations, dx, dy, width, height );
+    periods = shift( periods, dx, dy, width, height );
+    // The colors are taken from the number of iterations (and not moved
+    // themselves) because the last pieces published may not be in the
+    // image yet
+    updateColors( 0, YRESOLUTION );
+    return exposed;
+  }
+  
+  /**
+   * Magnifies the image by an integer factor (see
+   *  Viewport.zoom(int,int,int)). Pixel (f*i, f*j) of the new image is
+   *  pixel (column+i, row+j) of the current one, so its number of
+   *  iterations is kept (and marked as known). The rest of the pixels get
+   *  the number of iterations of the nearest known pixel, as a preview.
+   * @param aColumn the column of the current image at the top left corner
+   *  of the new one.
+   * @param aRow the row of the current image at the top left corner of the
+   *  new one.
+   * @param aFactor the magnification factor.
+   */
+  public void zoomImage( int aColumn, int aRow, int aFactor )
+  {
+    zoomImage( aColumn, aRow, aFactor, Collections.<Rectangle>emptyList() );
+  }
+  
+  /**
+   * Magnifies the image by an integer factor, as zoomImage() does, when
+   *  some areas of the current image were not computed. The pixels in
+   *  those areas are not marked as known.
+   * @param aColumn the column of the current image at the top left corner
+   *  of the new one.
+   * @param aRow the row of the current image at the top left corner of the
+   *  new one.
+   * @param aFactor the magnification factor.
+   * @param someUnfinishedAreas the areas of the current image not computed.
+   */
+  public void zoomImage( int aColumn, int aRow, int aFactor, List<Rectangle> someUnfinishedAreas )
+  {
+    boolean [] unfinished = new boolean[ iterations.length ];
+    Rectangle image = new Rectangle( 0, 0, XRESOLUTION, YRESOLUTION );
+    for( Rectangle area : someUnfinishedAreas )
+    {
+      Rectangle part = image.intersection( area );
+      for( int y = part.y; y < part.y + part.height; y++ )
+        Arrays.fill( unfinished, y*XRESOLUTION + part.x, y*XRESOLUTION + part.x + part.width, true );
+    }
+    int [] newIterations = new int[ iterations.length ];
+    int [] newPeriods = new int[ periods.length ];
+    known = new boolean[ iterations.length ];
+    forgetOrbits();
+    for( int y = 0; y < YRESOLUTION; y++ )
+    {
+      int row = Math.min( aRow + y/aFactor, YRESOLUTION-1 );
+      for( int x = 0; x < XRESOLUTION; x++ )
+      {
+        int column = Math.min( aColumn + x/aFactor, XRESOLUTION-1 );
+        newIterations[ y*XRESOLUTION + x ] = iterations[ row*XRESOLUTION + column ];
+        newPeriods[ y*XRESOLUTION + x ] = periods[ row*XRESOLUTION + column ];
+        known[ y*XRESOLUTION + x ] = x % aFactor == 0 && y % aFactor == 0
+          && aColumn + x/aFactor < XRESOLUTION && aRow + y/aFactor < YRESOLUTION
+          && ! unfinished[ row*XRESOLUTION + column ];
+      }
+    }
+    iterations = newIterations;
+    periods = newPeriods;
+    knownIterations = iterations.clone();
+    knownPeriods = periods.clone();
+    updateColors( 0, YRESOLUTION );
+  }
+  
+  /**
+   * Replaces the number of iterations and periods of all the pixels of the
+   *  image (taken from a snapshot of an image with the same viewport and
+   *  maximum number of iterations), and updates their colors.
+   * @param someIterations the number of iterations, row after row.
+   * @param somePeriods the periods, row after row.
+   */
+  public void restoreImage( int [] someIterations, int [] somePeriods )
+  {
+    known = null;
+    knownIterations = null;
+    knownPeriods = null;
+    forgetOrbits();
+    System.arraycopy( someIterations, 0, iterations, 0, iterations.length );
+    System.arraycopy( somePeriods, 0, periods, 0, periods.length );
+    updateColors( 0, YRESOLUTION );
+  }
+  
+  /**
+   * Copies the tiles of some areas of the image from the tile cache.
+   * @param someAreas the areas of the image to compute.
+   * @return the parts of the areas not found in the cache, that have to be
+   *  computed.
+   */
+  public List<Rectangle> restoreCachedTiles( List<Rectangle> someAreas )
+  {
+    List<Rectangle> missing = new ArrayList<Rectangle>();
+    Map<Rectangle, TileCache.Key> keys = getTileKeys();
+    for( Map.Entry<Rectangle, TileCache.Key> entry : keys.entrySet() )
+    {
+      Rectangle tile = entry.getKey();
+      List<Rectangle> parts = new ArrayList<Rectangle>();
+      for( Rectangle area : someAreas )
+      {
+        Rectangle part = tile.intersection( area );
+        if ( ! part.isEmpty() )
+          parts.add( part );
+      }
+      if ( parts.isEmpty() )
+        continue;
+      TileCache.Tile cached = tileCache.get( entry.getValue() );
+      if ( cached == null )
+      {
+        missing.addAll( parts );
+        continue;
+      }
+      updateIterations( tile, cached.getIterations(), cached.getPeriods() );
+      updateColors( tile );
+    }
+    return missing;
+  }
+  
+  /**
+   * Adds the tiles of the image not in the tile cache yet to the cache.
+   * This is invoked once the whole image has been computed.
+   */
+  public void cacheTiles()
+  {
+    cacheTiles( Collections.<Rectangle>emptyList() );
+  }
+  
+  /**
+   * Adds the tiles of the image not in the tile cache yet to the cache,
+   *  but for the ones with pixels not computed.
+   * This is invoked when the computation of the image is cancelled, so the
+   *  tiles already finished are not computed again.
+   * @param someUnfinishedAreas the areas of the image not computed,
+   *  including the rows mirroring them (see addMirrorRows()).
+   */
+  public void cacheTiles( List<Rectangle> someUnfinishedAreas )
+  {
+    cacheTiles( tileCache, getTileKeys(), iterations, periods, someUnfinishedAreas );
+  }
+  
+  private static void cacheTiles( TileCache aTileCache, Map<Rectangle, TileCache.Key> someKeys,
+    int [] someIterations, int [] somePeriods, List<Rectangle> someUnfinishedAreas )
+  {
+    for( Map.Entry<Rectangle, TileCache.Key> entry : someKeys.entrySet() )
+    {
+      if ( aTileCache.contains( entry.getValue() ) )
+        continue;
+      Rectangle tile = entry.getKey();
+      if ( intersects( tile, someUnfinishedAreas ) )
+        continue;
+      int [] tileIterations = new int[ tile.width * tile.height ];
+      int [] tilePeriods = new int[ tile.width * tile.height ];
+      for( int i=0; i<tile.height; i++ )
+      {
+        System.arraycopy( someIterations, (tile.y+i)*XRESOLUTION + tile.x, tileIterations, i*tile.width, tile.width );
+        System.arraycopy( somePeriods, (tile.y+i)*XRESOLUTION + tile.x, tilePeriods, i*tile.width, tile.width );
+      }
+      aTileCache.put( entry.getValue(), new TileCache.Tile( tileIterations, tilePeriods ) );
+    }
+  }
+  
+  /**
+   * The tiles of an image whose computation has been retired (see
+   *  retireFrame()), kept so they can be cached once its workers leave,
+   *  whatever the model is showing by then.
+   */
+  public static final class Frame
+  {
+    private final TileCache tileCache;
+    private final Map<Rectangle, TileCache.Key> keys;
+    private final int [] iterations;
+    private final int [] periods;
+    private final List<Rectangle> unfinishedAreas;
+    
+    private Frame( TileCache aTileCache, Map<Rectangle, TileCache.Key> someKeys,
+      int [] someIterations, int [] somePeriods, List<Rectangle> someUnfinishedAreas )
+    {
+      tileCache = aTileCache;
+      keys = someKeys;
+      iterations = someIterations;
+      periods = somePeriods;
+      unfinishedAreas = someUnfinishedAreas;
+    }
+    
+    /**
+     * Returns the areas of the image not computed, including the rows
+     *  mirroring them (see addMirrorRows()).
+     * @return the areas not computed.
+     */
+    public List<Rectangle> getUnfinishedAreas()
+    {
+      return unfinishedAreas;
+    }
+    
+    /**
+     * Adds the tiles of the image not in the tile cache yet to the cache,
+     *  but for the ones with pixels not computed (see
+     *  MandelbrotModel.cacheTiles()).
+     */
+    public void cacheTiles()
+    {
+      MandelbrotModel.cacheTiles( tileCache, keys, iterations, periods, unfinishedAreas );
+    }
+  }
+  
+  /**
+   * Keeps the image as it is now, so its tiles can be cached later on,
+   *  once the model has been moved somewhere else. This is invoked when the
+   *  computation of the image is retired (see TileScheduler.retire()).
+   * @param someUnfinishedTiles the tiles of the image not computed.
+   * @return the image kept.
+   */
+  public Frame retireFrame( List<Rectangle> someUnfinishedTiles )
+  {
+    return new Frame( tileCache, getTileKeys(), iterations.clone(), periods.clone(),
+      addMirrorRows( someUnfinishedTiles ) );
+  }
+  
+  private static boolean intersects( Rectangle aTile, List<Rectangle> someAreas )
+  {
+    for( Rectangle area : someAreas )
+      if ( aTile.intersects( area ) )
+        return true;
+    return false;
+  }
+  
+  /**
+   * Cuts the image in tiles aligned with a lattice of tiles (of
+   *  TileScheduler.TILE_SIZE pixels) covering the whole complex plane, so
+   *  moving the image keeps the tiles in place. Tiles at the borders of
+   *  the image may be cut.
+   * @return the tiles of the image, and their keys in the tile cache.
+   */
+  private Map<Rectangle, TileCache.Key> getTileKeys()
+  {
+    BigDecimal xScale = viewport.getXScale();
+    BigDecimal yScale = viewport.getYScale();
+    // The index (in the lattice of pixels) of the first pixel of the image
+    BigInteger x0 = getLatticeIndex( viewport.getCenterX(), xScale ).subtract( BigInteger.valueOf( XRESOLUTION/2 ) );
+    BigInteger y0 = getLatticeIndex( viewport.getCenterY(), yScale ).subtract( BigInteger.valueOf( YRESOLUTION/2 ) );
+    BigDecimal xPhase = viewport.getCenterX().subtract( xScale.multiply( new BigDecimal( x0.add( BigInteger.valueOf( XRESOLUTION/2 ) ) ) ) );
+    BigDecimal yPhase = viewport.getCenterY().subtract( yScale.multiply( new BigDecimal( y0.add( BigInteger.valueOf( YRESOLUTION/2 ) ) ) ) );
+    BigInteger size = BigInteger.valueOf( TileScheduler.TILE_SIZE );
+    int xOffset = x0.mod( size ).intValue();
+    int yOffset = y0.mod( size ).intValue();
+    EscapeTimeKernel.Type kernel = getKernelTypeInUse();
+    Map<Rectangle, TileCache.Key> keys = new LinkedHashMap<Rectangle, TileCache.Key>();
+    for( int y = 0; y < YRESOLUTION; )
+    {
+      int inTileY = (yOffset + y) % TileScheduler.TILE_SIZE;
+      int height = Math.min( TileScheduler.TILE_SIZE - inTileY, YRESOLUTION - y );
+      BigInteger tileY = y0.add( BigInteger.valueOf( y - inTileY ) ).divide( size );
+      for( int x = 0; x < XRESOLUTION; )
+      {
+        int inTileX = (xOffset + x) % TileScheduler.TILE_SIZE;
+        int width = Math.min( TileScheduler.TILE_SIZE - inTileX, XRESOLUTION - x );
+        BigInteger tileX = x0.add( BigInteger.valueOf( x - inTileX ) ).divide( size );
+        keys.put( new Rectangle( x, y, width, height ),
+          new TileCache.Key( xScale, yScale, xPhase, yPhase, tileX, tileY,
+            new Rectangle( inTileX, inTileY, width, height ), maxIterations,
+            kernel, rendererType ) );
+        x += width;
+      }
+      y += height;
+    }
+    return keys;
+  }
+  
+  /**
+   * Returns the index of the pixel at a point of an axis, in a lattice of
+   *  pixels covering the whole axis (pixel k goes from k*scale+phase, where
+   *  phase is from 0 to scale).
+   */
+  private static BigInteger getLatticeIndex( BigDecimal aPoint, BigDecimal aScale )
+  {
+    BigDecimal [] division = aPoint.divideAndRemainder( aScale );
+    BigInteger index = division[0].toBigInteger();
+    // Round down (and not towards zero)
+    if ( division[1].signum() < 0 )
+      index = index.subtract( BigInteger.ONE );
+    return index;
+  }
+  
+  /**
+   * Changes the maximum number of iterations, keeping the pixels computed
+   *  with the previous one.
+   * Lowering the maximum needs no computation at all: pixels that took
+   *  more iterations are just left at the new maximum. Raising it only
+   *  needs to compute the pixels that reached the previous maximum (and
+   *  have not been proven to belong to the set), resuming their orbits
+   *  where they stopped if they were retained.
+   * The image is updated with the new colors.
+   * @param aMaxIterations the new maximum number of iterations.
+   * @return the tiles of the image with pixels to compute (the rest of the
+   *  pixels are marked as known), empty if there's nothing to compute.
+   */
+  public List<Rectangle> changeMaxIterations( int aMaxIterations )
+  {
+    int oldMaxIterations = maxIterations;
+    setMaxIterations( aMaxIterations );
+    List<Rectangle> tiles = new ArrayList<Rectangle>();
+    known = null;
+    if ( aMaxIterations < oldMaxIterations )
+    {
+      for( int i = 0; i < iterations.length; i++ )
+        if ( iterations[i] > aMaxIterations )
+          iterations[i] = aMaxIterations;
+    }
+    else if ( aMaxIterations > oldMaxIterations )
+    {
+      known = new boolean[ iterations.length ];
+      int size = TileScheduler.TILE_SIZE;
+      for( int y0 = 0; y0 < YRESOLUTION; y0 += size )
+      {
+        for( int x0 = 0; x0 < XRESOLUTION; x0 += size )
+        {
+          Rectangle tile = new Rectangle( x0, y0,
+            Math.min( size, XRESOLUTION - x0 ), Math.min( size, YRESOLUTION - y0 ) );
+          boolean pending = false;
+          for( int y = tile.y; y < tile.y + tile.height; y++ )
+          {
+            for( int x = tile.x; x < tile.x + tile.width; x++ )
+            {
+              int i = y*XRESOLUTION + x;
+              known[i] = iterations[i] < oldMaxIterations || periods[i] != 0;
+              pending |= ! known[i];
+              // Pixels in the set stay there, and the rest are shown in
+              // the set until computed
+              if ( iterations[i] == oldMaxIterations )
+                iterations[i] = aMaxIterations;
+            }
+          }
+          if ( pending )
+            tiles.add( tile );
+        }
+      }
+    }
+    knownIterations = known == null ? null : iterations.clone();
+    knownPeriods = known == null ? null : periods.clone();
+    updateColors( 0, YRESOLUTION );
+    return tiles;
+  }
+  
+  /**
+   * Forgets the orbits retained, once they don't belong to the pixels of
+   *  the image anymore.
+   */
+  private void forgetOrbits()
+  {
+    if ( orbitIterations != null )
+      Arrays.fill( orbitIterations, 0 );
+  }
+  
+  /**
+   * Returns the number of iterations it took to get to the last point
+   *  retained of the orbit of a pixel.
+   * @param x the column of the pixel.
+   * @param y the row of the pixel.
+   * @return the number of iterations, or zero if no orbit is retained.
+   */
+  public int getOrbitIterations( int x, int y )
+  {
+    return orbitIterations[ y*XRESOLUTION + x ];
+  }
+  
+  /**
+   * Returns the real part of the last point retained of the orbit of a
+   *  pixel.
+   * @param x the column of the pixel.
+   * @param y the row of the pixel.
+   * @return the real part of the last point of the orbit.
+   */
+  public double getOrbitX( int x, int y )
+  {
+    return orbitX[ y*XRESOLUTION + x ];
+  }
+  
+  /**
+   * Returns the imaginary part of the last point retained of the orbit of
+   *  a pixel.
+   * @param x the column of the pixel.
+   * @param y the row of the pixel.
+   * @return the imaginary part of the last point of the orbit.
+   */
+  public double getOrbitY( int x, int y )
+  {
+    return orbitY[ y*XRESOLUTION + x ];
+  }
+  
+  /**
+   * Retains the last point of the orbit of a pixel.
+   * This method is invoked in worker threads.
+   * @param x the column of the pixel.
+   * @param y the row of the pixel.
+   * @param anIterations the number of iterations it took to get to the point.
+   * @param anOrbitX the real part of the point.
+   * @param anOrbitY the imaginary part of the point.
+   */
+  public void retainOrbit( int x, int y, int anIterations, double anOrbitX, double anOrbitY )
+  {
+    int i = y*XRESOLUTION + x;
+    orbitX[ i ] = anOrbitX;
+    orbitY[ i ] = anOrbitY;
+    orbitIterations[ i ] = anIterations;
+  }
+  
+  /**
+   * Tells if the number of iterations of a pixel is known before computing
+   *  it (see zoomImage()).
+   * @param x the column of the pixel.
+   * @param y the row of the pixel.
+   * @return true if the number of iterations of the pixel is known.
+   */
+  public boolean isKnown( int x, int y )
+  {
+    boolean [] knownPixels = known;
+    return knownPixels != null && knownPixels[ y*XRESOLUTION + x ];
+  }
+  
+  /**
+   * Returns the number of iterations of a known pixel (see isKnown()).
+   * @param x the column of the pixel.
+   * @param y the row of the pixel.
+   * @return the number of iterations of the pixel before computing the image.
+   */
+  public int getKnownIterations( int x, int y )
+  {
+    return knownIterations[ y*XRESOLUTION + x ];
+  }
+  
+  /**
+   * Returns the period of the orbit of a known pixel (see isKnown()).
+   * @param x the column of the pixel.
+   * @param y the row of the pixel.
+   * @return the period of the pixel before computing the image.
+   */
+  public int getKnownPeriod( int x, int y )
+  {
+    return knownPeriods[ y*XRESOLUTION + x ];
   }
   
-  public void updateColumnData( int aColumn, int aRow, int [] columnColors )
+  private static int [] shift( int [] values, int dx, int dy, int aWidth, int aHeight )
   {
-    image.getRaster().setPixels( aColumn, aRow, 1, columnColors.length, columnColors );
+    int [] shifted = new int[ values.length ];
+    for( int i = 0; i < aHeight; i++ )
+    {
+      int row = dy > 0 ? i + dy : i;
+      System.arraycopy( values, (row-dy)*XRESOLUTION + Math.max( 0, -dx ),
+        shifted, row*XRESOLUTION + Math.max( 0, dx ), aWidth );
+    }
+    return shifted;
   }
-     
+  
   public BufferedImage getImage()
   {
     return image;
   }
 
+  /**
+   * Holds value of property colorMapping.
+   */
+  private volatile ColorMapping colorMapping = ColorMapping.DEFAULT;
+  
+  /**
+   * Incremented each time the color mapping changes the colors of the
+   *  pixels (see getColorVersion()).
+   */
+  private volatile int colorVersion;
+
+  /**
+   * Getter for property colorMapping.
+   * @return Value of property colorMapping.
+   */
+  public ColorMapping getColorMapping()
+  {
+
+    return this.colorMapping;
+  }
+
+  /**
+   * Setter for property colorMapping. If the palette changes the image
+   *  gets a new color model (sharing the pixels of the previous image),
+   *  but the colors of the pixels are not computed again (see
+   *  updateColors()).
+   * @param colorMapping New value of property colorMapping.
+   */
+  public void setColorMapping(ColorMapping colorMapping)
+  {
+
+    if ( colorMapping.getPalette() != this.colorMapping.getPalette() )
+      image = new BufferedImage( colorMapping.getPalette().getColorModel(),
+        image.getRaster(), false, null );
+    boolean sameIndexes = colorMapping.hasSameIndexes( this.colorMapping );
+    this.colorMapping = colorMapping;
+    // Workers read the version before the mapping, so a worker that sees
+    // the new version sees the new mapping too
+    if ( ! sameIndexes )
+      colorVersion++;
+  }
+  
+  /**
+   * Returns the version of the color mapping: workers may write colors
+   *  with the previous mapping while the mapping is changed, so the colors
+   *  written by a worker have to be computed again if the version has
+   *  changed since.
+   * @return the version of the color mapping.
+   */
+  public int getColorVersion()
+  {
+    return colorVersion;
+  }
+
   /**
    * Holds value of property parallelizationRate.
    */
@@ -146,4 +1008,173 @@ public class MandelbrotModel
 
     this.parallelizationRate = parallelizationRate;
   }
+
+  /**
+   * Holds value of property kernelType.
+   */
+  private EscapeTimeKernel.Type kernelType;
+
+  /**
+   * Getter for property kernelType.
+   * @return Value of property kernelType.
+   */
+  public EscapeTimeKernel.Type getKernelType()
+  {
+
+    return this.kernelType;
+  }
+
+  /**
+   * Setter for property kernelType.
+   * @param kernelType New value of property kernelType.
+   */
+  public void setKernelType(EscapeTimeKernel.Type kernelType)
+  {
+
+    this.kernelType = kernelType;
+  }
+
+  /**
+   * Holds value of property automaticPrecision.
+   */
+  private boolean automaticPrecision;
+
+  /**
+   * Getter for property automaticPrecision.
+   * @return Value of property automaticPrecision.
+   */
+  public boolean isAutomaticPrecision()
+  {
+
+    return this.automaticPrecision;
+  }
+
+  /**
+   * Setter for property automaticPrecision. If true, the cheapest kernel
+   *  precise enough is chosen for each tile, and kernelType is the kernel
+   *  used where doubles are enough.
+   * @param automaticPrecision New value of property automaticPrecision.
+   */
+  public void setAutomaticPrecision(boolean automaticPrecision)
+  {
+
+    this.automaticPrecision = automaticPrecision;
+  }
+
+  /**
+   * Returns the type of kernel used to compute the image (the one with the
+   *  highest precision, if tiles use different kernels).
+   * @return the type of kernel used to compute the image.
+   */
+  public EscapeTimeKernel.Type getKernelTypeInUse()
+  {
+    if ( ! automaticPrecision )
+      return kernelType;
+    return EscapeTimeKernel.getType( EscapeTimeKernel.getRequiredPrecision( bounds,
+      bounds.width / XRESOLUTION, bounds.height / YRESOLUTION ), kernelType );
+  }
+
+  /**
+   * Holds value of property rendererType.
+   */
+  private TileRenderer.Type rendererType;
+
+  /**
+   * Getter for property rendererType.
+   * @return Value of property rendererType.
+   */
+  public TileRenderer.Type getRendererType()
+  {
+
+    return this.rendererType;
+  }
+
+  /**
+   * Setter for property rendererType.
+   * @param rendererType New value of property rendererType.
+   */
+  public void setRendererType(TileRenderer.Type rendererType)
+  {
+
+    this.rendererType = rendererType;
+  }
+
+  /**
+   * Holds value of property tileProofs.
+   */
+  private boolean tileProofs;
+
+  /**
+   * Getter for property tileProofs.
+   * @return Value of property tileProofs (true if workers try to prove
+   *  that all the points of a tile have the same number of iterations
+   *  before computing them).
+   */
+  public boolean isTileProofs()
+  {
+
+    return this.tileProofs;
+  }
+
+  /**
+   * Setter for property tileProofs.
+   * @param tileProofs New value of property tileProofs.
+   */
+  public void setTileProofs(boolean tileProofs)
+  {
+
+    this.tileProofs = tileProofs;
+  }
+
+  /**
+   * Holds value of property snapZoom.
+   */
+  private boolean snapZoom;
+
+  /**
+   * Getter for property snapZoom.
+   * @return Value of property snapZoom (true if zooms close to 2x, 3x or
+   *  4x are snapped to pixel aligned zooms, so the pixels already computed
+   *  can be reused).
+   */
+  public boolean isSnapZoom()
+  {
+
+    return this.snapZoom;
+  }
+
+  /**
+   * Setter for property snapZoom.
+   * @param snapZoom New value of property snapZoom.
+   */
+  public void setSnapZoom(boolean snapZoom)
+  {
+
+    this.snapZoom = snapZoom;
+  }
+
+  /**
+   * Holds value of property tileCache.
+   */
+  private TileCache tileCache;
+
+  /**
+   * Getter for property tileCache.
+   * @return Value of property tileCache.
+   */
+  public TileCache getTileCache()
+  {
+
+    return this.tileCache;
+  }
+
+  /**
+   * Setter for property tileCache.
+   * @param tileCache New value of property tileCache.
+   */
+  public void setTileCache(TileCache tileCache)
+  {
+
+    this.tileCache = tileCache;
+  }
 }
@@ -20,7 +20,11 @@
  */
 package org.jdesktop.swingworker.demos.mandelbrot.model;
 import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import javax.swing.SwingWorker;
 
 
@@ -33,20 +37,77 @@ import javax.swing.SwingWorker;
  */
 public class MandelbrotSwingWorker
   extends SwingWorker<MandelbrotModel, ColorsForAMandelbrotColumn>
+  implements TileRenderer.Context
 {
   private MandelbrotModel model;
-  private Rectangle userArea;
+  private TileScheduler scheduler;
+  private int workerIndex;
+  /**
+   * The kernel that computes the number of iterations of the points of the
+   *  current tile.
+   */
+  private EscapeTimeKernel kernel;
+  /**
+   * The kernels of each type, created when first needed.
+   */
+  private EscapeTimeKernel[] kernels = new EscapeTimeKernel[ EscapeTimeKernel.Type.values().length ];
+  /**
+   * The renderer that decides which points of a tile are computed.
+   */
+  private TileRenderer renderer;
+  /**
+   * Proves tiles whose points all have the same number of iterations, or
+   *  null if tiles are not to be proven.
+   */
+  private IntervalTileProver prover;
+  private double xScale;
+  private double yScale;
+  /**
+   * The sum of the indexes of the rows mirroring each other, or -1 (see
+   *  MandelbrotModel.getMirrorRowSum()).
+   */
+  private int mirrorRowSum;
+  private Rectangle computedArea;
+  /**
+   * The area published since the last piece of the image was sent to the
+   *  Swing thread (empty if none). Areas published one after another are
+   *  merged while they make up a rectangle, so usually a whole tile is
+   *  sent at once.
+   */
+  private Rectangle pendingArea = new Rectangle();
+  /**
+   * The version of the color mapping of the model before the colors of the
+   *  pending area were written.
+   */
+  private int pendingColorVersion;
+  /**
+   * The pieces of the image already processed by the Swing thread, sent
+   *  again instead of creating new ones.
+   */
+  private ConcurrentLinkedQueue<ColorsForAMandelbrotColumn> recycledPieces =
+    new ConcurrentLinkedQueue<ColorsForAMandelbrotColumn>();
+  /**
+   * The results for the rows mirroring the rows published, and for the
+   *  tiles proven, reused from tile to tile.
+   */
+  private int [] mirrorIterations = new int[0];
+  private int [] mirrorPeriods = new int[0];
+  private int [] provenIterations = new int[0];
+  private int [] provenPeriods = new int[0];
   /**
    * Creates a new instance of MandelbrotSwingWorker.
    * @param anInputModel the model (containing the region of the complex plane
    *  to compute, the maximum number of iterations, etc.) whose image is
    *  updated.
-   * @param aRegion a region of the user space to analyze.
+   * @param aScheduler the scheduler this worker pulls tiles from.
+   * @param aWorkerIndex the index of this worker in the scheduler.
    */
-  public MandelbrotSwingWorker( MandelbrotModel anInputModel, Rectangle anUserArea )
+  public MandelbrotSwingWorker( MandelbrotModel anInputModel, TileScheduler aScheduler, int aWorkerIndex )
   {
     model = anInputModel;
-    userArea = anUserArea;
+    scheduler = aScheduler;
+    workerIndex = aWorkerIndex;
+    renderer = TileRenderer.create( model.getRendererType() );
   }
   
   
@@ -57,26 +118,38 @@ public class MandelbrotSwingWorker
   
   /**
    * This is invoked in the Swing thread.
-   * This method receives a set of pieces of the image and updates the colors
-   *  of the image.
+   * This method receives a set of pieces of the image, whose colors have
+   *  been written in the image by the worker already, and tells listeners
+   *  which area of the image has to be repainted (with a "dirty" property
+   *  change event, whose new value is the area).
    * @param colorsForAMandelbrotColumn a set of columns of the diagram. Each
-   *  object contains a column index and a set of colors for each one of the
-   *  pixels of the column. The color of the pixels correspond to the number of
-   *  iterations.
+   *  object contains a column index, a row index and the size of the piece.
    */
   @Override
   protected void process(List<ColorsForAMandelbrotColumn> colorsForAMandelbrotColumn)
   {
     try
     {
+      Rectangle dirty = null;
       for( ColorsForAMandelbrotColumn columnColors : colorsForAMandelbrotColumn )
       {
-        // Update the raster for this column
         int column = columnColors.getColumnIndex();
         int row = columnColors.getRowIndex();
-        int [] colors = columnColors.getColors();
-        model.updateColumnData( column, row, colors );
+        int width = columnColors.getWidth();
+        int height = columnColors.getHeight();
+        // The colors have to be computed again if the color mapping
+        // changed while the worker was writing them
+        if ( columnColors.getColorVersion() != model.getColorVersion() )
+          model.updateColors( column, row, width, height );
+        if ( dirty == null )
+          dirty = new Rectangle( column, row, width, height );
+        else
+          dirty.add( new Rectangle( column, row, width, height ) );
+        // The worker can send this chunk again
+        recycledPieces.offer( columnColors );
       }
+      if ( dirty != null )
+        firePropertyChange( "dirty", null, dirty );
     }
     catch( Exception e )
     {
@@ -84,6 +157,291 @@ public class MandelbrotSwingWorker
     }
   }
   
+  public EscapeTimeKernel getKernel()
+  {
+    return kernel;
+  }
+  
+  public double getX( int aColumn )
+  {
+    // Points are computed from their pixel index (and not accumulated)
+    // so they don't depend on how the image is cut in tiles.
+    if ( kernel.isRelative() )
+      return (aColumn - MandelbrotModel.XRESOLUTION/2) * xScale;
+    return model.getBounds().x + aColumn * xScale;
+  }
+  
+  public double getY( int aRow )
+  {
+    if ( kernel.isRelative() )
+      return (aRow - MandelbrotModel.YRESOLUTION/2) * yScale;
+    return model.getBounds().y + aRow * yScale;
+  }
+  
+  /**
+   * Publishes the results for an area of the image (these will be processed
+   *  in the "process()" method).
+   * This method is invoked in a worker thread.
+   */
+  public void publish( Rectangle anArea, int[] iterations, int[] periods )
+  {
+    publish( anArea, iterations, periods, anArea.width * anArea.height );
+  }
+  
+  /**
+   * Publishes the results for an area of the image, only some of which have
+   *  been computed.
+   * This method is invoked in a worker thread.
+   */
+  public void publish( Rectangle anArea, int[] iterations, int[] periods, int aComputedCount )
+  {
+    // Once the image is retired it may be showing another region already,
+    // so the tile is left unfinished
+    if ( ! scheduler.beginWrite() )
+      throw new CancellationException();
+    try
+    {
+      // The numbers of iterations are kept as soon as computed, so renderers
+      // can reuse them, and the colors are written in the image (the Swing
+      // thread just repaints it)
+      addPendingArea( anArea.x, anArea.y, anArea.width, anArea.height );
+      model.updateIterations( anArea, iterations, periods );
+      model.updateColors( anArea.x, anArea.y, anArea.width, anArea.height );
+      scheduler.pixelsDone( aComputedCount );
+      if ( mirrorRowSum >= 0 )
+        publishMirror( anArea, iterations, periods );
+    }
+    finally
+    {
+      scheduler.endWrite();
+    }
+  }
+  
+  /**
+   * Adds an area to the area to send to the Swing thread, sending the
+   *  pending area first if both don't make up a rectangle. This is invoked
+   *  before writing the colors of the area.
+   * This method is invoked in a worker thread.
+   */
+  private void addPendingArea( int x, int y, int aWidth, int aHeight )
+  {
+    Rectangle pending = pendingArea;
+    if ( pending.isEmpty() )
+    {
+      pending.setBounds( x, y, aWidth, aHeight );
+      pendingColorVersion = model.getColorVersion();
+    }
+    else if ( x == pending.x && aWidth == pending.width
+      && ( y == pending.y + pending.height || y + aHeight == pending.y ) )
+    {
+      pending.setBounds( x, Math.min( y, pending.y ), aWidth, pending.height + aHeight );
+    }
+    else if ( y == pending.y && aHeight == pending.height
+      && ( x == pending.x + pending.width || x + aWidth == pending.x ) )
+    {
+      pending.setBounds( Math.min( x, pending.x ), y, pending.width + aWidth, aHeight );
+    }
+    else if ( ! pending.contains( x, y, aWidth, aHeight ) )
+    {
+      flushPendingArea();
+      pending.setBounds( x, y, aWidth, aHeight );
+      pendingColorVersion = model.getColorVersion();
+    }
+  }
+  
+  /**
+   * Sends the pending area to the Swing thread (to be processed in the
+   *  "process()" method), reusing a piece already processed if possible.
+   * This method is invoked in a worker thread.
+   */
+  private void flushPendingArea()
+  {
+    if ( pendingArea.isEmpty() )
+      return;
+    ColorsForAMandelbrotColumn columnColors = recycledPieces.poll();
+    if ( columnColors == null )
+      columnColors = new ColorsForAMandelbrotColumn();
+    columnColors.setColumnIndex( pendingArea.x );
+    columnColors.setRowIndex( pendingArea.y );
+    columnColors.setWidth( pendingArea.width );
+    columnColors.setHeight( pendingArea.height );
+    columnColors.setColorVersion( pendingColorVersion );
+    publish( columnColors );
+    pendingArea.setBounds( 0, 0, 0, 0 );
+  }
+  
+  /**
+   * Publishes the rows mirroring the rows of an area, if they're not
+   *  computed (see MandelbrotModel.getComputedArea()).
+   * This method is invoked in a worker thread.
+   */
+  private void publishMirror( Rectangle anArea, int[] iterations, int[] periods )
+  {
+    Rectangle computed = computedArea;
+    int first = Integer.MAX_VALUE;
+    int last = Integer.MIN_VALUE;
+    for( int row = anArea.y; row < anArea.y + anArea.height; row++ )
+    {
+      int mirror = mirrorRowSum - row;
+      if ( mirror >= 0 && mirror < MandelbrotModel.YRESOLUTION
+        && ( mirror < computed.y || mirror >= computed.y + computed.height ) )
+      {
+        first = Math.min( first, mirror );
+        last = Math.max( last, mirror );
+      }
+    }
+    if ( first > last )
+      return;
+    
+    Rectangle mirrorArea = new Rectangle( anArea.x, first, anArea.width, last-first+1 );
+    if ( mirrorIterations.length < mirrorArea.width * mirrorArea.height )
+    {
+      mirrorIterations = new int[ mirrorArea.width * mirrorArea.height ];
+      mirrorPeriods = new int[ mirrorArea.width * mirrorArea.height ];
+    }
+    for( int iy = 0; iy < mirrorArea.height; iy++ )
+    {
+      int source = (mirrorRowSum - (first+iy) - anArea.y) * anArea.width;
+      System.arraycopy( iterations, source, mirrorIterations, iy*mirrorArea.width, mirrorArea.width );
+      System.arraycopy( periods, source, mirrorPeriods, iy*mirrorArea.width, mirrorArea.width );
+    }
+    addPendingArea( mirrorArea.x, mirrorArea.y, mirrorArea.width, mirrorArea.height );
+    model.updateIterations( mirrorArea, mirrorIterations, mirrorPeriods );
+    model.updateColors( mirrorArea.x, mirrorArea.y, mirrorArea.width, mirrorArea.height );
+  }
+  
+  public void pixelsGuessed( int aCount )
+  {
+    scheduler.pixelsGuessed( aCount );
+  }
+  
+  public void pixelsReused( int aCount )
+  {
+    scheduler.pixelsReused( aCount );
+  }
+  
+  public boolean isKnown( int aColumn, int aRow )
+  {
+    return model.isKnown( aColumn, aRow );
+  }
+  
+  public int getKnownIterations( int aColumn, int aRow )
+  {
+    return model.getKnownIterations( aColumn, aRow );
+  }
+  
+  public int getKnownPeriod( int aColumn, int aRow )
+  {
+    return model.getKnownPeriod( aColumn, aRow );
+  }
+  
+  public int getOrbitIterations( int aColumn, int aRow )
+  {
+    return model.getOrbitIterations( aColumn, aRow );
+  }
+  
+  public double getOrbitX( int aColumn, int aRow )
+  {
+    return model.getOrbitX( aColumn, aRow );
+  }
+  
+  public double getOrbitY( int aColumn, int aRow )
+  {
+    return model.getOrbitY( aColumn, aRow );
+  }
+  
+  public void retainOrbit( int aColumn, int aRow, int anIterations, double x, double y )
+  {
+    if ( ! scheduler.beginWrite() )
+      throw new CancellationException();
+    try
+    {
+      model.retainOrbit( aColumn, aRow, anIterations, x, y );
+    }
+    finally
+    {
+      scheduler.endWrite();
+    }
+  }
+  
+  public int getIterations( int aColumn, int aRow )
+  {
+    return model.getIterations( aColumn, aRow );
+  }
+  
+  public int getPeriod( int aColumn, int aRow )
+  {
+    return model.getPeriod( aColumn, aRow );
+  }
+  
+  public void schedule( Rectangle aTile )
+  {
+    scheduler.schedule( workerIndex, aTile );
+  }
+  
+  public void scheduleNextPass( Rectangle aTile )
+  {
+    scheduler.scheduleNextPass( aTile );
+  }
+  
+  public int getPass()
+  {
+    return scheduler.getPass();
+  }
+  
+  /**
+   * Tries to prove that all the points of a tile have the same number of
+   *  iterations, and publishes the tile if so.
+   * This method is invoked in a worker thread.
+   * @return true if the tile has been proven (and published).
+   */
+  private boolean proveTile( Rectangle aTile )
+  {
+    Rectangle2D.Double bounds = model.getBounds();
+    int nIterations = prover.getIterations(
+      bounds.x + aTile.x * xScale, bounds.x + (aTile.x + aTile.width-1) * xScale,
+      bounds.y + aTile.y * yScale, bounds.y + (aTile.y + aTile.height-1) * yScale );
+    if ( nIterations < 0 )
+      return false;
+    int count = aTile.width * aTile.height;
+    if ( provenIterations.length < count )
+    {
+      provenIterations = new int[ count ];
+      provenPeriods = new int[ count ];
+    }
+    Arrays.fill( provenIterations, 0, count, nIterations );
+    Arrays.fill( provenPeriods, 0, count, prover.getPeriod() );
+    publish( aTile, provenIterations, provenPeriods );
+    scheduler.tileProven( count );
+    return true;
+  }
+  
+  /**
+   * Returns the kernel to compute a tile: the cheapest kernel that can tell
+   *  apart the points of the tile (unless the kernel is fixed).
+   */
+  private EscapeTimeKernel getKernelFor( Rectangle aTile )
+  {
+    EscapeTimeKernel.Type type = model.getKernelType();
+    if ( model.isAutomaticPrecision() )
+    {
+      Rectangle2D.Double region = new Rectangle2D.Double(
+        model.getBounds().x + aTile.x * xScale, model.getBounds().y + aTile.y * yScale,
+        aTile.width * xScale, aTile.height * yScale );
+      type = EscapeTimeKernel.getType(
+        EscapeTimeKernel.getRequiredPrecision( region, xScale, yScale ), type );
+    }
+    EscapeTimeKernel tileKernel = kernels[ type.ordinal() ];
+    if ( tileKernel == null )
+    {
+      tileKernel = EscapeTimeKernel.create( type );
+      tileKernel.setUp( model );
+      tileKernel.setScheduler( scheduler );
+      kernels[ type.ordinal() ] = tileKernel;
+    }
+    return tileKernel;
+  }
+  
   /**
    * Updates the image in the input mandelbrot model.
    * This method is invoked in a worker thread.
@@ -98,55 +456,70 @@ public class MandelbrotSwingWorker
     try
     {
       // Some simple maths on the region to analyze...
-      // TODO: ESTA AQUI EL MEOLLO EN DIVIDIR EL TEMA
-      double xScale =
+      xScale =
         ( model.getBounds().width ) / MandelbrotModel.XRESOLUTION ;
-      double yScale =
+      yScale =
         ( model.getBounds().height ) / MandelbrotModel.YRESOLUTION ;
       
-      double x = model.getBounds().x + userArea.x * xScale;
-      double y = model.getBounds().y + userArea.y * yScale;
+      mirrorRowSum = model.getMirrorRowSum();
+      computedArea = model.getComputedArea();
+      if ( model.isTileProofs() )
+        prover = new IntervalTileProver( model.getMaxIterations() );
       
-      int progress = 0;
+      int lastProgress = 0;
+      int lastPass = 0;
+      Rectangle userArea;
       
-      // For each column "ix"...
-      for( int ix = 0; ix < userArea.width; ix++ )
+      // For each tile we can get from the scheduler...
+      while( (userArea = scheduler.nextTile( workerIndex )) != null )
       {
-        // Create a new "chunk" of information with colors for this column...
-        ColorsForAMandelbrotColumn columnColors = new ColorsForAMandelbrotColumn();
-        columnColors.setColors( new int[ userArea.height ] );
-        columnColors.setColumnIndex( userArea.x+ix );
-        columnColors.setRowIndex( userArea.y );
-        y = model.getBounds().y + userArea.y * yScale;
-        // For each row "iy"...
-        for( int iy = 0; iy<userArea.height; iy++ )
+        if ( isCancelled() || scheduler.isCancelled() )
+        {
+          scheduler.tileCancelled( userArea );
+          scheduler.tileDone( workerIndex );
+          return model;
+        }
+        
+        // Tell listeners when a pass over the image is done, so they can
+        // show the (coarse) image computed so far
+        int pass = scheduler.getPass();
+        if ( pass != lastPass )
+        {
+          firePropertyChange( "pass", lastPass, pass );
+          lastPass = pass;
+        }
+        
+        try
+        {
+          kernel = getKernelFor( userArea );
+          // Tiles of further passes were not proven in the first one
+          if ( prover == null || pass > 0 || ! proveTile( userArea ) )
+            renderer.render( userArea, this );
+        }
+        catch( CancellationException ce )
+        {
+          // The kernel has stopped in the middle of the tile, the tile is
+          // computed again if the region is computed again
+          scheduler.tileCancelled( userArea );
+          return model;
+        }
+        finally
         {
-          // Compute the number of iterations needed for convergence at this point.
-          int nIterations = getIterationsForPoint( x, y );
-          // Update the colors for this column and row
-          columnColors.getColors()[ iy ] = (nIterations % model.getMaxIterations());
-          y += yScale;
+          // The whole tile (or what's been published of it) is sent to
+          // the Swing thread at once
+          flushPendingArea();
+          scheduler.tileDone( workerIndex );
         }
-        // Publish this column colors (these will be processed in the "process()" method.
-        publish( columnColors );
-        x += xScale;
         
         // Update progress and notify PropertyChangeListeners...
-        progress = ((int) ((1+ix)*100.0/userArea.width));
-        if ( 0 == progress%5 )
+        int progress = scheduler.getProgress();
+        if ( progress/5 != lastProgress/5 )
         {
+          lastProgress = progress;
           setProgress( progress  );
-          // This is important!! I'll comment on this later.
-          try
-          {
-            Thread.sleep(1L);
-          }
-          catch( InterruptedException ie )
-          {
-            return model;
-          }
         }
       }
+      setProgress( scheduler.getProgress() );
       return model;
     }
     catch( Exception e )
@@ -156,33 +529,4 @@ public class MandelbrotSwingWorker
     }
   }
   
-  /**
-   * Given a point on the complex plane this method computes the
-   *  number of iterations needed for divergenge.
-   * @param a the real part of the complex point.
-   * @param b the imaginary part of the complx point.
-   * @return the number of iterations needed for divergence.
-   */
-  private int getIterationsForPoint( double a, double b )
-  {
-    double x = a;
-    double y = b;
-    double rho2=0.0f;
-    int nIterations = 0;
-    
-    // rho2<4.0 means that rho<2.0 because if rho>=2.0 then there's divergence.
-    for( nIterations=0;
-    rho2 < 4.0f && nIterations<model.getMaxIterations();
-    nIterations ++ )
-    {
-      double xnew = x*x - y*y + a;
-      double ynew = 2*x*y + b;
-      x=xnew;
-      y=ynew;
-      rho2 = x*x + y*y;
-    }
-    
-    return nIterations;
-  }
-  
 }
@@ -0,0 +1,138 @@
+/*
+ * $Id $
+ *
+ * Copyright 2005 Sun Microsystems
+ *
+ * Initially developed by Antonio Vieiro (vieiro@dev.java.net).
+ *
+ * This software is released under the Common Development and Distribution
+ *  License, version 1.0. See http://www.opensource.org/licenses/cddl1.php
+ *  for details.
+ *
+ * This software is distributed on an "AS IS" basis, without warranty of any
+ *  kind, either express or implied.
+ *
+ * All this stuff basically means that you can use this source code in your
+ *  software, either proprietary or not. See
+ *  http://www.opensolaris.org/os/about/faq/licensing_faq/ for interesting
+ *  information about the CDDL license.
+ *
+ */
+package org.jdesktop.swingworker.demos.mandelbrot.model;
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * MarianiSilverTileRenderer computes the border of a tile only. If all the
+ *  points in the border have the same number of iterations then the whole
+ *  tile is filled with that number of iterations (the set is connected, so
+ *  nothing different can be inside). Otherwise the inside of the tile is
+ *  split in four smaller tiles, that are scheduled so any worker can pick
+ *  them up.
+ * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
+ * @version $Revision: $
+ */
+class MarianiSilverTileRenderer
+  extends TileRenderer
+{
+  /**
+   * Tiles narrower or shorter than this are computed point by point.
+   */
+  static final int MIN_SIZE = 6;
+
+  @Override
+  public void render( Rectangle aTile, Context aContext )
+  {
+    int w = aTile.width;
+    int h = aTile.height;
+    if ( w < MIN_SIZE || h < MIN_SIZE )
+    {
+      ensureTileCapacity( w * h );
+      computeArea( aTile, aContext, tileIterations, tilePeriods );
+      aContext.publish( aTile, tileIterations, tilePeriods );
+      return;
+    }
+
+    // The border: top row, bottom row, left column and right column
+    // (the columns without the corners)
+    int count = 2*w + 2*(h-2);
+    ensureCapacity( count );
+    int k = 0;
+    for( int ix=0; ix<w; ix++, k++ )
+    {
+      setPoint( k, aTile.x+ix, aTile.y, aContext );
+    }
+    for( int ix=0; ix<w; ix++, k++ )
+    {
+      setPoint( k, aTile.x+ix, aTile.y+h-1, aContext );
+    }
+    for( int iy=1; iy<h-1; iy++, k++ )
+    {
+      setPoint( k, aTile.x, aTile.y+iy, aContext );
+    }
+    for( int iy=1; iy<h-1; iy++, k++ )
+    {
+      setPoint( k, aTile.x+w-1, aTile.y+iy, aContext );
+    }
+    computePoints( count, aContext );
+
+    boolean uniform = true;
+    boolean samePeriod = true;
+    for( int i=1; i<count; i++ )
+    {
+      uniform &= columnIterations[i] == columnIterations[0];
+      samePeriod &= columnPeriods[i] == columnPeriods[0];
+    }
+
+    if ( uniform )
+    {
+      // Fill the tile, and then copy the border we've already computed
+      ensureTileCapacity( w * h );
+      int [] iterations = tileIterations;
+      int [] periods = tilePeriods;
+      Arrays.fill( iterations, 0, w*h, columnIterations[0] );
+      Arrays.fill( periods, 0, w*h, samePeriod ? columnPeriods[0] : 0 );
+      System.arraycopy( columnPeriods, 0, periods, 0, w );
+      System.arraycopy( columnPeriods, w, periods, (h-1)*w, w );
+      for( int iy=1; iy<h-1; iy++ )
+      {
+        periods[ iy*w ] = columnPeriods[ 2*w + iy-1 ];
+        periods[ iy*w + w-1 ] = columnPeriods[ 2*w + h-2 + iy-1 ];
+      }
+      aContext.publish( aTile, iterations, periods );
+      aContext.pixelsGuessed( w*h - count );
+      return;
+    }
+
+    // Publish the border...
+    publishBorder( new Rectangle( aTile.x, aTile.y, w, 1 ), 0, aContext );
+    publishBorder( new Rectangle( aTile.x, aTile.y+h-1, w, 1 ), w, aContext );
+    publishBorder( new Rectangle( aTile.x, aTile.y+1, 1, h-2 ), 2*w, aContext );
+    publishBorder( new Rectangle( aTile.x+w-1, aTile.y+1, 1, h-2 ), 2*w+h-2, aContext );
+
+    // ... and split the inside in four
+    int x = aTile.x+1;
+    int y = aTile.y+1;
+    int w1 = (w-2)/2;
+    int h1 = (h-2)/2;
+    aContext.schedule( new Rectangle( x, y, w1, h1 ) );
+    aContext.schedule( new Rectangle( x+w1, y, w-2-w1, h1 ) );
+    aContext.schedule( new Rectangle( x, y+h1, w1, h-2-h1 ) );
+    aContext.schedule( new Rectangle( x+w1, y+h1, w-2-w1, h-2-h1 ) );
+  }
+
+  /**
+   * Publishes a piece of the border computed by the kernel.
+   * @param anArea the piece of the border (a row or a column).
+   * @param anOffset where the results for the piece start.
+   */
+  private void publishBorder( Rectangle anArea, int anOffset, Context aContext )
+  {
+    int length = anArea.width * anArea.height;
+    ensureTileCapacity( length );
+    System.arraycopy( columnIterations, anOffset, tileIterations, 0, length );
+    System.arraycopy( columnPeriods, anOffset, tilePeriods, 0, length );
+    aContext.publish( anArea, tileIterations, tilePeriods );
+  }
+
+}
@@ -0,0 +1,381 @@
+/*
+ * $Id $
+ *
+ * Copyright 2005 Sun Microsystems
+ *
+ * Initially developed by Antonio Vieiro (vieiro@dev.java.net).
+ *
+ * This software is released under the Common Development and Distribution
+ *  License, version 1.0. See http://www.opensource.org/licenses/cddl1.php
+ *  for details.
+ *
+ * This software is distributed on an "AS IS" basis, without warranty of any
+ *  kind, either express or implied.
+ *
+ * All this stuff basically means that you can use this source code in your
+ *  software, either proprietary or not. See
+ *  http://www.opensolaris.org/os/about/faq/licensing_faq/ for interesting
+ *  information about the CDDL license.
+ *
+ */
+package org.jdesktop.swingworker.demos.mandelbrot.model;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * NavigationHistory keeps the viewports visited, so the user can go back
+ *  (and forward again) after zooming or moving the image.
+ * Each entry keeps a snapshot of the number of iterations (and periods) of
+ *  its image, compressed, so going back doesn't compute anything. Snapshots
+ *  take up to a given number of bytes: when full, the snapshots of the
+ *  entries farthest from the current one are dropped. Every entry keeps a
+ *  small preview of its image too, shown (scaled) while an image whose
+ *  snapshot was dropped is computed again.
+ * This class is not thread safe (it's used in the event dispatch thread).
+ * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
+ * @version $Revision: $
+ */
+public class NavigationHistory
+{
+  /**
+   * The maximum number of entries kept.
+   */
+  public static final int MAX_ENTRIES = 100;
+
+  /**
+   * The width (and height) of the image divided by the width (and height)
+   *  of the previews.
+   */
+  private static final int PREVIEW_SCALE = 4;
+
+  /**
+   * A viewport visited.
+   */
+  public static final class Entry
+  {
+    private final Viewport viewport;
+    private int maxIterations;
+    /**
+     * The number of iterations and periods of the image, compressed, or
+     *  null if not taken (or dropped).
+     */
+    private byte [] snapshot;
+    /**
+     * The colors of one pixel every PREVIEW_SCALE columns and rows, or null
+     *  if not taken.
+     */
+    private byte [] preview;
+
+    private Entry( Viewport aViewport )
+    {
+      viewport = aViewport;
+    }
+
+    public Viewport getViewport()
+    {
+      return viewport;
+    }
+
+    /**
+     * Tells if the image of this entry can be restored without computing it.
+     * @return true if this entry has a snapshot.
+     */
+    public boolean hasSnapshot()
+    {
+      return snapshot != null;
+    }
+  }
+
+  private List<Entry> entries = new ArrayList<Entry>();
+  /**
+   * The index of the current entry, or -1 if none.
+   */
+  private int current = -1;
+  private long size;
+  private long budget;
+
+  /**
+   * Creates a new instance of NavigationHistory.
+   * @param aBudget the maximum number of bytes taken by the snapshots.
+   */
+  public NavigationHistory( long aBudget )
+  {
+    budget = aBudget;
+  }
+
+  /**
+   * Creates a history with the budget specified by the "mandelbrot.history"
+   *  system property, in megabytes (32 if missing or wrong). A budget of
+   *  zero keeps previews only.
+   * @return a new history.
+   */
+  public static NavigationHistory createDefault()
+  {
+    long megabytes;
+    try
+    {
+      megabytes = Long.parseLong( System.getProperty( "mandelbrot.history", "32" ) );
+    }
+    catch( NumberFormatException e )
+    {
+      megabytes = 32;
+    }
+    return new NavigationHistory( Math.max( 0, megabytes ) * 1024 * 1024 );
+  }
+
+  /**
+   * Adds a viewport after the current entry (dropping the entries after
+   *  it), and makes it the current one.
+   * @param aViewport the viewport visited.
+   */
+  public void visit( Viewport aViewport )
+  {
+    while( entries.size() > current + 1 )
+      remove( entries.size() - 1 );
+    entries.add( new Entry( aViewport ) );
+    if ( entries.size() > MAX_ENTRIES )
+      remove( 0 );
+    current = entries.size() - 1;
+  }
+
+  private void remove( int anIndex )
+  {
+    Entry entry = entries.remove( anIndex );
+    if ( entry.snapshot != null )
+      size -= entry.snapshot.length;
+  }
+
+  /**
+   * Takes a snapshot (and a preview) of the image of a model, if it shows
+   *  the viewport of the current entry.
+   * @param aModel the model, with all of its pixels computed.
+   */
+  public void record( MandelbrotModel aModel )
+  {
+    Entry entry = getCurrent();
+    if ( entry == null || entry.viewport != aModel.getViewport() )
+      return;
+    if ( entry.snapshot != null )
+      size -= entry.snapshot.length;
+    entry.snapshot = null;
+    entry.maxIterations = aModel.getMaxIterations();
+    entry.preview = createPreview( aModel );
+    byte [] snapshot = createSnapshot( aModel );
+    if ( snapshot.length <= budget )
+    {
+      entry.snapshot = snapshot;
+      size += snapshot.length;
+      evict();
+    }
+  }
+
+  /**
+   * Drops the snapshots of the entries farthest from the current one until
+   *  the snapshots fit in the budget.
+   */
+  private void evict()
+  {
+    for( int distance = entries.size(); size > budget && distance > 0; distance-- )
+    {
+      drop( current - distance );
+      drop( current + distance );
+    }
+  }
+
+  private void drop( int anIndex )
+  {
+    if ( anIndex < 0 || anIndex >= entries.size() || size <= budget )
+      return;
+    Entry entry = entries.get( anIndex );
+    if ( entry.snapshot != null )
+    {
+      size -= entry.snapshot.length;
+      entry.snapshot = null;
+    }
+  }
+
+  public boolean canGoBack()
+  {
+    return current > 0;
+  }
+
+  public boolean canGoForward()
+  {
+    return current < entries.size() - 1;
+  }
+
+  /**
+   * Makes the entry before the current one the current one.
+   * @return the new current entry.
+   */
+  public Entry back()
+  {
+    current--;
+    return getCurrent();
+  }
+
+  /**
+   * Makes the entry after the current one the current one.
+   * @return the new current entry.
+   */
+  public Entry forward()
+  {
+    current++;
+    return getCurrent();
+  }
+
+  /**
+   * Returns the current entry.
+   * @return the current entry, or null if no viewport was visited yet.
+   */
+  public Entry getCurrent()
+  {
+    return current < 0 ? null : entries.get( current );
+  }
+
+  /**
+   * Shows the image of an entry in a model, whose viewport must be the
+   *  viewport of the entry already.
+   * If the entry has a snapshot taken with the maximum number of
+   *  iterations of the model, the number of iterations and periods of the
+   *  pixels are restored. If not, its preview is shown (scaled) instead,
+   *  and the image has to be computed.
+   * @param anEntry the entry.
+   * @param aModel the model.
+   * @return true if the snapshot was restored, false if the image has to
+   *  be computed.
+   */
+  public boolean restore( Entry anEntry, MandelbrotModel aModel )
+  {
+    if ( anEntry.snapshot != null && anEntry.maxIterations == aModel.getMaxIterations() )
+    {
+      int [] iterations = new int[ MandelbrotModel.XRESOLUTION * MandelbrotModel.YRESOLUTION ];
+      int [] periods = new int[ iterations.length ];
+      if ( inflate( anEntry.snapshot, iterations, periods ) )
+      {
+        aModel.restoreImage( iterations, periods );
+        return true;
+      }
+    }
+    if ( anEntry.preview != null )
+      showPreview( anEntry.preview, aModel );
+    return false;
+  }
+
+  /**
+   * Returns the number of bytes taken by the snapshots.
+   * @return the size of the snapshots.
+   */
+  public long getSize()
+  {
+    return size;
+  }
+
+  public long getBudget()
+  {
+    return budget;
+  }
+
+  private static byte [] createSnapshot( MandelbrotModel aModel )
+  {
+    // Big endian ints, the iterations of all the pixels first and then
+    // their periods
+    byte [] row = new byte[ 4 * MandelbrotModel.XRESOLUTION ];
+    Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte [] buffer = new byte[ 64 * 1024 ];
+    for( int part = 0; part < 2; part++ )
+    {
+      for( int y = 0; y < MandelbrotModel.YRESOLUTION; y++ )
+      {
+        for( int x = 0; x < MandelbrotModel.XRESOLUTION; x++ )
+        {
+          int value = part == 0 ? aModel.getIterations( x, y ) : aModel.getPeriod( x, y );
+          row[4*x] = (byte) (value >>> 24);
+          row[4*x+1] = (byte) (value >>> 16);
+          row[4*x+2] = (byte) (value >>> 8);
+          row[4*x+3] = (byte) value;
+        }
+        deflater.setInput( row );
+        while( ! deflater.needsInput() )
+          out.write( buffer, 0, deflater.deflate( buffer ) );
+      }
+    }
+    deflater.finish();
+    while( ! deflater.finished() )
+      out.write( buffer, 0, deflater.deflate( buffer ) );
+    deflater.end();
+    return out.toByteArray();
+  }
+
+  private static boolean inflate( byte [] aSnapshot, int [] someIterations, int [] somePeriods )
+  {
+    byte [] data = new byte[ 4 * (someIterations.length + somePeriods.length) ];
+    Inflater inflater = new Inflater();
+    try
+    {
+      inflater.setInput( aSnapshot );
+      int length = 0;
+      while( length < data.length && ! inflater.finished() )
+      {
+        int count = inflater.inflate( data, length, data.length - length );
+        if ( count == 0 && (inflater.needsInput() || inflater.needsDictionary()) )
+          return false;
+        length += count;
+      }
+      if ( length < data.length )
+        return false;
+    }
+    catch( DataFormatException e )
+    {
+      return false;
+    }
+    finally
+    {
+      inflater.end();
+    }
+    for( int i=0; i<someIterations.length + somePeriods.length; i++ )
+    {
+      int value = (data[4*i] & 0xFF) << 24 | (data[4*i+1] & 0xFF) << 16
+        | (data[4*i+2] & 0xFF) << 8 | (data[4*i+3] & 0xFF);
+      if ( i < someIterations.length )
+        someIterations[i] = value;
+      else
+        somePeriods[i - someIterations.length] = value;
+    }
+    return true;
+  }
+
+  private static byte [] createPreview( MandelbrotModel aModel )
+  {
+    int width = MandelbrotModel.XRESOLUTION / PREVIEW_SCALE;
+    int height = MandelbrotModel.YRESOLUTION / PREVIEW_SCALE;
+    WritableRaster raster = aModel.getImage().getRaster();
+    byte [] preview = new byte[ width * height ];
+    int [] pixel = new int[ 1 ];
+    for( int y = 0; y < height; y++ )
+      for( int x = 0; x < width; x++ )
+        preview[ y*width + x ] = (byte) raster.getPixel( x*PREVIEW_SCALE, y*PREVIEW_SCALE, pixel )[0];
+    return preview;
+  }
+
+  private static void showPreview( byte [] aPreview, MandelbrotModel aModel )
+  {
+    int width = MandelbrotModel.XRESOLUTION / PREVIEW_SCALE;
+    WritableRaster raster = aModel.getImage().getRaster();
+    int [] row = new int[ MandelbrotModel.XRESOLUTION ];
+    for( int y = 0; y < MandelbrotModel.YRESOLUTION; y++ )
+    {
+      int previewRow = Math.min( y / PREVIEW_SCALE, aPreview.length / width - 1 );
+      for( int x = 0; x < MandelbrotModel.XRESOLUTION; x++ )
+        row[x] = aPreview[ previewRow*width + Math.min( x / PREVIEW_SCALE, width - 1 ) ] & 0xFF;
+      raster.setPixels( 0, y, MandelbrotModel.XRESOLUTION, 1, row );
+    }
+  }
+
+}
@@ -0,0 +1,258 @@
+/*
+ * $Id $
+ *
+ * Copyright 2005 Sun Microsystems
+ *
+ * Initially developed by Antonio Vieiro (vieiro@dev.java.net).
+ *
+ * This software is released under the Common Development and Distribution
+ *  License, version 1.0. See http://www.opensource.org/licenses/cddl1.php
+ *  for details.
+ *
+ * This software is distributed on an "AS IS" basis, without warranty of any
+ *  kind, either express or implied.
+ *
+ * All this stuff basically means that you can use this source code in your
+ *  software, either proprietary or not. See
+ *  http://www.opensolaris.org/os/about/faq/licensing_faq/ for interesting
+ *  information about the CDDL license.
+ *
+ */
+package org.jdesktop.swingworker.demos.mandelbrot.model;
+import java.awt.geom.Rectangle2D;
+import java.util.List;
+
+/**
+ * PerturbationEscapeTimeKernel computes deep zooms, where doubles can't tell
+ *  the points of the image apart.
+ * The orbit of a reference point is computed in arbitrary precision (see
+ *  ReferenceOrbit). Each point c = C + dc is then computed by iterating, in
+ *  doubles, its distance to the reference orbit only:
+ *  d' = 2*Z*d + d^2 + dc, where Z is the reference orbit, so the point after
+ *  n iterations is Z[n] + d[n]. The first iterations are skipped by using
+ *  the series approximation of the reference orbit.
+ * When Z[n] + d[n] gets too close to zero (compared to Z[n]) the rounding
+ *  errors of the reference orbit dominate (a glitch), and when the reference
+ *  orbit diverges before the point does there's no orbit to compare to. In
+ *  both cases the point is computed again with another reference orbit, or
+ *  becomes a new reference point itself.
+ * There are up to ReferenceOrbits.MAX_REFERENCES reference orbits per
+ *  image, though. Points still glitched when no more reference orbits can
+ *  be added are computed again with DoubleDoubleEscapeTimeKernel, if the
+ *  image is shallow enough for it. Otherwise their (probably wrong) number
+ *  of iterations is kept, and they are counted as glitched pixels (see
+ *  TileScheduler.getGlitchedPixels()).
+ * Distances to the center are doubles, so this works down to pixels about
+ *  1e-300 wide. Periods of the orbits are not detected.
+ * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
+ * @version $Revision: $
+ */
+class PerturbationEscapeTimeKernel
+  extends EscapeTimeKernel
+{
+  /**
+   * A point is a glitch if its squared modulus is smaller than this fraction
+   *  of the squared modulus of the reference orbit.
+   */
+  static final double GLITCH_TOLERANCE = 1e-6;
+
+  private ReferenceOrbits references;
+  /**
+   * Tells if the last point computed was a glitch.
+   */
+  private boolean glitch;
+  /**
+   * The kernel computing the points left glitched, or null if the image
+   *  is too deep for it.
+   */
+  private DoubleDoubleEscapeTimeKernel fallback;
+  private TileScheduler scheduler;
+  /**
+   * The points left glitched (and where they are in the arrays computed).
+   */
+  private double[] glitchedA = new double[0];
+  private double[] glitchedB = new double[0];
+  private int[] glitchedIndices = new int[0];
+  private int[] glitchedIterations = new int[0];
+  private int[] glitchedPeriods = new int[0];
+
+  @Override
+  public void setUp( MandelbrotModel aModel )
+  {
+    super.setUp( aModel );
+    references = aModel.getReferenceOrbits();
+    Rectangle2D.Double bounds = aModel.getBounds();
+    Precision precision = getRequiredPrecision( bounds,
+      bounds.width / MandelbrotModel.XRESOLUTION, bounds.height / MandelbrotModel.YRESOLUTION );
+    fallback = null;
+    if ( precision.compareTo( Precision.DOUBLE_DOUBLE ) <= 0 )
+    {
+      fallback = new DoubleDoubleEscapeTimeKernel();
+      fallback.setUp( aModel );
+      fallback.setScheduler( scheduler );
+    }
+  }
+
+  @Override
+  public void setScheduler( TileScheduler aScheduler )
+  {
+    super.setScheduler( aScheduler );
+    scheduler = aScheduler;
+    if ( fallback != null )
+      fallback.setScheduler( aScheduler );
+  }
+
+  @Override
+  public boolean isRelative()
+  {
+    return true;
+  }
+
+  @Override
+  public void compute( double[] a, double[] b, int count,
+    int[] iterations, int[] periods )
+  {
+    int glitched = 0;
+    for( int i=0; i<count; i++ )
+    {
+      periods[i] = 0;
+      if ( maxIterations <= 0 )
+      {
+        iterations[i] = 0;
+        continue;
+      }
+      int tried = 0;
+      int result = 0;
+      do
+      {
+        List<ReferenceOrbit> orbits = references.getReferences( this );
+        for( ; tried < orbits.size(); tried++ )
+        {
+          result = getIterationsForPoint( orbits.get( tried ), a[i], b[i] );
+          if ( ! glitch )
+            break;
+        }
+      }
+      // Make this point a new reference point if no orbit was good enough
+      while( glitch && references.addReference( a[i], b[i], tried, this ) );
+      iterations[i] = result;
+      if ( glitch )
+        glitched = addGlitch( glitched, i, a[i], b[i] );
+    }
+    if ( glitched == 0 )
+      return;
+    if ( fallback == null )
+    {
+      if ( scheduler != null )
+        scheduler.pixelsGlitched( glitched );
+      return;
+    }
+    fallback.compute( glitchedA, glitchedB, glitched, glitchedIterations, glitchedPeriods );
+    for( int g=0; g<glitched; g++ )
+    {
+      iterations[ glitchedIndices[g] ] = glitchedIterations[g];
+      periods[ glitchedIndices[g] ] = glitchedPeriods[g];
+    }
+  }
+
+  /**
+   * Keeps a point left glitched, to be computed again with the fallback
+   *  kernel.
+   * @return the number of points left glitched.
+   */
+  private int addGlitch( int aCount, int anIndex, double a, double b )
+  {
+    if ( aCount == glitchedA.length )
+    {
+      int length = Math.max( 16, 2*aCount );
+      double[] newA = new double[ length ];
+      double[] newB = new double[ length ];
+      int[] newIndices = new int[ length ];
+      System.arraycopy( glitchedA, 0, newA, 0, aCount );
+      System.arraycopy( glitchedB, 0, newB, 0, aCount );
+      System.arraycopy( glitchedIndices, 0, newIndices, 0, aCount );
+      glitchedA = newA;
+      glitchedB = newB;
+      glitchedIndices = newIndices;
+      glitchedIterations = new int[ length ];
+      glitchedPeriods = new int[ length ];
+    }
+    glitchedA[ aCount ] = a;
+    glitchedB[ aCount ] = b;
+    glitchedIndices[ aCount ] = anIndex;
+    return aCount + 1;
+  }
+
+  /**
+   * Computes the number of iterations needed for divergence of a point,
+   *  using a reference orbit. Sets "glitch" if the reference orbit can't be
+   *  used for this point.
+   * @param anOrbit the reference orbit.
+   * @param a the distance from the center of the viewport to the point
+   *  (real part).
+   * @param b the distance from the center of the viewport to the point
+   *  (imaginary part).
+   * @return the number of iterations needed for divergence.
+   */
+  private int getIterationsForPoint( ReferenceOrbit anOrbit, double a, double b )
+  {
+    glitch = false;
+    final double[] zx = anOrbit.x;
+    final double[] zy = anOrbit.y;
+    final int length = anOrbit.length;
+
+    // The distance to the reference point...
+    double dcx = a - anOrbit.offsetX;
+    double dcy = b - anOrbit.offsetY;
+    // ... and the distance to the reference orbit after skipping some
+    // iterations: d = A*dc + B*dc^2 + C*dc^3
+    double dc2x = dcx*dcx - dcy*dcy;
+    double dc2y = 2*dcx*dcy;
+    double dc3x = dc2x*dcx - dc2y*dcy;
+    double dc3y = dc2x*dcy + dc2y*dcx;
+    double dx = anOrbit.ar*dcx - anOrbit.ai*dcy
+      + anOrbit.br*dc2x - anOrbit.bi*dc2y
+      + anOrbit.cr*dc3x - anOrbit.ci*dc3y;
+    double dy = anOrbit.ar*dcy + anOrbit.ai*dcx
+      + anOrbit.br*dc2y + anOrbit.bi*dc2x
+      + anOrbit.cr*dc3y + anOrbit.ci*dc3x;
+
+    int n = anOrbit.skip;
+    // The scheduler is looked at every CANCELLATION_INTERVAL iterations
+    int nextCheck = n;
+    while( n < maxIterations )
+    {
+      if ( n == nextCheck )
+      {
+        checkCancelled();
+        nextCheck += CANCELLATION_INTERVAL;
+      }
+      if ( n >= length )
+      {
+        // The reference orbit diverged before this point did
+        glitch = true;
+        return n;
+      }
+      double x = zx[n];
+      double y = zy[n];
+      double dxnew = 2*(x*dx - y*dy) + dx*dx - dy*dy + dcx;
+      dy = 2*(x*dy + y*dx) + 2*dx*dy + dcy;
+      dx = dxnew;
+      n++;
+      x = zx[n];
+      y = zy[n];
+      double px = x + dx;
+      double py = y + dy;
+      double rho2 = px*px + py*py;
+      if ( rho2 >= 4.0 )
+        return n;
+      if ( rho2 < GLITCH_TOLERANCE * (x*x + y*y) )
+      {
+        glitch = true;
+        return n;
+      }
+    }
+    return maxIterations;
+  }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * $Id $
+ *
+ * Copyright 2005 Sun Microsystems
+ *
+ * Initially developed by Antonio Vieiro (vieiro@dev.java.net).
+ *
+ * This software is released under the Common Development and Distribution
+ *  License, version 1.0. See http://www.opensource.org/licenses/cddl1.php
+ *  for details.
+ *
+ * This software is distributed on an "AS IS" basis, without warranty of any
+ *  kind, either express or implied.
+ *
+ * All this stuff basically means that you can use this source code in your
+ *  software, either proprietary or not. See
+ *  http://www.opensolaris.org/os/about/faq/licensing_faq/ for interesting
+ *  information about the CDDL license.
+ *
+ */
+package org.jdesktop.swingworker.demos.mandelbrot.model;
+import java.awt.Rectangle;
+
+/**
+ * ProgressiveTileRenderer computes the image in several passes, so a coarse
+ *  version of it can be shown as soon as possible.
+ * The first pass computes one point out of each block of FIRST_STEP x
+ *  FIRST_STEP pixels, and fills the whole block with it. Each further pass
+ *  halves the size of the blocks, computing only the points that were
+ *  not computed before (three out of each four points of the new blocks),
+ *  until every point is computed.
+ * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
+ * @version $Revision: $
+ */
+class ProgressiveTileRenderer
+  extends TileRenderer
+{
+  /**
+   * The size of the blocks of the first pass, in pixels.
+   */
+  static final int FIRST_STEP = 16;
+
+  @Override
+  public void render( Rectangle aTile, Context aContext )
+  {
+    int step = Math.max( 1, FIRST_STEP >> aContext.getPass() );
+    boolean firstPass = step == FIRST_STEP;
+
+    // The points to compute: the corners of the blocks of this pass that
+    // are not corners of the blocks of the previous pass
+    int count = 0;
+    for( int iy = 0; iy < aTile.height; iy += step )
+      for( int ix = 0; ix < aTile.width; ix += step )
+        if ( firstPass || isNew( ix, iy, step ) )
+          count++;
+    ensureCapacity( count );
+    int k = 0;
+    for( int iy = 0; iy < aTile.height; iy += step )
+      for( int ix = 0; ix < aTile.width; ix += step )
+        if ( firstPass || isNew( ix, iy, step ) )
+          setPoint( k++, aTile.x+ix, aTile.y+iy, aContext );
+    computePoints( count, aContext );
+
+    // Corners of the blocks, either just computed or computed before...
+    ensureTileCapacity( aTile.width * aTile.height );
+    int [] iterations = tileIterations;
+    int [] periods = tilePeriods;
+    k = 0;
+    for( int iy = 0; iy < aTile.height; iy += step )
+      for( int ix = 0; ix < aTile.width; ix += step )
+      {
+        int i = iy*aTile.width + ix;
+        if ( firstPass || isNew( ix, iy, step ) )
+        {
+          iterations[ i ] = columnIterations[ k ];
+          periods[ i ] = columnPeriods[ k ];
+          k++;
+        }
+        else
+        {
+          iterations[ i ] = aContext.getIterations( aTile.x+ix, aTile.y+iy );
+          periods[ i ] = aContext.getPeriod( aTile.x+ix, aTile.y+iy );
+        }
+      }
+    // ... fill the rest of the blocks
+    if ( step > 1 )
+    {
+      for( int iy = 0; iy < aTile.height; iy++ )
+      {
+        int corner = (iy - iy % step) * aTile.width;
+        for( int ix = 0; ix < aTile.width; ix++ )
+        {
+          int i = iy*aTile.width + ix;
+          iterations[ i ] = iterations[ corner + ix - ix % step ];
+          periods[ i ] = periods[ corner + ix - ix % step ];
+        }
+      }
+    }
+
+    aContext.publish( aTile, iterations, periods, count );
+    if ( step > 1 )
+      aContext.scheduleNextPass( aTile );
+  }
+
+  /**
+   * Tells if a corner of a block was not computed in the previous pass.
+   */
+  private static boolean isNew( int ix, int iy, int aStep )
+  {
+    return ix % (2*aStep) != 0 || iy % (2*aStep) != 0;
+  }
+
+}
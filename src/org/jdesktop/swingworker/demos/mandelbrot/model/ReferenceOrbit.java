@@ -0,0 +1,167 @@
+/*
+ * $Id $
+ *
+ * Copyright 2005 Sun Microsystems
+ *
+ * Initially developed by Antonio Vieiro (vieiro@dev.java.net).
+ *
+ * This software is released under the Common Development and Distribution
+ *  License, version 1.0. See http://www.opensource.org/licenses/cddl1.php
+ *  for details.
+ *
+ * This software is distributed on an "AS IS" basis, without warranty of any
+ *  kind, either express or implied.
+ *
+ * All this stuff basically means that you can use this source code in your
+ *  software, either proprietary or not. See
+ *  http://www.opensolaris.org/os/about/faq/licensing_faq/ for interesting
+ *  information about the CDDL license.
+ *
+ */
+package org.jdesktop.swingworker.demos.mandelbrot.model;
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * ReferenceOrbit is the orbit of a reference point, computed in arbitrary
+ *  precision and then rounded to doubles.
+ * Points near the reference point are computed by iterating (in doubles)
+ *  their distance to the reference orbit only, see
+ *  PerturbationEscapeTimeKernel.
+ * A reference orbit also holds the coefficients of a series that gives the
+ *  distance to the orbit after some iterations, as a function of the
+ *  distance to the reference point, so the first iterations can be skipped.
+ * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
+ * @version $Revision: $
+ */
+class ReferenceOrbit
+{
+  /**
+   * The series is used while the cubic term is smaller than this fraction
+   *  of the linear term.
+   */
+  static final double SERIES_TOLERANCE = 1e-12;
+
+  private static final BigDecimal TWO = BigDecimal.valueOf( 2 );
+
+  /**
+   * The distance from the center of the viewport to the reference point.
+   */
+  final double offsetX;
+  final double offsetY;
+  /**
+   * The orbit: x[n], y[n] is the point after n iterations (x[0], y[0] is
+   *  the reference point itself).
+   */
+  final double[] x;
+  final double[] y;
+  /**
+   * The number of iterations of the reference point: the orbit diverges
+   *  at this iteration, unless it's the maximum number of iterations.
+   */
+  final int length;
+  /**
+   * The number of iterations that can be skipped using the series.
+   */
+  int skip;
+  /**
+   * The coefficients of the series at iteration "skip": the distance to the
+   *  orbit is A*d + B*d^2 + C*d^3 (d is the distance to the reference point).
+   */
+  double ar = 1.0, ai, br, bi, cr, ci;
+
+  /**
+   * Computes a reference orbit.
+   * @param aViewport the viewport.
+   * @param anOffsetX the distance from the center of the viewport to the
+   *  reference point (real part).
+   * @param anOffsetY the distance from the center of the viewport to the
+   *  reference point (imaginary part).
+   * @param aMaxIterations the maximum number of iterations.
+   * @param aRadius the maximum distance from the reference point to the
+   *  points that will be computed with this orbit.
+   * @param aKernel the kernel that needs the orbit: iterations in arbitrary
+   *  precision are slow, so the orbit is abandoned (with a
+   *  CancellationException) as soon as the image is cancelled.
+   */
+  ReferenceOrbit( Viewport aViewport, double anOffsetX, double anOffsetY,
+    int aMaxIterations, double aRadius, EscapeTimeKernel aKernel )
+  {
+    // Other workers may have been waiting for an orbit of a cancelled
+    // image, and there's no point in allocating a new one
+    aKernel.checkCancelled();
+    offsetX = anOffsetX;
+    offsetY = anOffsetY;
+    x = new double[ aMaxIterations+1 ];
+    y = new double[ aMaxIterations+1 ];
+
+    MathContext mc = aViewport.getMathContext();
+    BigDecimal a = aViewport.getX( anOffsetX ).round( mc );
+    BigDecimal b = aViewport.getY( anOffsetY ).round( mc );
+    BigDecimal zx = a;
+    BigDecimal zy = b;
+    x[0] = zx.doubleValue();
+    y[0] = zy.doubleValue();
+    int n = 0;
+    while( n < aMaxIterations )
+    {
+      aKernel.checkCancelled();
+      BigDecimal xnew = zx.multiply( zx, mc ).subtract( zy.multiply( zy, mc ) ).add( a, mc );
+      zy = zx.multiply( zy, mc ).multiply( TWO ).add( b, mc );
+      zx = xnew;
+      // Rounding doesn't shrink the scale of zeroes, which would otherwise
+      // grow with every multiplication (think of points on the real axis).
+      if ( zx.signum() == 0 )
+        zx = BigDecimal.ZERO;
+      if ( zy.signum() == 0 )
+        zy = BigDecimal.ZERO;
+      n++;
+      x[n] = zx.doubleValue();
+      y[n] = zy.doubleValue();
+      if ( x[n]*x[n] + y[n]*y[n] >= 4.0 )
+        break;
+    }
+    length = n;
+
+    computeSeries( aRadius );
+  }
+
+  /**
+   * Finds how many iterations can be skipped with the series, and the
+   *  coefficients of the series there.
+   */
+  private void computeSeries( double aRadius )
+  {
+    double Ar = 1.0, Ai = 0.0, Br = 0.0, Bi = 0.0, Cr = 0.0, Ci = 0.0;
+    for( int n=0; n<length; n++ )
+    {
+      // A' = 2XA + 1, B' = 2XB + A^2, C' = 2XC + 2AB
+      double xr = x[n];
+      double xi = y[n];
+      double nAr = 2*(xr*Ar - xi*Ai) + 1.0;
+      double nAi = 2*(xr*Ai + xi*Ar);
+      double nBr = 2*(xr*Br - xi*Bi) + Ar*Ar - Ai*Ai;
+      double nBi = 2*(xr*Bi + xi*Br) + 2*Ar*Ai;
+      double nCr = 2*(xr*Cr - xi*Ci) + 2*(Ar*Br - Ai*Bi);
+      double nCi = 2*(xr*Ci + xi*Cr) + 2*(Ar*Bi + Ai*Br);
+      // Stop as soon as the series is no longer accurate enough, or when
+      // some point may diverge within the skipped iterations (conditions
+      // are false as well if the coefficients overflow).
+      double a = Math.hypot( nAr, nAi ) * aRadius;
+      double b = Math.hypot( nBr, nBi ) * aRadius * aRadius;
+      double c = Math.hypot( nCr, nCi ) * aRadius * aRadius * aRadius;
+      if ( ! ( c <= SERIES_TOLERANCE * a ) )
+        break;
+      if ( ! ( Math.hypot( x[n+1], y[n+1] ) + a + b + c < 2.0 ) )
+        break;
+      Ar = nAr; Ai = nAi;
+      Br = nBr; Bi = nBi;
+      Cr = nCr; Ci = nCi;
+      skip = n+1;
+    }
+    ar = Ar; ai = Ai;
+    br = Br; bi = Bi;
+    cr = Cr; ci = Ci;
+  }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * $Id $
+ *
+ * Copyright 2005 Sun Microsystems
+ *
+ * Initially developed by Antonio Vieiro (vieiro@dev.java.net).
+ *
+ * This software is released under the Common Development and Distribution
+ *  License, version 1.0. See http://www.opensource.org/licenses/cddl1.php
+ *  for details.
+ *
+ * This software is distributed on an "AS IS" basis, without warranty of any
+ *  kind, either express or implied.
+ *
+ * All this stuff basically means that you can use this source code in your
+ *  software, either proprietary or not. See
+ *  http://www.opensolaris.org/os/about/faq/licensing_faq/ for interesting
+ *  information about the CDDL license.
+ *
+ */
+package org.jdesktop.swingworker.demos.mandelbrot.model;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * ReferenceOrbits holds the reference orbits used to compute an image,
+ *  and is shared by all the workers computing the image.
+ * The first reference orbit is the orbit of the center of the image. Points
+ *  that can't be computed with it (glitches) become new reference points.
+ * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
+ * @version $Revision: $
+ */
+class ReferenceOrbits
+{
+  /**
+   * The maximum number of reference orbits computed for an image.
+   */
+  static final int MAX_REFERENCES = 32;
+
+  private Viewport viewport;
+  private int maxIterations;
+  private List<ReferenceOrbit> references = new CopyOnWriteArrayList<ReferenceOrbit>();
+
+  /**
+   * Creates a new instance of ReferenceOrbits. Orbits are computed later,
+   *  when needed.
+   * @param aViewport the viewport of the image.
+   * @param aMaxIterations the maximum number of iterations.
+   */
+  ReferenceOrbits( Viewport aViewport, int aMaxIterations )
+  {
+    viewport = aViewport;
+    maxIterations = aMaxIterations;
+  }
+
+  Viewport getViewport()
+  {
+    return viewport;
+  }
+
+  int getMaxIterations()
+  {
+    return maxIterations;
+  }
+
+  /**
+   * Returns the reference orbits computed so far (the orbit of the center
+   *  of the image is computed the first time this method is invoked).
+   * @param aKernel the kernel asking for the orbits, that stops computing
+   *  an orbit if the image is cancelled.
+   * @return the reference orbits, the first one is the orbit of the center.
+   */
+  List<ReferenceOrbit> getReferences( EscapeTimeKernel aKernel )
+  {
+    if ( references.isEmpty() )
+    {
+      synchronized( this )
+      {
+        if ( references.isEmpty() )
+          references.add( new ReferenceOrbit( viewport, 0.0, 0.0, maxIterations, getRadius( 0.5 ), aKernel ) );
+      }
+    }
+    return references;
+  }
+
+  /**
+   * Adds a new reference orbit, unless other orbits have been added since
+   *  the caller looked at them, or unless there're too many orbits already.
+   * @param anOffsetX the distance from the center of the viewport to the new
+   *  reference point (real part).
+   * @param anOffsetY the distance from the center of the viewport to the new
+   *  reference point (imaginary part).
+   * @param aKnownCount the number of reference orbits the caller has tried.
+   * @param aKernel the kernel adding the orbit (see getReferences()).
+   * @return true if there're new orbits to try, false otherwise.
+   */
+  synchronized boolean addReference( double anOffsetX, double anOffsetY, int aKnownCount,
+    EscapeTimeKernel aKernel )
+  {
+    if ( references.size() > aKnownCount )
+      return true;
+    if ( references.size() >= MAX_REFERENCES )
+      return false;
+    // New reference points may lie anywhere in the image
+    references.add( new ReferenceOrbit( viewport, anOffsetX, anOffsetY, maxIterations, getRadius( 1.0 ), aKernel ) );
+    return true;
+  }
+
+  /**
+   * Returns a fraction of the diagonal of the image.
+   */
+  private double getRadius( double aFraction )
+  {
+    double width = viewport.getXScale().doubleValue() * MandelbrotModel.XRESOLUTION;
+    double height = viewport.getYScale().doubleValue() * MandelbrotModel.YRESOLUTION;
+    return Math.hypot( width, height ) * aFraction;
+  }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * $Id $
+ *
+ * Copyright 2005 Sun Microsystems
+ *
+ * Initially developed by Antonio Vieiro (vieiro@dev.java.net).
+ *
+ * This software is released under the Common Development and Distribution
+ *  License, version 1.0. See http://www.opensource.org/licenses/cddl1.php
+ *  for details.
+ *
+ * This software is distributed on an "AS IS" basis, without warranty of any
+ *  kind, either express or implied.
+ *
+ * All this stuff basically means that you can use this source code in your
+ *  software, either proprietary or not. See
+ *  http://www.opensolaris.org/os/about/faq/licensing_faq/ for interesting
+ *  information about the CDDL license.
+ *
+ */
+package org.jdesktop.swingworker.demos.mandelbrot.model;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RenderExecutor is the executor where MandelbrotSwingWorkers run.
+ * SwingWorker.execute() runs workers on an executor shared by all the
+ *  SwingWorkers of the application, and that executor is limited to
+ *  10 threads. This executor is used for rendering only, has its own
+ *  queue and as many threads as the parallelization rate of the model, so
+ *  rendering and other tasks (exporting images, for instance) don't compete
+ *  for threads.
+ * Threads are named "mandelbrot-render-N", and the executor keeps track
+ *  of the time spent running tasks, so its throughput can be measured.
+ * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
+ * @version $Revision: $
+ */
+public class RenderExecutor
+  extends ThreadPoolExecutor
+{
+  private static final AtomicInteger threadCount = new AtomicInteger();
+
+  private AtomicLong busyNanos = new AtomicLong();
+  private ThreadLocal<Long> taskStart = new ThreadLocal<Long>();
+
+  /**
+   * Creates a new instance of RenderExecutor.
+   * @param nThreads the number of threads. If zero or less the number of
+   *  available processors is used.
+   */
+  public RenderExecutor( int nThreads )
+  {
+    super( threadsFor( nThreads ), threadsFor( nThreads ), 30L, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(),
+      new ThreadFactory()
+    {
+      public Thread newThread( Runnable aRunnable )
+      {
+        Thread thread = new Thread( aRunnable, "mandelbrot-render-" + threadCount.incrementAndGet() );
+        thread.setDaemon( true );
+        // Keep the Swing thread responsive
+        thread.setPriority( Thread.NORM_PRIORITY - 1 );
+        return thread;
+      }
+    } );
+    allowCoreThreadTimeOut( true );
+  }
+
+  private static int threadsFor( int nThreads )
+  {
+    return nThreads > 0 ? nThreads : Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * Changes the number of threads of this executor.
+   * @param nThreads the number of threads. If zero or less the number of
+   *  available processors is used.
+   */
+  public void setThreadCount( int nThreads )
+  {
+    int size = threadsFor( nThreads );
+    if ( size > getMaximumPoolSize() )
+    {
+      setMaximumPoolSize( size );
+      setCorePoolSize( size );
+    }
+    else
+    {
+      setCorePoolSize( size );
+      setMaximumPoolSize( size );
+    }
+  }
+
+  /**
+   * Returns the number of threads of this executor.
+   * @return the number of threads.
+   */
+  public int getThreadCount()
+  {
+    return getMaximumPoolSize();
+  }
+
+  /**
+   * Returns the time spent by all threads running tasks.
+   * @return the accumulated busy time, in milliseconds.
+   */
+  public long getBusyTimeMillis()
+  {
+    return TimeUnit.NANOSECONDS.toMillis( busyNanos.get() );
+  }
+
+  @Override
+  protected void beforeExecute( Thread aThread, Runnable aRunnable )
+  {
+    super.beforeExecute( aThread, aRunnable );
+    taskStart.set( System.nanoTime() );
+  }
+
+  @Override
+  protected void afterExecute( Runnable aRunnable, Throwable aThrowable )
+  {
+    Long start = taskStart.get();
+    if ( start != null )
+      busyNanos.addAndGet( System.nanoTime() - start );
+    super.afterExecute( aRunnable, aThrowable );
+  }
+
+}
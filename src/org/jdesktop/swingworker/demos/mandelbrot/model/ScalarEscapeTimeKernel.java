@@ -0,0 +1,162 @@
+/*
+ * $Id $
+ *
+ * Copyright 2005 Sun Microsystems
+ *
+ * Initially developed by Antonio Vieiro (vieiro@dev.java.net).
+ *
+ * This software is released under the Common Development and Distribution
+ *  License, version 1.0. See http://www.opensource.org/licenses/cddl1.php
+ *  for details.
+ *
+ * This software is distributed on an "AS IS" basis, without warranty of any
+ *  kind, either express or implied.
+ *
+ * All this stuff basically means that you can use this source code in your
+ *  software, either proprietary or not. See
+ *  http://www.opensolaris.org/os/about/faq/licensing_faq/ for interesting
+ *  information about the CDDL license.
+ *
+ */
+package org.jdesktop.swingworker.demos.mandelbrot.model;
+
+/**
+ * ScalarEscapeTimeKernel iterates one point at a time.
+ * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
+ * @version $Revision: $
+ */
+class ScalarEscapeTimeKernel
+  extends EscapeTimeKernel
+{
+  /**
+   * The period of the last point computed, or zero if unknown.
+   */
+  private int lastPeriod;
+  /**
+   * The last point of the orbit of the last point computed.
+   */
+  private double lastX;
+  private double lastY;
+
+  @Override
+  public void compute( double[] a, double[] b, int count,
+    int[] iterations, int[] periods )
+  {
+    for( int i=0; i<count; i++ )
+    {
+      iterations[i] = getIterationsForPoint( a[i], b[i], a[i], b[i], 0 );
+      periods[i] = lastPeriod;
+    }
+  }
+
+  @Override
+  public boolean isResumable()
+  {
+    return true;
+  }
+
+  @Override
+  public void resume( double[] a, double[] b, double[] orbitX, double[] orbitY,
+    int[] orbitIterations, int count, int[] iterations, int[] periods )
+  {
+    for( int i=0; i<count; i++ )
+    {
+      if ( orbitIterations[i] > 0 && orbitIterations[i] <= maxIterations )
+        iterations[i] = getIterationsForPoint( a[i], b[i], orbitX[i], orbitY[i], orbitIterations[i] );
+      else
+        iterations[i] = getIterationsForPoint( a[i], b[i], a[i], b[i], 0 );
+      periods[i] = lastPeriod;
+      orbitIterations[i] = 0;
+      if ( iterations[i] == maxIterations && lastPeriod == 0 )
+      {
+        orbitX[i] = lastX;
+        orbitY[i] = lastY;
+        orbitIterations[i] = maxIterations;
+      }
+    }
+  }
+
+  /**
+   * Given a point on the complex plane this method computes the
+   *  number of iterations needed for divergenge.
+   * Points that belong to the set return the maximum number of iterations,
+   *  and lastPeriod holds the period of their orbit (if it has been
+   *  detected, zero otherwise).
+   * The last point of the orbit is left in lastX and lastY.
+   * @param a the real part of the complex point.
+   * @param b the imaginary part of the complx point.
+   * @param x0 the real part of the point to start the orbit at.
+   * @param y0 the imaginary part of the point to start the orbit at.
+   * @param n0 the number of iterations it took to get to (x0,y0), zero
+   *  if (x0,y0) is the point itself.
+   * @return the number of iterations needed for divergence.
+   */
+  private int getIterationsForPoint( double a, double b, double x0, double y0, int n0 )
+  {
+    // Points inside the main cardioid or the period-2 bulb never diverge,
+    // and can be spotted without iterating at all.
+    lastPeriod = n0 == 0 ? getKnownComponentPeriod( a, b ) : 0;
+    if ( lastPeriod != 0 )
+      return maxIterations;
+
+    double x = x0;
+    double y = y0;
+    // Resumed orbits may have diverged right at the last iteration
+    double rho2 = n0 == 0 ? 0.0f : x*x + y*y;
+    int nIterations = 0;
+
+    // Brent's cycle detection: we keep a saved point of the orbit and
+    // compare it with the following ones. The saved point is moved ahead
+    // every 2, 4, 8... iterations, so a cycle of any period is eventually
+    // detected.
+    double savedX = x;
+    double savedY = y;
+    int steps = 0;
+    int stepLimit = 2;
+
+    // Iterations are done up to a limit, where the scheduler is looked at
+    // (and the limit is moved ahead, up to the maximum)
+    int limit = n0;
+
+    // rho2<4.0 means that rho<2.0 because if rho>=2.0 then there's divergence.
+    for( nIterations=n0;
+    rho2 < 4.0f;
+    nIterations ++ )
+    {
+      if ( nIterations == limit )
+      {
+        if ( nIterations >= maxIterations )
+          break;
+        checkCancelled();
+        limit = Math.min( maxIterations, nIterations + CANCELLATION_INTERVAL );
+      }
+      double xnew = x*x - y*y + a;
+      double ynew = 2*x*y + b;
+      x=xnew;
+      y=ynew;
+      rho2 = x*x + y*y;
+
+      // The orbit has come back: this is a cycle, and the point won't diverge.
+      steps++;
+      double dx = x - savedX;
+      double dy = y - savedY;
+      if ( dx*dx + dy*dy < periodicityTolerance2 )
+      {
+        lastPeriod = steps;
+        return maxIterations;
+      }
+      if ( steps == stepLimit )
+      {
+        savedX = x;
+        savedY = y;
+        steps = 0;
+        stepLimit *= 2;
+      }
+    }
+
+    lastX = x;
+    lastY = y;
+    return nIterations;
+  }
+
+}
@@ -0,0 +1,236 @@
+/*
+ * $Id $
+ *
+ * Copyright 2005 Sun Microsystems
+ *
+ * Initially developed by Antonio Vieiro (vieiro@dev.java.net).
+ *
+ * This software is released under the Common Development and Distribution
+ *  License, version 1.0. See http://www.opensource.org/licenses/cddl1.php
+ *  for details.
+ *
+ * This software is distributed on an "AS IS" basis, without warranty of any
+ *  kind, either express or implied.
+ *
+ * All this stuff basically means that you can use this source code in your
+ *  software, either proprietary or not. See
+ *  http://www.opensolaris.org/os/about/faq/licensing_faq/ for interesting
+ *  information about the CDDL license.
+ *
+ */
+package org.jdesktop.swingworker.demos.mandelbrot.model;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * SolidGuessingTileRenderer computes a sparse lattice of points of a tile
+ *  (one out of each FIRST_STEP x FIRST_STEP block), and guesses the points of
+ *  the blocks whose four corners have the same number of iterations. Blocks
+ *  whose corners disagree are split in four smaller blocks, whose corners
+ *  are computed, and so on until blocks are one pixel wide.
+ * Unlike Mariani-Silver, guessing a block from its corners may miss thin
+ *  filaments crossing it.
+ * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
+ * @version $Revision: $
+ */
+class SolidGuessingTileRenderer
+  extends TileRenderer
+{
+  /**
+   * The distance between the points of the first lattice, in pixels.
+   */
+  static final int FIRST_STEP = 4;
+
+  /**
+   * The results for the tile being rendered (the results for a tile of the
+   *  renderer), and which points have been computed (or are about to be
+   *  computed).
+   */
+  private int [] iterations;
+  private int [] periods;
+  private boolean [] computed = new boolean[0];
+  /**
+   * The points to be computed next, as indexes in the tile.
+   */
+  private int [] pending = new int[0];
+  private int pendingCount;
+  private int computedCount;
+
+  @Override
+  public void render( Rectangle aTile, Context aContext )
+  {
+    int w = aTile.width;
+    int h = aTile.height;
+    ensureTileCapacity( w * h );
+    iterations = tileIterations;
+    periods = tilePeriods;
+    if ( computed.length < w * h )
+      computed = new boolean[ w * h ];
+    else
+      Arrays.fill( computed, 0, w * h, false );
+    computedCount = 0;
+
+    // Blocks are rectangles between four corners (both included), relative
+    // to the tile. The first blocks are the ones of the lattice.
+    int [] xs = getLattice( w );
+    int [] ys = getLattice( h );
+    List<Rectangle> blocks = new ArrayList<Rectangle>();
+    for( int j=0; j<Math.max( 1, ys.length-1 ); j++ )
+    {
+      for( int i=0; i<Math.max( 1, xs.length-1 ); i++ )
+      {
+        int x0 = xs[ i ];
+        int y0 = ys[ j ];
+        int x1 = xs[ Math.min( i+1, xs.length-1 ) ];
+        int y1 = ys[ Math.min( j+1, ys.length-1 ) ];
+        blocks.add( new Rectangle( x0, y0, x1-x0, y1-y0 ) );
+        requestCorners( x0, y0, x1, y1, w );
+      }
+    }
+    computePending( aTile, aContext );
+
+    // Split the blocks whose corners disagree, until there're none left
+    List<Rectangle> solidBlocks = new ArrayList<Rectangle>();
+    while( ! blocks.isEmpty() )
+    {
+      List<Rectangle> splitBlocks = new ArrayList<Rectangle>();
+      for( Rectangle block : blocks )
+      {
+        if ( isSolid( block, w ) )
+        {
+          solidBlocks.add( block );
+        }
+        else if ( block.width > 1 || block.height > 1 )
+        {
+          int [] bxs = split( block.x, block.width );
+          int [] bys = split( block.y, block.height );
+          for( int j=0; j<bys.length-1; j++ )
+          {
+            for( int i=0; i<bxs.length-1; i++ )
+            {
+              splitBlocks.add( new Rectangle( bxs[i], bys[j], bxs[i+1]-bxs[i], bys[j+1]-bys[j] ) );
+              requestCorners( bxs[i], bys[j], bxs[i+1], bys[j+1], w );
+            }
+          }
+        }
+      }
+      computePending( aTile, aContext );
+      blocks = splitBlocks;
+    }
+
+    // Guess the points of the solid blocks that haven't been computed
+    for( Rectangle block : solidBlocks )
+    {
+      int corner = block.y*w + block.x;
+      int period = periods[ corner ];
+      if ( periods[ corner + block.width ] != period
+        || periods[ corner + block.height*w ] != period
+        || periods[ corner + block.height*w + block.width ] != period )
+        period = 0;
+      for( int iy = block.y; iy <= block.y + block.height; iy++ )
+      {
+        for( int ix = block.x; ix <= block.x + block.width; ix++ )
+        {
+          int i = iy*w + ix;
+          if ( ! computed[ i ] )
+          {
+            iterations[ i ] = iterations[ corner ];
+            periods[ i ] = period;
+          }
+        }
+      }
+    }
+
+    aContext.publish( aTile, iterations, periods );
+    aContext.pixelsGuessed( w*h - computedCount );
+  }
+
+  /**
+   * Returns the positions of the lattice along a side of the tile: every
+   *  FIRST_STEP pixels, and the last pixel.
+   */
+  private static int [] getLattice( int aLength )
+  {
+    int count = (aLength - 1) / FIRST_STEP + 1;
+    boolean last = (aLength - 1) % FIRST_STEP != 0;
+    int [] positions = new int[ last ? count+1 : count ];
+    for( int i=0; i<count; i++ )
+      positions[ i ] = i * FIRST_STEP;
+    if ( last )
+      positions[ count ] = aLength - 1;
+    return positions;
+  }
+
+  /**
+   * Returns the corners of the pieces of a side of a block split in half
+   *  (or in one piece if it can't be split).
+   */
+  private static int [] split( int aStart, int aLength )
+  {
+    if ( aLength <= 1 )
+      return new int [] { aStart, aStart + aLength };
+    return new int [] { aStart, aStart + aLength/2, aStart + aLength };
+  }
+
+  /**
+   * Tells if the four corners of a block have the same number of
+   *  iterations.
+   */
+  private boolean isSolid( Rectangle aBlock, int aTileWidth )
+  {
+    int corner = aBlock.y*aTileWidth + aBlock.x;
+    int n = iterations[ corner ];
+    return iterations[ corner + aBlock.width ] == n
+      && iterations[ corner + aBlock.height*aTileWidth ] == n
+      && iterations[ corner + aBlock.height*aTileWidth + aBlock.width ] == n;
+  }
+
+  /**
+   * Adds the corners of a block not computed yet to the pending points.
+   */
+  private void requestCorners( int x0, int y0, int x1, int y1, int aTileWidth )
+  {
+    request( y0*aTileWidth + x0 );
+    request( y0*aTileWidth + x1 );
+    request( y1*aTileWidth + x0 );
+    request( y1*aTileWidth + x1 );
+  }
+
+  private void request( int anIndex )
+  {
+    if ( computed[ anIndex ] )
+      return;
+    computed[ anIndex ] = true;
+    if ( pendingCount == pending.length )
+    {
+      int [] newPending = new int[ Math.max( 64, 2*pending.length ) ];
+      System.arraycopy( pending, 0, newPending, 0, pendingCount );
+      pending = newPending;
+    }
+    pending[ pendingCount++ ] = anIndex;
+  }
+
+  /**
+   * Computes the pending points with the kernel (points known already are
+   *  counted as computed, as they're not guessed).
+   */
+  private void computePending( Rectangle aTile, Context aContext )
+  {
+    if ( pendingCount == 0 )
+      return;
+    ensureCapacity( pendingCount );
+    for( int k=0; k<pendingCount; k++ )
+      setPoint( k, aTile.x + pending[k] % aTile.width, aTile.y + pending[k] / aTile.width, aContext );
+    computePoints( pendingCount, aContext );
+    for( int k=0; k<pendingCount; k++ )
+    {
+      iterations[ pending[k] ] = columnIterations[ k ];
+      periods[ pending[k] ] = columnPeriods[ k ];
+    }
+    computedCount += pendingCount;
+    pendingCount = 0;
+  }
+
+}
@@ -0,0 +1,510 @@
+/*
+ * $Id $
+ *
+ * Copyright 2005 Sun Microsystems
+ *
+ * Initially developed by Antonio Vieiro (vieiro@dev.java.net).
+ *
+ * This software is released under the Common Development and Distribution
+ *  License, version 1.0. See http://www.opensource.org/licenses/cddl1.php
+ *  for details.
+ *
+ * This software is distributed on an "AS IS" basis, without warranty of any
+ *  kind, either express or implied.
+ *
+ * All this stuff basically means that you can use this source code in your
+ *  software, either proprietary or not. See
+ *  http://www.opensolaris.org/os/about/faq/licensing_faq/ for interesting
+ *  information about the CDDL license.
+ *
+ */
+package org.jdesktop.swingworker.demos.mandelbrot.model;
+import java.awt.Rectangle;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * TileCache keeps the number of iterations (and periods) of the tiles
+ *  computed recently, so going back to a region already seen (resetting
+ *  the view, or zooming into the same area again) doesn't compute it again.
+ * Tiles are identified by their position in a lattice of tiles covering
+ *  the whole complex plane (see MandelbrotModel.restoreCachedTiles()), so
+ *  the same tile is found whatever the image it was computed for.
+ * The cache holds up to a given number of bytes. When full, the tiles used
+ *  least recently are evicted.
+ * The cache may be backed by a TileStore, so tiles are kept on disk too:
+ *  tiles missing in memory are looked for on disk, and tiles added to the
+ *  cache are added to the store. Tiles are written to the store by a
+ *  thread of its own ("mandelbrot-tilestore"), so adding tiles to the
+ *  cache never waits for the disk.
+ * This class is thread safe.
+ * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
+ * @version $Revision: $
+ */
+public class TileCache
+{
+  /**
+   * The number of bytes held by a tile besides its pixels (roughly).
+   */
+  private static final int TILE_OVERHEAD = 256;
+
+  /**
+   * Identifies a tile: the size of its pixels, where the lattice of pixels
+   *  starts, the position of the tile in the lattice of tiles, the part of
+   *  the tile in the image, and how the tile was computed.
+   * Keys are immutable.
+   */
+  public static final class Key
+  {
+    private final BigDecimal xScale;
+    private final BigDecimal yScale;
+    private final BigDecimal xPhase;
+    private final BigDecimal yPhase;
+    private final BigInteger tileX;
+    private final BigInteger tileY;
+    private final Rectangle part;
+    private final int maxIterations;
+    private final EscapeTimeKernel.Type kernelType;
+    private final TileRenderer.Type rendererType;
+
+    /**
+     * Creates a new instance of Key.
+     * @param anXScale the width of a pixel.
+     * @param anYScale the height of a pixel.
+     * @param anXPhase the real part of the corner of the lattice of pixels.
+     * @param anYPhase the imaginary part of the corner of the lattice of pixels.
+     * @param aTileX the column of the tile in the lattice of tiles.
+     * @param aTileY the row of the tile in the lattice of tiles.
+     * @param aPart the part of the tile held (in pixels from its corner).
+     * @param aMaxIterations the maximum number of iterations.
+     * @param aKernelType the kernel used to compute the tile.
+     * @param aRendererType the renderer used to compute the tile.
+     */
+    public Key( BigDecimal anXScale, BigDecimal anYScale,
+      BigDecimal anXPhase, BigDecimal anYPhase,
+      BigInteger aTileX, BigInteger aTileY, Rectangle aPart, int aMaxIterations,
+      EscapeTimeKernel.Type aKernelType, TileRenderer.Type aRendererType )
+    {
+      // 0.10 and 0.1 are the same size
+      xScale = anXScale.stripTrailingZeros();
+      yScale = anYScale.stripTrailingZeros();
+      xPhase = anXPhase.signum() == 0 ? BigDecimal.ZERO : anXPhase.stripTrailingZeros();
+      yPhase = anYPhase.signum() == 0 ? BigDecimal.ZERO : anYPhase.stripTrailingZeros();
+      tileX = aTileX;
+      tileY = aTileY;
+      part = new Rectangle( aPart );
+      maxIterations = aMaxIterations;
+      kernelType = aKernelType;
+      rendererType = aRendererType;
+    }
+
+    @Override
+    public boolean equals( Object anObject )
+    {
+      if ( ! (anObject instanceof Key) )
+        return false;
+      Key key = (Key) anObject;
+      return maxIterations == key.maxIterations
+        && kernelType == key.kernelType
+        && rendererType == key.rendererType
+        && part.equals( key.part )
+        && tileX.equals( key.tileX ) && tileY.equals( key.tileY )
+        && xScale.equals( key.xScale ) && yScale.equals( key.yScale )
+        && xPhase.equals( key.xPhase ) && yPhase.equals( key.yPhase );
+    }
+
+    @Override
+    public int hashCode()
+    {
+      int hash = tileX.hashCode();
+      hash = 31*hash + tileY.hashCode();
+      hash = 31*hash + part.hashCode();
+      hash = 31*hash + xScale.hashCode();
+      hash = 31*hash + yScale.hashCode();
+      hash = 31*hash + xPhase.hashCode();
+      hash = 31*hash + yPhase.hashCode();
+      hash = 31*hash + maxIterations;
+      hash = 31*hash + kernelType.hashCode();
+      return 31*hash + rendererType.hashCode();
+    }
+
+    /**
+     * Returns a text identifying the tile, with all the fields of this key
+     *  (the same for equal keys).
+     * @return the id of the tile.
+     */
+    public String getId()
+    {
+      return xScale + "/" + yScale + "@" + xPhase + "," + yPhase
+        + ":" + tileX + "," + tileY + "[" + part.x + "," + part.y + "," + part.width + "," + part.height + "]"
+        + maxIterations + "/" + kernelType + "/" + rendererType;
+    }
+
+    /**
+     * Returns the number of pixels of the tile.
+     * @return the number of pixels.
+     */
+    public int getPixelCount()
+    {
+      return part.width * part.height;
+    }
+  }
+
+  /**
+   * The number of iterations and periods of the pixels of a tile, row
+   *  after row.
+   */
+  public static final class Tile
+  {
+    private final int[] iterations;
+    private final int[] periods;
+
+    public Tile( int[] someIterations, int[] somePeriods )
+    {
+      iterations = someIterations;
+      periods = somePeriods;
+    }
+
+    public int[] getIterations()
+    {
+      return iterations;
+    }
+
+    public int[] getPeriods()
+    {
+      return periods;
+    }
+
+    private long getSize()
+    {
+      return 4L * (iterations.length + periods.length) + TILE_OVERHEAD;
+    }
+  }
+
+  /**
+   * The tiles, from the least recently used to the most recently used.
+   */
+  private LinkedHashMap<Key, Tile> tiles = new LinkedHashMap<Key, Tile>( 64, 0.75f, true );
+  private long size;
+  private long budget;
+  private long hits;
+  private long misses;
+  private TileStore store;
+  /**
+   * The thread writing tiles to the store, or null if not started yet.
+   */
+  private ExecutorService storeThread;
+  private static TileCache instance;
+
+  /**
+   * Creates a new instance of TileCache.
+   * @param aBudget the maximum number of bytes held by the cache.
+   */
+  public TileCache( long aBudget )
+  {
+    budget = aBudget;
+  }
+
+  /**
+   * Returns the cache shared by all models, created with createDefault().
+   * @return the default cache.
+   */
+  public static synchronized TileCache getInstance()
+  {
+    if ( instance == null )
+      instance = createDefault();
+    return instance;
+  }
+
+  /**
+   * Creates a cache with the budget specified by the "mandelbrot.tilecache"
+   *  system property, in megabytes (64 if missing or wrong). A budget of
+   *  zero disables the cache. The cache is backed by the default store
+   *  (see TileStore.openDefault()), opened in the thread of the store so
+   *  this doesn't wait for the disk. Until the store is open tiles are
+   *  kept in memory only.
+   * @return a new cache.
+   */
+  public static TileCache createDefault()
+  {
+    long megabytes;
+    try
+    {
+      megabytes = Long.parseLong( System.getProperty( "mandelbrot.tilecache", "64" ) );
+    }
+    catch( NumberFormatException e )
+    {
+      megabytes = 64;
+    }
+    final TileCache cache = new TileCache( Math.max( 0, megabytes ) * 1024 * 1024 );
+    cache.openDefaultStore();
+    // Tiles still waiting to be written are written when leaving
+    Runtime.getRuntime().addShutdownHook( new Thread( "mandelbrot-tilestore-flush" )
+    {
+      @Override
+      public void run()
+      {
+        cache.flush();
+      }
+    } );
+    return cache;
+  }
+
+  /**
+   * Returns a tile, counting a hit or a miss.
+   * @param aKey the key of the tile.
+   * @return the tile, or null if not in the cache.
+   */
+  public Tile get( Key aKey )
+  {
+    TileStore source;
+    synchronized( this )
+    {
+      Tile tile = tiles.get( aKey );
+      if ( tile != null )
+      {
+        hits++;
+        return tile;
+      }
+      source = store;
+    }
+    // The store is looked into without holding the lock of the cache, so
+    // the cache can be used meanwhile
+    Tile tile = source == null ? null : source.get( aKey.getId() );
+    synchronized( this )
+    {
+      if ( tile == null )
+        misses++;
+      else
+      {
+        hits++;
+        putInMemory( aKey, tile );
+      }
+    }
+    return tile;
+  }
+
+  /**
+   * Tells if a tile is in the cache, or in its store (without counting a
+   *  hit or a miss, and without marking the tile as used).
+   * @param aKey the key of the tile.
+   * @return true if the tile is in the cache.
+   */
+  public boolean contains( Key aKey )
+  {
+    TileStore source;
+    synchronized( this )
+    {
+      if ( tiles.containsKey( aKey ) )
+        return true;
+      source = store;
+    }
+    return source != null && source.contains( aKey.getId() );
+  }
+
+  /**
+   * Adds a tile to the cache, evicting the tiles used least recently if
+   *  needed. The tile is added to the store later on, in the thread of the
+   *  store.
+   * @param aKey the key of the tile.
+   * @param aTile the tile, that must not be changed afterwards.
+   */
+  public synchronized void put( final Key aKey, final Tile aTile )
+  {
+    final TileStore target = store;
+    if ( target != null )
+    {
+      getStoreThread().execute( new Runnable()
+      {
+        public void run()
+        {
+          target.put( aKey.getId(), aTile );
+        }
+      } );
+    }
+    putInMemory( aKey, aTile );
+  }
+
+  /**
+   * Opens the default store in the thread of the store, and makes this
+   *  cache use it once open.
+   */
+  private synchronized void openDefaultStore()
+  {
+    getStoreThread().execute( new Runnable()
+    {
+      public void run()
+      {
+        setStore( TileStore.openDefault() );
+      }
+    } );
+  }
+
+  private ExecutorService getStoreThread()
+  {
+    if ( storeThread == null )
+    {
+      storeThread = Executors.newSingleThreadExecutor( new ThreadFactory()
+      {
+        public Thread newThread( Runnable aRunnable )
+        {
+          Thread thread = new Thread( aRunnable, "mandelbrot-tilestore" );
+          thread.setDaemon( true );
+          return thread;
+        }
+      } );
+    }
+    return storeThread;
+  }
+
+  private void putInMemory( Key aKey, Tile aTile )
+  {
+    if ( aTile.getSize() > budget )
+      return;
+    Tile previous = tiles.put( aKey, aTile );
+    if ( previous != null )
+      size -= previous.getSize();
+    size += aTile.getSize();
+    evict();
+  }
+
+  private void evict()
+  {
+    Iterator<Map.Entry<Key, Tile>> eldest = tiles.entrySet().iterator();
+    while( size > budget && eldest.hasNext() )
+    {
+      size -= eldest.next().getValue().getSize();
+      eldest.remove();
+    }
+  }
+
+  /**
+   * Removes all the tiles (counters are kept).
+   */
+  public synchronized void clear()
+  {
+    tiles.clear();
+    size = 0;
+  }
+
+  /**
+   * Waits until the tiles added to the cache have been added to the store,
+   *  and writes the store to disk. This is invoked when the application
+   *  exits (the store writes itself to disk every now and then anyway).
+   */
+  public void flush()
+  {
+    final TileStore target;
+    Future<?> written;
+    synchronized( this )
+    {
+      target = store;
+      if ( target == null )
+        return;
+      // Tiles are written in order, so once this task runs the tiles added
+      // so far are in the store
+      written = getStoreThread().submit( new Runnable()
+      {
+        public void run()
+        {
+          target.flush();
+        }
+      } );
+    }
+    try
+    {
+      written.get();
+    }
+    catch( InterruptedException e )
+    {
+      Thread.currentThread().interrupt();
+    }
+    catch( ExecutionException e )
+    {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Returns the store backing this cache.
+   * @return the store, or null if tiles are kept in memory only.
+   */
+  public synchronized TileStore getStore()
+  {
+    return store;
+  }
+
+  /**
+   * Changes the store backing this cache.
+   * @param aStore the store, or null to keep tiles in memory only.
+   */
+  public synchronized void setStore( TileStore aStore )
+  {
+    store = aStore;
+  }
+
+  /**
+   * Returns the maximum number of bytes held by the cache.
+   * @return the budget of the cache, in bytes.
+   */
+  public synchronized long getBudget()
+  {
+    return budget;
+  }
+
+  /**
+   * Changes the maximum number of bytes held by the cache, evicting tiles
+   *  if needed.
+   * @param aBudget the new budget, in bytes.
+   */
+  public synchronized void setBudget( long aBudget )
+  {
+    budget = aBudget;
+    evict();
+  }
+
+  /**
+   * Returns the number of bytes held by the cache (roughly).
+   * @return the size of the tiles in the cache.
+   */
+  public synchronized long getSize()
+  {
+    return size;
+  }
+
+  /**
+   * Returns the number of tiles in the cache.
+   * @return the number of tiles.
+   */
+  public synchronized int getTileCount()
+  {
+    return tiles.size();
+  }
+
+  /**
+   * Returns the number of tiles found in the cache so far.
+   * @return the number of hits.
+   */
+  public synchronized long getHits()
+  {
+    return hits;
+  }
+
+  /**
+   * Returns the number of tiles not found in the cache so far.
+   * @return the number of misses.
+   */
+  public synchronized long getMisses()
+  {
+    return misses;
+  }
+
+}
@@ -0,0 +1,402 @@
+/*
+ * $Id $
+ *
+ * Copyright 2005 Sun Microsystems
+ *
+ * Initially developed by Antonio Vieiro (vieiro@dev.java.net).
+ *
+ * This software is released under the Common Development and Distribution
+ *  License, version 1.0. See http://www.opensource.org/licenses/cddl1.php
+ *  for details.
+ *
+ * This software is distributed on an "AS IS" basis, without warranty of any
+ *  kind, either express or implied.
+ *
+ * All this stuff basically means that you can use this source code in your
+ *  software, either proprietary or not. See
+ *  http://www.opensolaris.org/os/about/faq/licensing_faq/ for interesting
+ *  information about the CDDL license.
+ *
+ */
+package org.jdesktop.swingworker.demos.mandelbrot.model;
+import java.awt.Rectangle;
+
+/**
+ * TileRenderer decides which points of a tile are computed, and how.
+ * A renderer computes points with the kernel of a worker, and sends the
+ *  results back to the worker, that publishes them. Renderers may
+ *  also split a tile in smaller tiles, to be computed later (possibly by
+ *  other workers).
+ * Renderers are not thread safe: each worker uses its own renderer.
+ * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
+ * @version $Revision: $
+ */
+public abstract class TileRenderer
+{
+  /**
+   * The different renderers available.
+   */
+  public enum Type
+  {
+    /**
+     * Computes each and every point of a tile.
+     */
+    BRUTE_FORCE,
+    /**
+     * Computes the border of a tile, and fills the tile if the whole
+     *  border has the same number of iterations. Splits the tile otherwise.
+     */
+    MARIANI_SILVER,
+    /**
+     * Computes a coarse version of the whole image first, and refines it
+     *  in further passes, reusing the points already computed.
+     */
+    PROGRESSIVE,
+    /**
+     * Computes a sparse lattice of points, and guesses the points of the
+     *  blocks whose corners agree. Refines the other blocks.
+     */
+    SOLID_GUESSING
+  }
+
+  /**
+   * The worker side of a renderer.
+   */
+  interface Context
+  {
+    /**
+     * Returns the kernel used to compute points.
+     */
+    EscapeTimeKernel getKernel();
+
+    /**
+     * Returns the real part of the points in a column of the image (or
+     *  their distance to the center of the viewport, for relative kernels).
+     */
+    double getX( int aColumn );
+
+    /**
+     * Returns the imaginary part of the points in a row of the image (or
+     *  their distance to the center of the viewport, for relative kernels).
+     */
+    double getY( int aRow );
+
+    /**
+     * Sends the results for an area of the image. The results are copied,
+     *  so the arrays may be reused as soon as this returns (and they may be
+     *  longer than the area).
+     * @param anArea the area of the image.
+     * @param iterations the number of iterations for each point in the area,
+     *  row after row.
+     * @param periods the periods of the orbits of each point in the area,
+     *  row after row.
+     */
+    void publish( Rectangle anArea, int[] iterations, int[] periods );
+
+    /**
+     * Sends the results for an area of the image, only some of which have
+     *  been computed (the rest are guessed, and will be sent again later).
+     * @param anArea the area of the image.
+     * @param iterations the number of iterations for each point in the area,
+     *  row after row.
+     * @param periods the periods of the orbits of each point in the area,
+     *  row after row.
+     * @param aComputedCount the number of points computed.
+     */
+    void publish( Rectangle anArea, int[] iterations, int[] periods, int aComputedCount );
+
+    /**
+     * Tells that some of the points published were not computed, but
+     *  guessed from the points around them.
+     * @param aCount the number of points guessed.
+     */
+    void pixelsGuessed( int aCount );
+
+    /**
+     * Tells that the number of iterations of some of the points published
+     *  were known already (and not computed again).
+     * @param aCount the number of points reused.
+     */
+    void pixelsReused( int aCount );
+
+    /**
+     * Tells if the number of iterations of a point is known before
+     *  computing it (because it was computed for the previous image).
+     */
+    boolean isKnown( int aColumn, int aRow );
+
+    /**
+     * Returns the number of iterations of a known point.
+     */
+    int getKnownIterations( int aColumn, int aRow );
+
+    /**
+     * Returns the period of the orbit of a known point.
+     */
+    int getKnownPeriod( int aColumn, int aRow );
+
+    /**
+     * Returns the number of iterations of a point published before.
+     */
+    int getIterations( int aColumn, int aRow );
+
+    /**
+     * Returns the period of the orbit of a point published before.
+     */
+    int getPeriod( int aColumn, int aRow );
+
+    /**
+     * Returns the number of iterations it took to get to the last point
+     *  retained of the orbit of a point, or zero if none is retained.
+     */
+    int getOrbitIterations( int aColumn, int aRow );
+
+    /**
+     * Returns the real part of the last point retained of the orbit of a
+     *  point.
+     */
+    double getOrbitX( int aColumn, int aRow );
+
+    /**
+     * Returns the imaginary part of the last point retained of the orbit of
+     *  a point.
+     */
+    double getOrbitY( int aColumn, int aRow );
+
+    /**
+     * Retains the last point of the orbit of a point that reached the
+     *  maximum number of iterations, so it can be resumed if the maximum
+     *  number of iterations is raised.
+     */
+    void retainOrbit( int aColumn, int aRow, int anIterations, double x, double y );
+
+    /**
+     * Schedules a tile to be rendered later.
+     */
+    void schedule( Rectangle aTile );
+
+    /**
+     * Schedules a tile to be rendered again in the next pass, once all the
+     *  tiles of the current pass are rendered.
+     */
+    void scheduleNextPass( Rectangle aTile );
+
+    /**
+     * Returns the current pass over the image, starting at zero.
+     */
+    int getPass();
+  }
+
+  /**
+   * Points sent to the kernel (and their pixels), and the results of the
+   *  kernel.
+   */
+  protected double[] a = new double[0];
+  protected double[] b = new double[0];
+  protected int[] columns = new int[0];
+  protected int[] rows = new int[0];
+  private int[] order = new int[0];
+  private double[] orbitX = new double[0];
+  private double[] orbitY = new double[0];
+  private int[] orbitIterations = new int[0];
+  protected int[] columnIterations = new int[0];
+  protected int[] columnPeriods = new int[0];
+
+  /**
+   * The results for a whole tile (or a piece of it), reused from tile to
+   *  tile (results are copied when published).
+   */
+  protected int[] tileIterations = new int[0];
+  protected int[] tilePeriods = new int[0];
+
+  /**
+   * Creates a new renderer.
+   * @param aType the type of renderer.
+   * @return a new renderer of the given type.
+   */
+  public static TileRenderer create( Type aType )
+  {
+    switch( aType )
+    {
+      case MARIANI_SILVER:
+        return new MarianiSilverTileRenderer();
+      case PROGRESSIVE:
+        return new ProgressiveTileRenderer();
+      case SOLID_GUESSING:
+        return new SolidGuessingTileRenderer();
+      default:
+        return new BruteForceTileRenderer();
+    }
+  }
+
+  /**
+   * Returns the default type of renderer, as specified by the
+   *  "mandelbrot.renderer" system property (BRUTE_FORCE if missing or
+   *  unknown).
+   * @return the default type of renderer.
+   */
+  public static Type getDefaultType()
+  {
+    try
+    {
+      return Type.valueOf( System.getProperty( "mandelbrot.renderer", "BRUTE_FORCE" ).toUpperCase() );
+    }
+    catch( Exception e )
+    {
+      return Type.BRUTE_FORCE;
+    }
+  }
+
+  /**
+   * Renders a tile.
+   * This method is invoked in a worker thread.
+   * @param aTile the tile to render.
+   * @param aContext the worker rendering the tile.
+   */
+  public abstract void render( Rectangle aTile, Context aContext );
+
+  /**
+   * Computes each and every point of an area, column after column.
+   * @param anArea the area to compute.
+   * @param aContext the worker rendering the area.
+   * @param iterations where the number of iterations are stored, row after row.
+   * @param periods where the periods are stored, row after row.
+   */
+  protected void computeArea( Rectangle anArea, Context aContext,
+    int[] iterations, int[] periods )
+  {
+    ensureCapacity( anArea.height );
+    for( int ix = 0; ix < anArea.width; ix++ )
+    {
+      for( int iy = 0; iy < anArea.height; iy++ )
+        setPoint( iy, anArea.x+ix, anArea.y+iy, aContext );
+      computePoints( anArea.height, aContext );
+      for( int iy = 0; iy < anArea.height; iy++ )
+      {
+        iterations[ iy*anArea.width + ix ] = columnIterations[ iy ];
+        periods[ iy*anArea.width + ix ] = columnPeriods[ iy ];
+      }
+    }
+  }
+
+  /**
+   * Sets a point to be sent to the kernel.
+   * @param k the index of the point.
+   * @param aColumn the column of the point in the image.
+   * @param aRow the row of the point in the image.
+   * @param aContext the worker rendering the point.
+   */
+  protected void setPoint( int k, int aColumn, int aRow, Context aContext )
+  {
+    a[ k ] = aContext.getX( aColumn );
+    b[ k ] = aContext.getY( aRow );
+    columns[ k ] = aColumn;
+    rows[ k ] = aRow;
+  }
+
+  /**
+   * Computes the points set with setPoint(), leaving the results in
+   *  columnIterations and columnPeriods. Points whose number of iterations
+   *  is already known (see Context.isKnown()) are not computed again, and
+   *  points whose orbit was retained are resumed, if the kernel can do so.
+   * @param aCount the number of points.
+   * @param aContext the worker rendering the points.
+   */
+  protected void computePoints( int aCount, Context aContext )
+  {
+    // Move the unknown points to the beginning...
+    int unknown = 0;
+    for( int k = 0; k < aCount; k++ )
+    {
+      if ( aContext.isKnown( columns[k], rows[k] ) )
+        continue;
+      a[ unknown ] = a[ k ];
+      b[ unknown ] = b[ k ];
+      order[ unknown ] = k;
+      unknown++;
+    }
+    EscapeTimeKernel kernel = aContext.getKernel();
+    if ( kernel.isResumable() )
+      resumePoints( unknown, kernel, aContext );
+    else
+      kernel.compute( a, b, unknown, columnIterations, columnPeriods );
+    if ( unknown == aCount )
+      return;
+
+    // ... and then put the results back in place (backwards, so results
+    // not moved yet are not overwritten)
+    for( int u = unknown-1; u >= 0; u-- )
+    {
+      columnIterations[ order[u] ] = columnIterations[ u ];
+      columnPeriods[ order[u] ] = columnPeriods[ u ];
+    }
+    for( int k = 0, u = 0; k < aCount; k++ )
+    {
+      if ( u < unknown && order[u] == k )
+      {
+        u++;
+        continue;
+      }
+      columnIterations[ k ] = aContext.getKnownIterations( columns[k], rows[k] );
+      columnPeriods[ k ] = aContext.getKnownPeriod( columns[k], rows[k] );
+    }
+    aContext.pixelsReused( aCount - unknown );
+  }
+
+  /**
+   * Computes the first points of a and b, starting from the orbits
+   *  retained for them, and retains the orbits of the points that reach the
+   *  maximum number of iterations.
+   */
+  private void resumePoints( int aCount, EscapeTimeKernel aKernel, Context aContext )
+  {
+    for( int u = 0; u < aCount; u++ )
+    {
+      int column = columns[ order[u] ];
+      int row = rows[ order[u] ];
+      orbitIterations[ u ] = aContext.getOrbitIterations( column, row );
+      if ( orbitIterations[ u ] > 0 )
+      {
+        orbitX[ u ] = aContext.getOrbitX( column, row );
+        orbitY[ u ] = aContext.getOrbitY( column, row );
+      }
+    }
+    aKernel.resume( a, b, orbitX, orbitY, orbitIterations, aCount, columnIterations, columnPeriods );
+    for( int u = 0; u < aCount; u++ )
+      if ( orbitIterations[ u ] > 0 )
+        aContext.retainOrbit( columns[ order[u] ], rows[ order[u] ], orbitIterations[ u ], orbitX[ u ], orbitY[ u ] );
+  }
+
+  /**
+   * Makes sure the results for a tile can hold a number of points.
+   */
+  protected void ensureTileCapacity( int aCount )
+  {
+    if ( tileIterations.length < aCount )
+    {
+      tileIterations = new int[ aCount ];
+      tilePeriods = new int[ aCount ];
+    }
+  }
+
+  /**
+   * Makes sure the arrays sent to the kernel can hold a number of points.
+   */
+  protected void ensureCapacity( int aCount )
+  {
+    if ( a.length < aCount )
+    {
+      a = new double[ aCount ];
+      b = new double[ aCount ];
+      columns = new int[ aCount ];
+      rows = new int[ aCount ];
+      order = new int[ aCount ];
+      orbitX = new double[ aCount ];
+      orbitY = new double[ aCount ];
+      orbitIterations = new int[ aCount ];
+      columnIterations = new int[ aCount ];
+      columnPeriods = new int[ aCount ];
+    }
+  }
+
+}
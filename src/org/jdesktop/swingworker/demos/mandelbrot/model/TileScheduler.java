@@ -0,0 +1,548 @@
+/*
+ * $Id $
+ *
+ * Copyright 2005 Sun Microsystems
+ *
+ * Initially developed by Antonio Vieiro (vieiro@dev.java.net).
+ *
+ * This software is released under the Common Development and Distribution
+ *  License, version 1.0. See http://www.opensource.org/licenses/cddl1.php
+ *  for details.
+ *
+ * This software is distributed on an "AS IS" basis, without warranty of any
+ *  kind, either express or implied.
+ *
+ * All this stuff basically means that you can use this source code in your
+ *  software, either proprietary or not. See
+ *  http://www.opensolaris.org/os/about/faq/licensing_faq/ for interesting
+ *  information about the CDDL license.
+ *
+ */
+package org.jdesktop.swingworker.demos.mandelbrot.model;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * TileScheduler cuts a region of the user space in small tiles and hands
+ *  them to a fixed number of workers.
+ * Each worker owns a deque of tiles. A worker takes tiles from the head
+ *  of its own deque and, when it runs out of work, steals tiles from the
+ *  tail of the deques of the other workers. This way tiles covering the
+ *  (expensive) interior of the set are shared among all workers, and every
+ *  worker keeps busy until the whole region is done, whatever the number
+ *  of workers is.
+ * Workers may also split tiles they're computing, and schedule the pieces
+ *  back, so other workers can pick them up.
+ * Tiles may also be scheduled for the next pass over the region, which starts
+ *  once every tile of the current pass is done (progressive renderers use
+ *  passes to refine the whole image a little at a time).
+ * A scheduler may be cancelled: workers get no more tiles, and kernels
+ *  stop in the middle of the tiles being computed (see
+ *  EscapeTimeKernel.checkCancelled()). The tiles that were not finished
+ *  are kept, so the rest of the region can be reused.
+ * A scheduler may also be retired, when the image is going to be changed
+ *  before the workers leave: once retired, workers can't write in the
+ *  image anymore, and the tiles they were computing are left unfinished.
+ * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
+ * @version $Revision: $
+ */
+public class TileScheduler
+{
+  /**
+   * The default size (in pixels) of the side of a tile.
+   */
+  public static final int TILE_SIZE = 32;
+
+  private ConcurrentLinkedDeque<Rectangle> [] deques;
+  /**
+   * The number of workers holding a tile.
+   */
+  private AtomicInteger busyWorkers = new AtomicInteger();
+  private AtomicLong donePixels = new AtomicLong();
+  private AtomicLong guessedPixels = new AtomicLong();
+  private AtomicLong provenPixels = new AtomicLong();
+  private AtomicLong reusedPixels = new AtomicLong();
+  private AtomicInteger provenTiles = new AtomicInteger();
+  private AtomicLong glitchedPixels = new AtomicLong();
+  private long totalPixels;
+  /**
+   * The tiles for the next pass, and the current pass.
+   */
+  private ConcurrentLinkedQueue<Rectangle> nextPass = new ConcurrentLinkedQueue<Rectangle>();
+  private volatile int pass;
+  private volatile boolean cancelled;
+  /**
+   * The tiles workers were computing when the scheduler was cancelled.
+   */
+  private ConcurrentLinkedQueue<Rectangle> cancelledTiles = new ConcurrentLinkedQueue<Rectangle>();
+  /**
+   * The tile each worker is computing, or null.
+   */
+  private Rectangle [] workingTiles;
+  /**
+   * Held by workers while they take, schedule or finish tiles and while
+   *  they write in the image, and held exclusively while retiring the
+   *  scheduler (so the tiles not computed yet don't change meanwhile).
+   */
+  private ReentrantReadWriteLock frameLock = new ReentrantReadWriteLock();
+  /**
+   * The tiles not computed when the scheduler was retired, or null if not
+   *  retired.
+   */
+  private volatile List<Rectangle> retiredTiles;
+
+  /**
+   * Creates a new instance of TileScheduler.
+   * @param anUserArea the region of the user space to cut in tiles.
+   * @param nWorkers the number of workers that will pull tiles.
+   */
+  public TileScheduler( Rectangle anUserArea, int nWorkers )
+  {
+    this( Collections.singletonList( anUserArea ), nWorkers );
+  }
+
+  /**
+   * Creates a new instance of TileScheduler for several regions.
+   * @param someUserAreas the regions of the user space to cut in tiles.
+   * @param nWorkers the number of workers that will pull tiles.
+   */
+  @SuppressWarnings("unchecked")
+  public TileScheduler( List<Rectangle> someUserAreas, int nWorkers )
+  {
+    nWorkers = Math.max( 1, nWorkers );
+    deques = (ConcurrentLinkedDeque<Rectangle> []) new ConcurrentLinkedDeque<?>[ nWorkers ];
+    for( int i=0; i<nWorkers; i++ )
+      deques[i] = new ConcurrentLinkedDeque<Rectangle>();
+    workingTiles = new Rectangle[ nWorkers ];
+
+    // Deal tiles round-robin, so each worker starts with tiles spread
+    // all over the region (and thus a similar amount of work).
+    int i=0;
+    for( Rectangle anUserArea : someUserAreas )
+    {
+      for( int y = anUserArea.y; y < anUserArea.y + anUserArea.height; y += TILE_SIZE )
+      {
+        for( int x = anUserArea.x; x < anUserArea.x + anUserArea.width; x += TILE_SIZE )
+        {
+          int width = Math.min( TILE_SIZE, anUserArea.x + anUserArea.width - x );
+          int height = Math.min( TILE_SIZE, anUserArea.y + anUserArea.height - y );
+          deques[ i % nWorkers ].addLast( new Rectangle( x, y, width, height ) );
+          i++;
+        }
+      }
+      totalPixels += (long) anUserArea.width * anUserArea.height;
+    }
+  }
+
+  /**
+   * Returns the number of workers this scheduler was built for.
+   * @return the number of workers.
+   */
+  public int getWorkerCount()
+  {
+    return deques.length;
+  }
+
+  /**
+   * Returns the next tile to compute by a worker.
+   * If there're no tiles left but other workers are still computing (and
+   *  thus may schedule new tiles) this method waits.
+   * This method is invoked in a worker thread.
+   * @param aWorkerIndex the index of the worker, from 0 to getWorkerCount()-1.
+   * @return the next tile to compute (the worker must invoke tileDone() when
+   *  finished with it), or null if there're no more tiles, if the worker
+   *  has been interrupted or if the scheduler has been cancelled (or
+   *  retired).
+   */
+  public Rectangle nextTile( int aWorkerIndex )
+  {
+    while( true )
+    {
+      if ( cancelled )
+        return null;
+      busyWorkers.incrementAndGet();
+      Rectangle tile = takeTile( aWorkerIndex );
+      if ( tile != null )
+        return tile;
+      // Tiles are scheduled before the worker scheduling them is done, so
+      // if nobody is busy now and there's nothing left this pass is done.
+      if ( busyWorkers.decrementAndGet() == 0 && isEmpty() )
+      {
+        if ( ! startNextPass() )
+          return null;
+        continue;
+      }
+      if ( Thread.currentThread().isInterrupted() )
+        return null;
+      LockSupport.parkNanos( TimeUnit.MICROSECONDS.toNanos( 100 ) );
+    }
+  }
+
+  /**
+   * Takes a tile for a worker, so it's either scheduled or being computed
+   *  when the scheduler is retired.
+   */
+  private Rectangle takeTile( int aWorkerIndex )
+  {
+    frameLock.readLock().lock();
+    try
+    {
+      if ( retiredTiles != null )
+        return null;
+      Rectangle tile = pollTile( aWorkerIndex );
+      workingTiles[ aWorkerIndex ] = tile;
+      return tile;
+    }
+    finally
+    {
+      frameLock.readLock().unlock();
+    }
+  }
+
+  private Rectangle pollTile( int aWorkerIndex )
+  {
+    Rectangle tile = deques[ aWorkerIndex ].pollFirst();
+    if ( tile != null )
+      return tile;
+    // Nothing left here, try to steal some work from the others
+    for( int i=1; i<deques.length; i++ )
+    {
+      tile = deques[ (aWorkerIndex + i) % deques.length ].pollLast();
+      if ( tile != null )
+        return tile;
+    }
+    return null;
+  }
+
+  /**
+   * Starts the next pass, if the current one is done.
+   * @return false if everything is done, true otherwise.
+   */
+  private synchronized boolean startNextPass()
+  {
+    frameLock.readLock().lock();
+    try
+    {
+      if ( retiredTiles != null )
+        return false;
+      // Other workers may have started the next pass already, or be
+      // rendering tiles of it
+      if ( busyWorkers.get() > 0 || ! isEmpty() )
+        return true;
+      if ( ! nextPass.isEmpty() )
+      {
+        // Workers may take the tiles (and schedule them for the pass after
+        // this one) as soon as they're dealt
+        List<Rectangle> tiles = new ArrayList<Rectangle>();
+        Rectangle tile;
+        while( (tile = nextPass.poll()) != null )
+          tiles.add( tile );
+        pass++;
+        for( int i=0; i<tiles.size(); i++ )
+          deques[ i % deques.length ].addLast( tiles.get( i ) );
+      }
+      return ! isEmpty();
+    }
+    finally
+    {
+      frameLock.readLock().unlock();
+    }
+  }
+
+  private boolean isEmpty()
+  {
+    for( ConcurrentLinkedDeque<Rectangle> deque : deques )
+      if ( ! deque.isEmpty() )
+        return false;
+    return true;
+  }
+
+  /**
+   * Schedules a new tile, usually a piece of a tile being computed.
+   * The tile is computed next by the worker, unless another worker
+   *  steals it first.
+   * @param aWorkerIndex the index of the worker scheduling the tile.
+   * @param aTile the tile to schedule.
+   */
+  public void schedule( int aWorkerIndex, Rectangle aTile )
+  {
+    frameLock.readLock().lock();
+    try
+    {
+      // Once retired the tile being computed is left unfinished as a whole
+      if ( retiredTiles == null )
+        deques[ aWorkerIndex ].addFirst( aTile );
+    }
+    finally
+    {
+      frameLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Schedules a tile for the next pass.
+   * @param aTile the tile to schedule.
+   */
+  public void scheduleNextPass( Rectangle aTile )
+  {
+    frameLock.readLock().lock();
+    try
+    {
+      if ( retiredTiles == null )
+        nextPass.add( aTile );
+    }
+    finally
+    {
+      frameLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the current pass, starting at zero.
+   * @return the current pass.
+   */
+  public int getPass()
+  {
+    return pass;
+  }
+
+  /**
+   * Cancels the computation of the region: no more tiles are handed to the
+   *  workers, and the kernels stop within CANCELLATION_INTERVAL iterations
+   *  (see EscapeTimeKernel).
+   * This method may be invoked in any thread.
+   */
+  public void cancel()
+  {
+    cancelled = true;
+  }
+
+  /**
+   * Tells if the computation of the region has been cancelled.
+   * @return true if cancel() has been invoked.
+   */
+  public boolean isCancelled()
+  {
+    return cancelled;
+  }
+
+  /**
+   * Cancels the computation of the region, and makes sure the workers
+   *  don't write in the image anymore, so the image can be changed right
+   *  away (without waiting for the workers to leave). Workers writing in
+   *  the image are waited for, but not the ones computing.
+   * This method may be invoked in any thread.
+   * @return the tiles not computed: the tiles scheduled, and the ones being
+   *  computed (see getUnfinishedTiles()).
+   */
+  public List<Rectangle> retire()
+  {
+    cancel();
+    frameLock.writeLock().lock();
+    try
+    {
+      if ( retiredTiles == null )
+        retiredTiles = getUnfinishedTiles();
+      return new ArrayList<Rectangle>( retiredTiles );
+    }
+    finally
+    {
+      frameLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Invoked by workers before writing the results of a tile in the image.
+   * If this returns true the worker must invoke endWrite() once written.
+   * This method is invoked in a worker thread.
+   * @return true if the results can be written, false if the scheduler has
+   *  been retired (and the tile is to be left unfinished).
+   */
+  public boolean beginWrite()
+  {
+    frameLock.readLock().lock();
+    if ( retiredTiles == null )
+      return true;
+    frameLock.readLock().unlock();
+    return false;
+  }
+
+  /**
+   * Invoked by workers once the results of a tile are written in the image
+   *  (see beginWrite()).
+   */
+  public void endWrite()
+  {
+    frameLock.readLock().unlock();
+  }
+
+  /**
+   * Invoked by workers when they leave a tile unfinished because the
+   *  scheduler has been cancelled (before invoking tileDone()).
+   * @param aTile the tile left unfinished.
+   */
+  public void tileCancelled( Rectangle aTile )
+  {
+    cancelledTiles.add( aTile );
+  }
+
+  /**
+   * Returns the parts of the region not computed yet: the tiles scheduled
+   *  (for this pass or the next one), the tiles being computed and the
+   *  tiles left unfinished. Once every worker is done, the rest of the
+   *  region is finished. Once retired, the rest of the region is finished
+   *  already.
+   * @return the tiles not computed yet.
+   */
+  public List<Rectangle> getUnfinishedTiles()
+  {
+    List<Rectangle> retired = retiredTiles;
+    if ( retired != null )
+      return new ArrayList<Rectangle>( retired );
+    List<Rectangle> tiles = new ArrayList<Rectangle>();
+    for( ConcurrentLinkedDeque<Rectangle> deque : deques )
+      tiles.addAll( deque );
+    tiles.addAll( nextPass );
+    tiles.addAll( cancelledTiles );
+    for( Rectangle tile : workingTiles )
+      if ( tile != null )
+        tiles.add( tile );
+    return tiles;
+  }
+
+  /**
+   * Invoked by workers when they finish a tile.
+   * @param aWorkerIndex the index of the worker.
+   */
+  public void tileDone( int aWorkerIndex )
+  {
+    frameLock.readLock().lock();
+    try
+    {
+      workingTiles[ aWorkerIndex ] = null;
+    }
+    finally
+    {
+      frameLock.readLock().unlock();
+    }
+    busyWorkers.decrementAndGet();
+  }
+
+  /**
+   * Invoked by workers when they have computed some pixels.
+   * @param aCount the number of pixels computed.
+   */
+  public void pixelsDone( int aCount )
+  {
+    donePixels.addAndGet( aCount );
+  }
+
+  /**
+   * Invoked by workers when some of the pixels done were guessed, instead
+   *  of computed.
+   * @param aCount the number of pixels guessed.
+   */
+  public void pixelsGuessed( int aCount )
+  {
+    guessedPixels.addAndGet( aCount );
+  }
+
+  /**
+   * Invoked by workers when all the pixels of a tile have been proven to
+   *  have the same number of iterations, without computing them.
+   * @param aCount the number of pixels in the tile.
+   */
+  public void tileProven( int aCount )
+  {
+    provenTiles.incrementAndGet();
+    provenPixels.addAndGet( aCount );
+  }
+
+  /**
+   * Invoked by workers when the number of iterations of some of the pixels
+   *  done were known already.
+   * @param aCount the number of pixels reused.
+   */
+  public void pixelsReused( int aCount )
+  {
+    reusedPixels.addAndGet( aCount );
+  }
+
+  /**
+   * Invoked by workers when some of the pixels done may be wrong, because
+   *  they were glitched and couldn't be computed again (see
+   *  PerturbationEscapeTimeKernel).
+   * @param aCount the number of pixels glitched.
+   */
+  public void pixelsGlitched( int aCount )
+  {
+    glitchedPixels.addAndGet( aCount );
+  }
+
+  /**
+   * Returns the number of pixels computed so far.
+   * @return the number of pixels computed (and not guessed, proven or
+   *  reused).
+   */
+  public long getComputedPixels()
+  {
+    return donePixels.get() - guessedPixels.get() - provenPixels.get() - reusedPixels.get();
+  }
+
+  /**
+   * Returns the number of pixels reused so far.
+   * @return the number of pixels known before computing them.
+   */
+  public long getReusedPixels()
+  {
+    return reusedPixels.get();
+  }
+
+  /**
+   * Returns the number of tiles proven so far.
+   * @return the number of tiles filled without computing their pixels.
+   */
+  public int getProvenTiles()
+  {
+    return provenTiles.get();
+  }
+
+  /**
+   * Returns the number of pixels guessed so far.
+   * @return the number of pixels guessed from the pixels around them.
+   */
+  public long getGuessedPixels()
+  {
+    return guessedPixels.get();
+  }
+
+  /**
+   * Returns the number of pixels glitched so far.
+   * @return the number of pixels whose number of iterations may be wrong.
+   */
+  public long getGlitchedPixels()
+  {
+    return glitchedPixels.get();
+  }
+
+  /**
+   * Returns the overall progress, from 0 to 100.
+   * @return the percentage of pixels already computed.
+   */
+  public int getProgress()
+  {
+    if ( totalPixels == 0 )
+      return 100;
+    return (int) (donePixels.get() * 100L / totalPixels);
+  }
+
+}
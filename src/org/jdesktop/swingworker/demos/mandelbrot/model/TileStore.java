@@ -0,0 +1,649 @@
+/*
+ * $Id $
+ *
+ * Copyright 2005 Sun Microsystems
+ *
+ * Initially developed by Antonio Vieiro (vieiro@dev.java.net).
+ *
+ * This software is released under the Common Development and Distribution
+ *  License, version 1.0. See http://www.opensource.org/licenses/cddl1.php
+ *  for details.
+ *
+ * This software is distributed on an "AS IS" basis, without warranty of any
+ *  kind, either express or implied.
+ *
+ * All this stuff basically means that you can use this source code in your
+ *  software, either proprietary or not. See
+ *  http://www.opensolaris.org/os/about/faq/licensing_faq/ for interesting
+ *  information about the CDDL license.
+ *
+ */
+package org.jdesktop.swingworker.demos.mandelbrot.model;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * TileStore keeps tiles on disk, so regions computed in previous sessions
+ *  are not computed again.
+ * Tiles are appended to segment files of SEGMENT_SIZE bytes, mapped in
+ *  memory. Each record holds the id of the tile (see TileCache.Key.getId()),
+ *  its pixels and a checksum, and its header is written last, so a record
+ *  half written when the application dies is ignored (and overwritten)
+ *  the next time the store is opened. Checksums are verified again when
+ *  tiles are read.
+ * The index (the segment and position of each tile) is kept in memory, and
+ *  saved to an index file whenever a segment is full and when the store is
+ *  flushed. Each segment starts with a random generation number, saved in
+ *  the index file too, so when the store is opened only the records
+ *  appended after the index was saved (or the segments the index doesn't
+ *  know about) are scanned.
+ * When the segments take more than the size of the store, the oldest
+ *  segment is deleted, with all its tiles.
+ * Segments are written to disk (forced) when full, and when the store is
+ *  flushed. Creating, forcing and deleting segments is done without holding
+ *  the lock of the store (tiles are written one at a time, holding a lock
+ *  of their own), so reading tiles never waits for those.
+ * This class is thread safe.
+ * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
+ * @version $Revision: $
+ */
+public class TileStore
+{
+  /**
+   * The size of a segment file, in bytes.
+   */
+  public static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+  /**
+   * The first int of every segment.
+   */
+  private static final int SEGMENT_MAGIC = 0x4D545331; // "MTS1"
+
+  /**
+   * The size of the header of a segment: magic, a reserved int and the
+   *  generation of the segment.
+   */
+  private static final int SEGMENT_HEADER_SIZE = 16;
+
+  /**
+   * The first int of every record.
+   */
+  private static final int MAGIC = 0x4D544C31; // "MTL1"
+
+  /**
+   * The size of the header of a record: magic, id length, pixel count and
+   *  checksum.
+   */
+  private static final int HEADER_SIZE = 16;
+
+  /**
+   * The first int of the index file.
+   */
+  private static final int INDEX_MAGIC = 0x4D544931; // "MTI1"
+
+  private static final String SEGMENT_PREFIX = "tiles-";
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final String INDEX_FILE = "tiles.idx";
+  private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+  private static final Random generations = new Random();
+
+  /**
+   * A segment file, mapped in memory.
+   */
+  private static final class Segment
+  {
+    private final long number;
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private long generation;
+    /**
+     * Where the next record is appended.
+     */
+    private int end;
+
+    private Segment( long aNumber, File aFile, MappedByteBuffer aBuffer )
+    {
+      number = aNumber;
+      file = aFile;
+      buffer = aBuffer;
+    }
+  }
+
+  private File directory;
+  private long maxSize;
+  /**
+   * The segments, from the oldest to the newest one (where records are
+   *  appended).
+   */
+  private List<Segment> segments = new ArrayList<Segment>();
+  /**
+   * The index: the segment and position of each tile, by id.
+   */
+  private Map<String, Long> index = new HashMap<String, Long>();
+  private long hits;
+  /**
+   * Held while writing the index file.
+   */
+  private final Object indexFileLock = new Object();
+  /**
+   * Held while appending a tile, so only one segment is started at a time.
+   */
+  private final Object appendLock = new Object();
+
+  /**
+   * Opens a store, creating it if needed.
+   * @param aDirectory the directory holding the segment files.
+   * @param aMaxSize the maximum number of bytes of the segment files (at
+   *  least two segments are kept).
+   * @throws IOException if the store can't be opened.
+   */
+  public TileStore( File aDirectory, long aMaxSize )
+    throws IOException
+  {
+    directory = aDirectory;
+    maxSize = aMaxSize;
+    if ( ! directory.isDirectory() && ! directory.mkdirs() )
+      throw new IOException( "Can't create " + directory );
+    File [] files = directory.listFiles();
+    List<Long> numbers = new ArrayList<Long>();
+    for( File file : files == null ? new File[0] : files )
+    {
+      String name = file.getName();
+      if ( name.startsWith( SEGMENT_PREFIX ) && name.endsWith( SEGMENT_SUFFIX ) )
+      {
+        try
+        {
+          numbers.add( Long.valueOf( name.substring( SEGMENT_PREFIX.length(),
+            name.length() - SEGMENT_SUFFIX.length() ) ) );
+        }
+        catch( NumberFormatException e )
+        {
+          // Not ours
+        }
+      }
+    }
+    Long [] sorted = numbers.toArray( new Long[ numbers.size() ] );
+    Arrays.sort( sorted );
+    for( Long number : sorted )
+      segments.add( open( number.longValue() ) );
+    if ( segments.isEmpty() )
+      segments.add( open( 0 ) );
+
+    // Records the index file knows about are taken from it, as long as
+    // their segment is the one indexed...
+    Map<Long, long[]> indexedSegments = new HashMap<Long, long[]>();
+    Map<String, Long> locations = new HashMap<String, Long>();
+    readIndex( indexedSegments, locations );
+    Set<Long> trusted = new HashSet<Long>();
+    for( Segment segment : segments )
+    {
+      long[] indexed = indexedSegments.get( Long.valueOf( segment.number ) );
+      if ( indexed != null && indexed[0] == segment.generation
+        && indexed[1] >= SEGMENT_HEADER_SIZE && indexed[1] <= SEGMENT_SIZE )
+      {
+        segment.end = (int) indexed[1];
+        trusted.add( Long.valueOf( segment.number ) );
+      }
+    }
+    for( Map.Entry<String, Long> entry : locations.entrySet() )
+    {
+      long location = entry.getValue().longValue();
+      Segment segment = getSegment( location >>> 32 );
+      if ( segment != null && trusted.contains( Long.valueOf( segment.number ) )
+        && (int) location < segment.end )
+        index.put( entry.getKey(), entry.getValue() );
+    }
+    // ... and the rest are scanned
+    for( Segment segment : segments )
+      scan( segment );
+  }
+
+  /**
+   * Opens the store specified by the "mandelbrot.tilestore" system property
+   *  (a directory, ".mandelbrot/tiles" in the home of the user if missing)
+   *  with the size specified by the "mandelbrot.tilestore.size" system
+   *  property (in megabytes, 256 if missing or wrong).
+   * @return the store, or null if disabled (the property is empty) or if
+   *  it can't be opened.
+   */
+  public static TileStore openDefault()
+  {
+    String path = System.getProperty( "mandelbrot.tilestore",
+      new File( new File( System.getProperty( "user.home" ), ".mandelbrot" ), "tiles" ).getPath() );
+    if ( path.length() == 0 )
+      return null;
+    long megabytes;
+    try
+    {
+      megabytes = Long.parseLong( System.getProperty( "mandelbrot.tilestore.size", "256" ) );
+    }
+    catch( NumberFormatException e )
+    {
+      megabytes = 256;
+    }
+    try
+    {
+      return new TileStore( new File( path ), megabytes * 1024 * 1024 );
+    }
+    catch( IOException e )
+    {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Opens a segment, giving it a header (and a new generation) if it has
+   *  none. Records are appended after the header, until the segment is
+   *  scanned. The segment is not added to the segments of the store.
+   */
+  private Segment open( long aNumber )
+    throws IOException
+  {
+    File file = new File( directory, SEGMENT_PREFIX + aNumber + SEGMENT_SUFFIX );
+    RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+    try
+    {
+      // The mapping stays valid once the channel is closed
+      MappedByteBuffer buffer = raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE );
+      Segment segment = new Segment( aNumber, file, buffer );
+      if ( buffer.getInt( 0 ) == SEGMENT_MAGIC )
+        segment.generation = buffer.getLong( 8 );
+      else
+      {
+        // A new segment, or one whose header didn't get to disk: whatever
+        // it holds is overwritten
+        synchronized( generations )
+        {
+          segment.generation = generations.nextLong();
+        }
+        buffer.putLong( 8, segment.generation );
+        buffer.putInt( 4, 0 );
+        buffer.putInt( 0, SEGMENT_MAGIC );
+      }
+      segment.end = SEGMENT_HEADER_SIZE;
+      return segment;
+    }
+    finally
+    {
+      raf.close();
+    }
+  }
+
+  /**
+   * Adds the records of a segment after its end to the index, up to the
+   *  first record not completely written.
+   */
+  private void scan( Segment aSegment )
+  {
+    int position = aSegment.end;
+    while( true )
+    {
+      byte [] record = readRecord( aSegment.buffer, position );
+      if ( record == null )
+        break;
+      int idLength = aSegment.buffer.getInt( position + 4 );
+      index.put( new String( record, 0, idLength, UTF8 ), getLocation( aSegment, position ) );
+      position += HEADER_SIZE + record.length;
+    }
+    aSegment.end = position;
+  }
+
+  /**
+   * Returns the contents of a record (the id and the pixels, after the
+   *  header), or null if there's no valid record there.
+   */
+  private static byte [] readRecord( MappedByteBuffer aBuffer, int aPosition )
+  {
+    if ( aPosition + HEADER_SIZE > SEGMENT_SIZE || aBuffer.getInt( aPosition ) != MAGIC )
+      return null;
+    int idLength = aBuffer.getInt( aPosition + 4 );
+    int pixelCount = aBuffer.getInt( aPosition + 8 );
+    if ( idLength <= 0 || pixelCount <= 0 )
+      return null;
+    long size = HEADER_SIZE + idLength + 8L * pixelCount;
+    if ( aPosition + size > SEGMENT_SIZE )
+      return null;
+    byte [] record = new byte[ (int) size - HEADER_SIZE ];
+    ByteBuffer contents = aBuffer.duplicate();
+    contents.position( aPosition + HEADER_SIZE );
+    contents.get( record );
+    if ( getChecksum( idLength, pixelCount, record ) != aBuffer.getInt( aPosition + 12 ) )
+      return null;
+    return record;
+  }
+
+  /**
+   * Returns the checksum of a record: the CRC of its id length, its pixel
+   *  count and its contents.
+   */
+  private static int getChecksum( int anIdLength, int aPixelCount, byte [] aRecord )
+  {
+    CRC32 crc = new CRC32();
+    crc.update( ByteBuffer.allocate( 8 ).putInt( anIdLength ).putInt( aPixelCount ).array() );
+    crc.update( aRecord, 0, aRecord.length );
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Returns the location of a record: the number of its segment and its
+   *  position in the segment.
+   */
+  private static Long getLocation( Segment aSegment, int aPosition )
+  {
+    return Long.valueOf( (aSegment.number << 32) | aPosition );
+  }
+
+  /**
+   * Reads the index file, if any. Nothing is read if the file is damaged.
+   * @param someSegments where the generation and the end of the segments
+   *  indexed are stored, by segment number.
+   * @param someLocations where the locations of the tiles are stored, by id.
+   */
+  private void readIndex( Map<Long, long[]> someSegments, Map<String, Long> someLocations )
+  {
+    File file = new File( directory, INDEX_FILE );
+    if ( ! file.isFile() )
+      return;
+    try
+    {
+      CheckedInputStream checked = new CheckedInputStream(
+        new BufferedInputStream( new FileInputStream( file ) ), new CRC32() );
+      DataInputStream in = new DataInputStream( checked );
+      try
+      {
+        if ( in.readInt() != INDEX_MAGIC )
+          return;
+        Map<Long, long[]> segmentsRead = new HashMap<Long, long[]>();
+        for( int i = in.readInt(); i > 0; i-- )
+          segmentsRead.put( Long.valueOf( in.readLong() ), new long[] { in.readLong(), in.readInt() } );
+        Map<String, Long> locationsRead = new HashMap<String, Long>();
+        for( int i = in.readInt(); i > 0; i-- )
+          locationsRead.put( in.readUTF(), Long.valueOf( in.readLong() ) );
+        long checksum = checked.getChecksum().getValue();
+        if ( in.readLong() != checksum )
+          return;
+        someSegments.putAll( segmentsRead );
+        someLocations.putAll( locationsRead );
+      }
+      finally
+      {
+        in.close();
+      }
+    }
+    catch( IOException e )
+    {
+      // A damaged index, the segments are scanned instead
+    }
+  }
+
+  /**
+   * Writes the current segment to disk, and then the index file (the older
+   *  segments were written when they got full).
+   */
+  private void saveIndex()
+  {
+    Segment current;
+    List<long[]> segmentsIndexed = new ArrayList<long[]>();
+    Map<String, Long> locations;
+    synchronized( this )
+    {
+      current = segments.get( segments.size() - 1 );
+      for( Segment segment : segments )
+        segmentsIndexed.add( new long[] { segment.number, segment.generation, segment.end } );
+      locations = new HashMap<String, Long>( index );
+    }
+    current.buffer.force();
+
+    // The index is written to another file first, so an index half written
+    // never replaces a good one
+    synchronized( indexFileLock )
+    {
+      File temporary = new File( directory, INDEX_FILE + ".tmp" );
+      try
+      {
+        FileOutputStream file = new FileOutputStream( temporary );
+        CheckedOutputStream checked = new CheckedOutputStream( new BufferedOutputStream( file ), new CRC32() );
+        DataOutputStream out = new DataOutputStream( checked );
+        try
+        {
+          out.writeInt( INDEX_MAGIC );
+          out.writeInt( segmentsIndexed.size() );
+          for( long[] segment : segmentsIndexed )
+          {
+            out.writeLong( segment[0] );
+            out.writeLong( segment[1] );
+            out.writeInt( (int) segment[2] );
+          }
+          out.writeInt( locations.size() );
+          for( Map.Entry<String, Long> entry : locations.entrySet() )
+          {
+            out.writeUTF( entry.getKey() );
+            out.writeLong( entry.getValue().longValue() );
+          }
+          out.writeLong( checked.getChecksum().getValue() );
+          out.flush();
+          file.getFD().sync();
+        }
+        finally
+        {
+          out.close();
+        }
+        Files.move( temporary.toPath(), new File( directory, INDEX_FILE ).toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+      }
+      catch( IOException e )
+      {
+        // The segments will be scanned the next time the store is opened
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Returns a tile.
+   * @param anId the id of the tile.
+   * @return the tile, or null if not in the store (or damaged).
+   */
+  public synchronized TileCache.Tile get( String anId )
+  {
+    Long location = index.get( anId );
+    if ( location == null )
+      return null;
+    Segment segment = getSegment( location.longValue() >>> 32 );
+    int position = (int) location.longValue();
+    byte [] record = segment == null ? null : readRecord( segment.buffer, position );
+    if ( record == null )
+    {
+      index.remove( anId );
+      return null;
+    }
+    int idLength = segment.buffer.getInt( position + 4 );
+    int pixelCount = segment.buffer.getInt( position + 8 );
+    int [] iterations = new int[ pixelCount ];
+    int [] periods = new int[ pixelCount ];
+    ByteBuffer pixels = ByteBuffer.wrap( record, idLength, 8 * pixelCount );
+    pixels.asIntBuffer().get( iterations ).get( periods );
+    hits++;
+    return new TileCache.Tile( iterations, periods );
+  }
+
+  private Segment getSegment( long aNumber )
+  {
+    for( Segment segment : segments )
+      if ( segment.number == aNumber )
+        return segment;
+    return null;
+  }
+
+  /**
+   * Tells if a tile is in the store.
+   * @param anId the id of the tile.
+   * @return true if the tile is in the store.
+   */
+  public synchronized boolean contains( String anId )
+  {
+    return index.containsKey( anId );
+  }
+
+  /**
+   * Appends a tile to the store, starting a new segment if the current one
+   *  is full (and deleting the oldest segments if the store is full).
+   * @param anId the id of the tile.
+   * @param aTile the tile.
+   */
+  public void put( String anId, TileCache.Tile aTile )
+  {
+    byte [] id = anId.getBytes( UTF8 );
+    int [] iterations = aTile.getIterations();
+    int [] periods = aTile.getPeriods();
+    int size = HEADER_SIZE + id.length + 8 * iterations.length;
+    if ( size > SEGMENT_SIZE - SEGMENT_HEADER_SIZE )
+      return;
+    // The record is built (and its checksum computed) before taking any lock
+    ByteBuffer record = ByteBuffer.allocate( size - HEADER_SIZE );
+    record.put( id );
+    record.asIntBuffer().put( iterations ).put( periods );
+    int checksum = getChecksum( id.length, iterations.length, record.array() );
+
+    synchronized( appendLock )
+    {
+      Segment full;
+      synchronized( this )
+      {
+        if ( index.containsKey( anId ) )
+          return;
+        full = segments.get( segments.size() - 1 );
+        if ( full.end + size <= SEGMENT_SIZE )
+        {
+          append( full, anId, id.length, iterations.length, checksum, record.array() );
+          return;
+        }
+      }
+
+      // The current segment is full: a new one is created, and the oldest
+      // ones deleted, without holding the lock of the store
+      Segment next;
+      try
+      {
+        next = open( full.number + 1 );
+      }
+      catch( IOException e )
+      {
+        e.printStackTrace();
+        return;
+      }
+      List<Segment> evicted;
+      synchronized( this )
+      {
+        segments.add( next );
+        evicted = evict();
+        append( next, anId, id.length, iterations.length, checksum, record.array() );
+      }
+      for( Segment segment : evicted )
+        if ( ! segment.file.delete() )
+          segment.file.deleteOnExit();
+      full.buffer.force();
+    }
+    saveIndex();
+  }
+
+  /**
+   * Appends a record to a segment, with the magic number written last.
+   */
+  private void append( Segment aSegment, String anId, int anIdLength, int aPixelCount,
+    int aChecksum, byte [] aRecord )
+  {
+    MappedByteBuffer buffer = aSegment.buffer;
+    int position = aSegment.end;
+    ByteBuffer contents = buffer.duplicate();
+    contents.position( position + HEADER_SIZE );
+    contents.put( aRecord );
+    buffer.putInt( position + 4, anIdLength );
+    buffer.putInt( position + 8, aPixelCount );
+    buffer.putInt( position + 12, aChecksum );
+    buffer.putInt( position, MAGIC );
+    aSegment.end = position + HEADER_SIZE + aRecord.length;
+    index.put( anId, getLocation( aSegment, position ) );
+  }
+
+  /**
+   * Forgets the oldest segments while the store is too big.
+   * @return the segments forgotten, whose files have to be deleted.
+   */
+  private List<Segment> evict()
+  {
+    List<Segment> evicted = new ArrayList<Segment>();
+    while( segments.size() > 2 && (long) segments.size() * SEGMENT_SIZE > maxSize )
+    {
+      Segment oldest = segments.remove( 0 );
+      for( Iterator<Long> locations = index.values().iterator(); locations.hasNext(); )
+        if ( locations.next().longValue() >>> 32 == oldest.number )
+          locations.remove();
+      evicted.add( oldest );
+    }
+    return evicted;
+  }
+
+  /**
+   * Writes the segment being appended, and the index, to disk.
+   */
+  public void flush()
+  {
+    saveIndex();
+  }
+
+  /**
+   * Returns the number of tiles in the store.
+   * @return the number of tiles.
+   */
+  public synchronized int getTileCount()
+  {
+    return index.size();
+  }
+
+  /**
+   * Returns the number of tiles read from the store so far.
+   * @return the number of tiles read.
+   */
+  public synchronized long getHits()
+  {
+    return hits;
+  }
+
+  /**
+   * Returns the directory holding the segment files.
+   * @return the directory of the store.
+   */
+  public File getDirectory()
+  {
+    return directory;
+  }
+
+}
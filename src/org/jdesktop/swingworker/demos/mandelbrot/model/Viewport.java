@@ -0,0 +1,249 @@
+/*
+ * $Id $
+ *
+ * Copyright 2005 Sun Microsystems
+ *
+ * Initially developed by Antonio Vieiro (vieiro@dev.java.net).
+ *
+ * This software is released under the Common Development and Distribution
+ *  License, version 1.0. See http://www.opensource.org/licenses/cddl1.php
+ *  for details.
+ *
+ * This software is distributed on an "AS IS" basis, without warranty of any
+ *  kind, either express or implied.
+ *
+ * All this stuff basically means that you can use this source code in your
+ *  software, either proprietary or not. See
+ *  http://www.opensolaris.org/os/about/faq/licensing_faq/ for interesting
+ *  information about the CDDL license.
+ *
+ */
+package org.jdesktop.swingworker.demos.mandelbrot.model;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * Viewport is the region of the complex plane shown in the image, kept in
+ *  arbitrary precision: the point at the center of the image and the size
+ *  of a pixel.
+ * A Rectangle2D.Double can't tell pixels apart once the region is about
+ *  1e-13 wide, but a Viewport can be zoomed (and shifted) as much as
+ *  desired.
+ * Viewports are immutable.
+ * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
+ * @version $Revision: $
+ */
+public class Viewport
+{
+  /**
+   * The number of significant digits kept beyond the ones needed to tell
+   *  pixels apart.
+   */
+  public static final int GUARD_DIGITS = 20;
+
+  private static final BigDecimal HALF = new BigDecimal( "0.5" );
+
+  private final BigDecimal centerX;
+  private final BigDecimal centerY;
+  private final BigDecimal xScale;
+  private final BigDecimal yScale;
+  /**
+   * The center of the image, as double-doubles.
+   */
+  private final DoubleDouble centerX2;
+  private final DoubleDouble centerY2;
+
+  /**
+   * Creates a new instance of Viewport.
+   * @param aCenterX the real part of the point at the center of the image.
+   * @param aCenterY the imaginary part of the point at the center of the image.
+   * @param anXScale the width of a pixel.
+   * @param anYScale the height of a pixel.
+   */
+  public Viewport( BigDecimal aCenterX, BigDecimal aCenterY,
+    BigDecimal anXScale, BigDecimal anYScale )
+  {
+    centerX = aCenterX;
+    centerY = aCenterY;
+    xScale = anXScale;
+    yScale = anYScale;
+    centerX2 = DoubleDouble.valueOf( centerX );
+    centerY2 = DoubleDouble.valueOf( centerY );
+  }
+
+  /**
+   * Creates a new Viewport showing a region of the complex plane.
+   * @param aRegion the region of the complex plane.
+   * @return a viewport showing exactly that region.
+   */
+  public static Viewport fromBounds( Rectangle2D.Double aRegion )
+  {
+    BigDecimal width = new BigDecimal( aRegion.width );
+    BigDecimal height = new BigDecimal( aRegion.height );
+    MathContext mc = new MathContext( Math.max( width.precision(), height.precision() ) + GUARD_DIGITS );
+    return new Viewport(
+      new BigDecimal( aRegion.x ).add( width.multiply( HALF ) ),
+      new BigDecimal( aRegion.y ).add( height.multiply( HALF ) ),
+      width.divide( BigDecimal.valueOf( MandelbrotModel.XRESOLUTION ), mc ),
+      height.divide( BigDecimal.valueOf( MandelbrotModel.YRESOLUTION ), mc ) );
+  }
+
+  /**
+   * Returns the region of the complex plane shown, in double precision.
+   * @return the (approximate) region of the complex plane shown.
+   */
+  public Rectangle2D.Double getBounds()
+  {
+    double width = xScale.doubleValue() * MandelbrotModel.XRESOLUTION;
+    double height = yScale.doubleValue() * MandelbrotModel.YRESOLUTION;
+    return new Rectangle2D.Double(
+      centerX.doubleValue() - width / 2,
+      centerY.doubleValue() - height / 2,
+      width, height );
+  }
+
+  /**
+   * Returns a new viewport showing an area of the image.
+   * @param anArea the area of the image to show.
+   * @return a new viewport, zoomed into the area.
+   */
+  public Viewport zoom( Rectangle anArea )
+  {
+    BigDecimal newXScale = xScale.multiply( BigDecimal.valueOf( anArea.width ) );
+    BigDecimal newYScale = yScale.multiply( BigDecimal.valueOf( anArea.height ) );
+    MathContext mc = getMathContext( newXScale.min( newYScale ) );
+    newXScale = newXScale.divide( BigDecimal.valueOf( MandelbrotModel.XRESOLUTION ), mc );
+    newYScale = newYScale.divide( BigDecimal.valueOf( MandelbrotModel.YRESOLUTION ), mc );
+    // The center of the area, in pixels from the center of the image
+    BigDecimal dx = BigDecimal.valueOf( 2*anArea.x + anArea.width - MandelbrotModel.XRESOLUTION ).multiply( HALF );
+    BigDecimal dy = BigDecimal.valueOf( 2*anArea.y + anArea.height - MandelbrotModel.YRESOLUTION ).multiply( HALF );
+    return new Viewport(
+      centerX.add( dx.multiply( xScale ) ).round( mc ),
+      centerY.add( dy.multiply( yScale ) ).round( mc ),
+      newXScale, newYScale );
+  }
+
+  /**
+   * Returns a new viewport showing the image magnified by an integer
+   *  factor. The pixels of the new image are aligned with the pixels of
+   *  this one: pixel (f*i, f*j) of the new image is pixel (column+i, row+j)
+   *  of this one.
+   * @param aColumn the column of this image at the top left corner of the
+   *  new one.
+   * @param aRow the row of this image at the top left corner of the new one.
+   * @param aFactor the magnification factor.
+   * @return a new viewport, zoomed.
+   */
+  public Viewport zoom( int aColumn, int aRow, int aFactor )
+  {
+    BigDecimal factor = BigDecimal.valueOf( aFactor );
+    MathContext mc = getMathContext( xScale.min( yScale ).divide( factor, MathContext.DECIMAL64 ) );
+    BigDecimal newXScale = xScale.divide( factor, mc );
+    BigDecimal newYScale = yScale.divide( factor, mc );
+    // The top left pixel stays where it is, and the center is half an
+    // image (of the new size) away from it
+    BigDecimal halfWidth = BigDecimal.valueOf( MandelbrotModel.XRESOLUTION ).multiply( HALF );
+    BigDecimal halfHeight = BigDecimal.valueOf( MandelbrotModel.YRESOLUTION ).multiply( HALF );
+    return new Viewport(
+      centerX.add( BigDecimal.valueOf( aColumn ).subtract( halfWidth ).multiply( xScale ) )
+        .add( halfWidth.multiply( newXScale ) ).round( mc ),
+      centerY.add( BigDecimal.valueOf( aRow ).subtract( halfHeight ).multiply( yScale ) )
+        .add( halfHeight.multiply( newYScale ) ).round( mc ),
+      newXScale, newYScale );
+  }
+
+  /**
+   * Returns a new viewport, with the image moved some pixels.
+   * @param dx the number of pixels to move the image to the right.
+   * @param dy the number of pixels to move the image down.
+   * @return a new viewport, shifted.
+   */
+  public Viewport shift( int dx, int dy )
+  {
+    return new Viewport(
+      centerX.subtract( xScale.multiply( BigDecimal.valueOf( dx ) ) ),
+      centerY.subtract( yScale.multiply( BigDecimal.valueOf( dy ) ) ),
+      xScale, yScale );
+  }
+
+  /**
+   * Returns the point of the complex plane at some distance from the
+   *  center of the image.
+   * @param anOffset the distance from the center of the image.
+   * @return the real part of the point.
+   */
+  public BigDecimal getX( double anOffset )
+  {
+    return centerX.add( new BigDecimal( anOffset ) );
+  }
+
+  /**
+   * Returns the point of the complex plane at some distance from the
+   *  center of the image.
+   * @param anOffset the distance from the center of the image.
+   * @return the imaginary part of the point.
+   */
+  public BigDecimal getY( double anOffset )
+  {
+    return centerY.add( new BigDecimal( anOffset ) );
+  }
+
+  /**
+   * Returns the precision needed to compute points of this viewport.
+   * @return a MathContext with enough digits to tell pixels apart.
+   */
+  public MathContext getMathContext()
+  {
+    return getMathContext( xScale.min( yScale ) );
+  }
+
+  private static MathContext getMathContext( BigDecimal aPixelSize )
+  {
+    // The number of digits after the decimal point to get to the pixel size
+    int digits = aPixelSize.scale() - aPixelSize.precision() + 1;
+    return new MathContext( Math.max( 0, digits ) + GUARD_DIGITS );
+  }
+
+  public BigDecimal getCenterX()
+  {
+    return centerX;
+  }
+
+  public BigDecimal getCenterY()
+  {
+    return centerY;
+  }
+
+  /**
+   * Returns the real part of the point at the center of the image, with
+   *  about 32 significant digits.
+   * @return the real part of the center, as a double-double.
+   */
+  public DoubleDouble getCenterX2()
+  {
+    return centerX2;
+  }
+
+  /**
+   * Returns the imaginary part of the point at the center of the image,
+   *  with about 32 significant digits.
+   * @return the imaginary part of the center, as a double-double.
+   */
+  public DoubleDouble getCenterY2()
+  {
+    return centerY2;
+  }
+
+  public BigDecimal getXScale()
+  {
+    return xScale;
+  }
+
+  public BigDecimal getYScale()
+  {
+    return yScale;
+  }
+
+}
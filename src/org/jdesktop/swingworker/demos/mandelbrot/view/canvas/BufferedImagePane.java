@@ -19,19 +19,53 @@
  *
  */
 package org.jdesktop.swingworker.demos.mandelbrot.view.canvas;
+import java.awt.AlphaComposite;
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import javax.swing.Timer;
 import org.jdesktop.swingworker.demos.mandelbrot.model.MandelbrotModel;
 
 /**
  * BufferedImagePane is a JPanel that paints an image.
+ * The image is copied to an accelerated image (a VolatileImage, in the
+ *  format of the screen) which is the one painted, so the image is not
+ *  converted each time the pane is painted. Only the areas of the image
+ *  that changed are copied again, and the pane is repainted at most
+ *  MAX_FRAME_RATE times per second, however often the image changes.
  * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
  */
 public class BufferedImagePane extends javax.swing.JPanel
 {
+  /**
+   * The maximum number of times per second the pane is repainted when the
+   *  image changes.
+   */
+  public static final int MAX_FRAME_RATE = 60;
+  
   private BufferedImage image;
   private Dimension imageSize;
+  /**
+   * The copy of the image painted, or null if not created yet.
+   */
+  private VolatileImage screenImage;
+  /**
+   * The area of the image changed since it was last copied to the screen
+   *  image, or null if none.
+   */
+  private Rectangle dirtyArea;
+  /**
+   * The area of the pane to repaint when the timer goes off, or null if
+   *  none.
+   */
+  private Rectangle repaintArea;
+  private Timer repaintTimer;
   
   /**
    * Creates new form BufferedImagePane 
@@ -41,6 +75,17 @@ public class BufferedImagePane extends javax.swing.JPanel
     initComponents();
     image = null;
     imageSize = new Dimension(640,480);
+    repaintTimer = new Timer( 1000 / MAX_FRAME_RATE,
+      new ActionListener()
+    {
+      public void actionPerformed( ActionEvent anActionEvent )
+      {
+        if ( repaintArea != null )
+          repaint( repaintArea );
+        repaintArea = null;
+      }
+    } );
+    repaintTimer.setRepeats( false );
   }
   
   public Dimension getPreferredSize()
@@ -53,19 +98,74 @@ public class BufferedImagePane extends javax.swing.JPanel
     return new Dimension(200,100);
   }
   
+  /**
+   * Changes the image painted, or tells that the whole image has changed.
+   * @param anImage the image.
+   */
   public void setImage( BufferedImage anImage )
   {
     imageSize = new Dimension( anImage.getWidth(), anImage.getHeight() );
     image = anImage;
-    repaint();
+    imageChanged( new Rectangle( 0, 0, anImage.getWidth(), anImage.getHeight() ) );
+  }
+  
+  /**
+   * Tells that an area of the image has changed, so it's repainted soon.
+   * This is invoked in the Swing thread.
+   * @param anArea the area of the image that changed.
+   */
+  public void imageChanged( Rectangle anArea )
+  {
+    dirtyArea = union( dirtyArea, anArea );
+    repaintArea = union( repaintArea, anArea );
+    if ( ! repaintTimer.isRunning() )
+      repaintTimer.start();
+  }
+  
+  private static Rectangle union( Rectangle anArea, Rectangle anotherArea )
+  {
+    return anArea == null ? new Rectangle( anotherArea ) : anArea.union( anotherArea );
   }
   
   public void paintComponent( Graphics g )
   {
-    if ( image != null )
+    if ( image == null )
+      return;
+    GraphicsConfiguration gc = getGraphicsConfiguration();
+    if ( gc == null )
+    {
+      g.drawImage( image, 0, 0, null );
+      return;
+    }
+    do
     {
-      boolean available = g.drawImage(image,0,0,null);
+      // The screen image may be lost (or be incompatible with the screen
+      // the pane is in now), and then it's copied again
+      int status = screenImage == null ? VolatileImage.IMAGE_INCOMPATIBLE : screenImage.validate( gc );
+      if ( status == VolatileImage.IMAGE_INCOMPATIBLE
+        || screenImage.getWidth() != image.getWidth() || screenImage.getHeight() != image.getHeight() )
+      {
+        if ( screenImage != null )
+          screenImage.flush();
+        screenImage = gc.createCompatibleVolatileImage( image.getWidth(), image.getHeight() );
+        status = VolatileImage.IMAGE_RESTORED;
+      }
+      if ( status == VolatileImage.IMAGE_RESTORED )
+        dirtyArea = new Rectangle( 0, 0, image.getWidth(), image.getHeight() );
+      if ( dirtyArea != null )
+      {
+        Rectangle area = dirtyArea.intersection( new Rectangle( 0, 0, image.getWidth(), image.getHeight() ) );
+        Graphics2D screenGraphics = screenImage.createGraphics();
+        screenGraphics.setComposite( AlphaComposite.Src );
+        screenGraphics.drawImage( image,
+          area.x, area.y, area.x + area.width, area.y + area.height,
+          area.x, area.y, area.x + area.width, area.y + area.height, null );
+        screenGraphics.dispose();
+        dirtyArea = null;
+      }
+      g.drawImage( screenImage, 0, 0, null );
     }
+    while( screenImage.contentsLost() );
   }
   
   /** This method is called from within the constructor to
@@ -0,0 +1,124 @@
+/*
+ * $Id $
+ *
+ * Copyright 2005 Sun Microsystems
+ *
+ * Initially developed by Antonio Vieiro (vieiro@dev.java.net).
+ *
+ * This software is released under the Common Development and Distribution
+ *  License, version 1.0. See http://www.opensource.org/licenses/cddl1.php
+ *  for details.
+ *
+ * This software is distributed on an "AS IS" basis, without warranty of any
+ *  kind, either express or implied.
+ *
+ * All this stuff basically means that you can use this source code in your
+ *  software, either proprietary or not. See
+ *  http://www.opensolaris.org/os/about/faq/licensing_faq/ for interesting
+ *  information about the CDDL license.
+ *
+ */
+package org.jdesktop.swingworker.demos.mandelbrot.model;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that DoubleDoubleEscapeTimeKernel gets the same number of
+ *  iterations as iterating in BigDecimal, in images whose pixels are far
+ *  too small for doubles.
+ * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
+ * @version $Revision: $
+ */
+public class DoubleDoubleEscapeTimeKernelTest
+{
+  /**
+   * The precision of the reference iterations (about twice the digits of
+   *  a double-double).
+   */
+  private static final MathContext REFERENCE_PRECISION = new MathContext( 60 );
+  private static final BigDecimal FOUR = new BigDecimal( 4 );
+
+  @Test
+  public void testEscapingPoints()
+  {
+    // Points around c = i escape after 50 to 80 iterations or so
+    int escaped = checkSameIterations( "0", "1", "1e-22", 2000, 300 );
+    assertEquals( 300, escaped );
+  }
+
+  @Test
+  public void testPointsInTheSet()
+  {
+    // Points in the seahorse valley that don't escape (and take all the
+    // iterations in BigDecimal, so there are just a few of them)
+    int escaped = checkSameIterations( "-0.7436438870371587047521915061",
+      "0.1318259042053119704931320564", "1e-22", 3000, 40 );
+    assertEquals( 0, escaped );
+  }
+
+  /**
+   * Computes some points around the center of a viewport, with the
+   *  double-double kernel and in BigDecimal, and checks they get the same
+   *  number of iterations.
+   * @return the number of points that escaped.
+   */
+  private int checkSameIterations( String aCenterX, String aCenterY, String aScale,
+    int aMaxIterations, int aCount )
+  {
+    BigDecimal scale = new BigDecimal( aScale );
+    Viewport viewport = new Viewport( new BigDecimal( aCenterX ), new BigDecimal( aCenterY ), scale, scale );
+    MandelbrotModel model = new MandelbrotModel();
+    model.setViewport( viewport );
+    model.setMaxIterations( aMaxIterations );
+    EscapeTimeKernel kernel = EscapeTimeKernel.create( EscapeTimeKernel.Type.DOUBLE_DOUBLE );
+    kernel.setUp( model );
+
+    // Points anywhere in the image, as their distance to its center
+    double width = scale.doubleValue() * MandelbrotModel.XRESOLUTION;
+    double height = scale.doubleValue() * MandelbrotModel.YRESOLUTION;
+    Random random = new Random( 2005 );
+    double[] a = new double[ aCount ];
+    double[] b = new double[ aCount ];
+    for( int i=0; i<aCount; i++ )
+    {
+      a[i] = (random.nextDouble() - 0.5) * width;
+      b[i] = (random.nextDouble() - 0.5) * height;
+    }
+    int[] iterations = new int[ aCount ];
+    kernel.compute( a, b, aCount, iterations, new int[ aCount ] );
+
+    int escaped = 0;
+    for( int i=0; i<aCount; i++ )
+    {
+      int expected = getIterations( viewport.getX( a[i] ), viewport.getY( b[i] ), aMaxIterations );
+      assertEquals( "Point " + i, expected, iterations[i] );
+      if ( expected < aMaxIterations )
+        escaped++;
+    }
+    return escaped;
+  }
+
+  /**
+   * Iterates a point in BigDecimal, just like the kernels do.
+   */
+  private static int getIterations( BigDecimal a, BigDecimal b, int aMaxIterations )
+  {
+    BigDecimal x = a;
+    BigDecimal y = b;
+    for( int nIterations = 1; nIterations <= aMaxIterations; nIterations++ )
+    {
+      BigDecimal xy = x.multiply( y, REFERENCE_PRECISION );
+      x = x.multiply( x, REFERENCE_PRECISION ).subtract( y.multiply( y, REFERENCE_PRECISION ) )
+        .add( a, REFERENCE_PRECISION );
+      y = xy.add( xy ).add( b, REFERENCE_PRECISION );
+      BigDecimal rho2 = x.multiply( x, REFERENCE_PRECISION ).add( y.multiply( y, REFERENCE_PRECISION ) );
+      if ( rho2.compareTo( FOUR ) >= 0 )
+        return nIterations;
+    }
+    return aMaxIterations;
+  }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * $Id $
+ *
+ * Copyright 2005 Sun Microsystems
+ *
+ * Initially developed by Antonio Vieiro (vieiro@dev.java.net).
+ *
+ * This software is released under the Common Development and Distribution
+ *  License, version 1.0. See http://www.opensource.org/licenses/cddl1.php
+ *  for details.
+ *
+ * This software is distributed on an "AS IS" basis, without warranty of any
+ *  kind, either express or implied.
+ *
+ * All this stuff basically means that you can use this source code in your
+ *  software, either proprietary or not. See
+ *  http://www.opensolaris.org/os/about/faq/licensing_faq/ for interesting
+ *  information about the CDDL license.
+ *
+ */
+package org.jdesktop.swingworker.demos.mandelbrot.model;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that IntervalTileProver never proves a region whose points don't
+ *  all have the number of iterations proven (in particular, that it never
+ *  proves that a region containing an escaping point is in the set).
+ * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
+ * @version $Revision: $
+ */
+public class IntervalTileProverTest
+{
+  private static final int MAX_ITERATIONS = 500;
+  /**
+   * The number of points looked at along each side of a region.
+   */
+  private static final int SAMPLES = 9;
+
+  @Test
+  public void testKnownRegions()
+  {
+    IntervalTileProver prover = new IntervalTileProver( MAX_ITERATIONS );
+    // Inside the main cardioid, and inside the period 2 bulb
+    assertEquals( MAX_ITERATIONS, prover.getIterations( -0.2, -0.1, -0.1, 0.1 ) );
+    assertEquals( 1, prover.getPeriod() );
+    assertEquals( MAX_ITERATIONS, prover.getIterations( -1.05, -0.95, -0.05, 0.05 ) );
+    assertEquals( 2, prover.getPeriod() );
+    // Far away, where every point escapes at once
+    assertEquals( 1, prover.getIterations( 3.0, 3.1, 3.0, 3.1 ) );
+    // Straddling the border of the set (the cusp of the cardioid)
+    assertEquals( -1, prover.getIterations( 0.2, 0.3, -0.05, 0.05 ) );
+  }
+
+  @Test
+  public void testRandomRegions()
+  {
+    IntervalTileProver prover = new IntervalTileProver( MAX_ITERATIONS );
+    Random random = new Random( 2005 );
+    int provenInside = 0;
+    int provenOutside = 0;
+    for( int i=0; i<2000; i++ )
+    {
+      // Regions from 1e-1 to 1e-6 wide, all over the set
+      double size = Math.pow( 10, -1 - random.nextInt( 6 ) );
+      double a0 = -2.2 + random.nextDouble() * 3.0;
+      double b0 = -1.3 + random.nextDouble() * 2.6;
+      double a1 = a0 + size;
+      double b1 = b0 + size;
+      int proven = prover.getIterations( a0, a1, b0, b1 );
+      if ( proven < 0 )
+        continue;
+      if ( proven == MAX_ITERATIONS )
+        provenInside++;
+      else
+        provenOutside++;
+      for( int j=0; j<SAMPLES; j++ )
+      {
+        for( int k=0; k<SAMPLES; k++ )
+        {
+          double a = a0 + (a1 - a0) * j / (SAMPLES - 1);
+          double b = b0 + (b1 - b0) * k / (SAMPLES - 1);
+          assertEquals( "Point " + a + "," + b + " of region " + i, proven, getIterations( a, b ) );
+        }
+      }
+    }
+    // Make sure both kinds of proofs have been checked
+    assertTrue( provenInside > 0 );
+    assertTrue( provenOutside > 0 );
+  }
+
+  /**
+   * Iterates a point just like the kernels do (without detecting periods).
+   */
+  private static int getIterations( double a, double b )
+  {
+    double x = a;
+    double y = b;
+    for( int nIterations = 1; nIterations <= MAX_ITERATIONS; nIterations++ )
+    {
+      double xnew = x*x - y*y + a;
+      y = 2*x*y + b;
+      x = xnew;
+      if ( x*x + y*y >= 4.0 )
+        return nIterations;
+    }
+    return MAX_ITERATIONS;
+  }
+
+}
@@ -0,0 +1,376 @@
+/*
+ * $Id $
+ *
+ * Copyright 2005 Sun Microsystems
+ *
+ * Initially developed by Antonio Vieiro (vieiro@dev.java.net).
+ *
+ * This software is released under the Common Development and Distribution
+ *  License, version 1.0. See http://www.opensource.org/licenses/cddl1.php
+ *  for details.
+ *
+ * This software is distributed on an "AS IS" basis, without warranty of any
+ *  kind, either express or implied.
+ *
+ * All this stuff basically means that you can use this source code in your
+ *  software, either proprietary or not. See
+ *  http://www.opensolaris.org/os/about/faq/licensing_faq/ for interesting
+ *  information about the CDDL license.
+ *
+ */
+package org.jdesktop.swingworker.demos.mandelbrot.model;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the pixels MandelbrotModel keeps or copies instead of
+ *  computing them (mirrored rows, and pixels kept when the image is moved or
+ *  magnified or the maximum number of iterations changes, and tiles
+ *  finished before the image is retired) are the pixels computed directly.
+ * Pixels are 1/256 wide, so the points of every pixel are exact in binary
+ *  (and so are the points of the image moved or magnified by 2), and pixels
+ *  computed for different images are bit for bit the same.
+ * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
+ * @version $Revision: $
+ */
+public class MandelbrotModelTest
+{
+  private static final int XRES = MandelbrotModel.XRESOLUTION;
+  private static final int YRES = MandelbrotModel.YRESOLUTION;
+
+  /**
+   * The real axis is on row 240.
+   */
+  static final Rectangle2D.Double REGION = new Rectangle2D.Double( -2.0, -0.9375, 2.5, 1.875 );
+
+  @Test
+  public void testMirrorRows()
+    throws Exception
+  {
+    MandelbrotModel model = createModel( REGION, 500 );
+    assertEquals( 480, model.getMirrorRowSum() );
+    assertEquals( new Rectangle( 0, 0, XRES, 241 ), model.getComputedArea() );
+    int [][] expected = computeDirectly( model );
+
+    // Rows mirrored by the workers...
+    render( model, Collections.singletonList( new Rectangle( 0, 0, XRES, YRES ) ), 4 );
+    checkImage( expected, model );
+
+    // ... and by the model
+    int [] iterations = expected[0].clone();
+    int [] periods = expected[1].clone();
+    for( int i = 241*XRES; i < XRES*YRES; i++ )
+      iterations[i] = periods[i] = 0;
+    model.restoreImage( iterations, periods );
+    model.mirrorRows( new Rectangle( 0, 0, XRES, YRES ) );
+    checkImage( expected, model );
+  }
+
+  @Test
+  public void testNoMirrorRows()
+  {
+    // The real axis halfway between rows 239 and 240...
+    MandelbrotModel model = createModel( new Rectangle2D.Double( -2.0, -0.9375 + 1.0/512, 2.5, 1.875 ), 500 );
+    assertEquals( 479, model.getMirrorRowSum() );
+    // ... or a quarter of a pixel away from row 240
+    model = createModel( new Rectangle2D.Double( -2.0, -0.9375 + 1.0/1024, 2.5, 1.875 ), 500 );
+    assertEquals( -1, model.getMirrorRowSum() );
+    assertEquals( new Rectangle( 0, 0, XRES, YRES ), model.getComputedArea() );
+  }
+
+  @Test
+  public void testShiftImage()
+    throws Exception
+  {
+    MandelbrotModel model = createModel( REGION, 500 );
+    render( model, Collections.singletonList( new Rectangle( 0, 0, XRES, YRES ) ), 4 );
+    int [][] before = getImage( model );
+
+    List<Rectangle> exposed = model.shiftImage( 37, -23 );
+    model.setViewport( model.getViewport().shift( 37, -23 ) );
+    assertEquals( 2, exposed.size() );
+    assertEquals( new Rectangle( 0, 0, 37, YRES ), exposed.get( 0 ) );
+    assertEquals( new Rectangle( 37, YRES-23, XRES-37, 23 ), exposed.get( 1 ) );
+    // The overlapping pixels are kept...
+    for( int y = 0; y < YRES-23; y++ )
+    {
+      for( int x = 37; x < XRES; x++ )
+      {
+        assertEquals( before[0][ (y+23)*XRES + x-37 ], model.getIterations( x, y ) );
+        assertEquals( before[1][ (y+23)*XRES + x-37 ], model.getPeriod( x, y ) );
+      }
+    }
+    // ... and equal the pixels computed for the new image
+    render( model, exposed, 4 );
+    checkImage( computeDirectly( model ), model );
+  }
+
+  @Test
+  public void testZoomImage()
+    throws Exception
+  {
+    MandelbrotModel model = createModel( REGION, 500 );
+    render( model, Collections.singletonList( new Rectangle( 0, 0, XRES, YRES ) ), 4 );
+    int [][] before = getImage( model );
+
+    model.setViewport( model.getViewport().zoom( 200, 100, 2 ) );
+    model.zoomImage( 200, 100, 2 );
+    // Every other pixel of every other row is kept...
+    for( int y = 0; y < YRES; y++ )
+    {
+      for( int x = 0; x < XRES; x++ )
+      {
+        boolean kept = x % 2 == 0 && y % 2 == 0;
+        assertEquals( kept, model.isKnown( x, y ) );
+        if ( kept )
+          assertEquals( before[0][ (100 + y/2)*XRES + 200 + x/2 ], model.getIterations( x, y ) );
+      }
+    }
+    // ... and equals the pixel computed for the new image (but for the
+    // period, as the periodicity tolerance depends on the pixel size)
+    render( model, Collections.singletonList( new Rectangle( 0, 0, XRES, YRES ) ), 4 );
+    checkIterations( computeDirectly( model ), model );
+  }
+
+  @Test
+  public void testZoomUnfinishedImage()
+    throws Exception
+  {
+    MandelbrotModel model = createModel( REGION, 500 );
+    render( model, Collections.singletonList( new Rectangle( 0, 0, XRES, YRES ) ), 4 );
+
+    // Pixels of areas not computed are not kept
+    Rectangle unfinished = new Rectangle( 320, 240, 64, 32 );
+    model.setViewport( model.getViewport().zoom( 300, 200, 2 ) );
+    model.zoomImage( 300, 200, 2, Collections.singletonList( unfinished ) );
+    for( int y = 0; y < YRES; y += 2 )
+      for( int x = 0; x < XRES; x += 2 )
+        assertEquals( ! unfinished.contains( 300 + x/2, 200 + y/2 ) && 300 + x/2 < XRES,
+          model.isKnown( x, y ) );
+    render( model, Collections.singletonList( new Rectangle( 0, 0, XRES, YRES ) ), 4 );
+    checkIterations( computeDirectly( model ), model );
+  }
+
+  @Test
+  public void testChangeMaxIterations()
+    throws Exception
+  {
+    MandelbrotModel model = createModel( REGION, 200 );
+    render( model, Collections.singletonList( new Rectangle( 0, 0, XRES, YRES ) ), 4 );
+
+    // Lowering the maximum computes nothing...
+    assertTrue( model.changeMaxIterations( 50 ).isEmpty() );
+    checkIterations( computeDirectly( createModel( REGION, 50 ) ), model );
+    // ... and raising it computes the pixels that reached the maximum
+    List<Rectangle> tiles = model.changeMaxIterations( 1000 );
+    assertFalse( tiles.isEmpty() );
+    render( model, tiles, 4 );
+    checkIterations( computeDirectly( createModel( REGION, 1000 ) ), model );
+  }
+
+  @Test
+  public void testRetireFrame()
+    throws Exception
+  {
+    List<Rectangle> image = Collections.singletonList( new Rectangle( 0, 0, XRES, YRES ) );
+    TileCache cache = new TileCache( 64L * 1024 * 1024 );
+    MandelbrotModel model = createModel( REGION, 20000 );
+    model.setTileCache( cache );
+    int [][] expected = computeDirectly( model );
+
+    TileScheduler scheduler = startRendering( model, image, 1 );
+    MandelbrotSwingWorker [] retiredWorkers = getWorkers();
+    while( scheduler.getComputedPixels() < XRES * YRES / 16 )
+      Thread.sleep( 1 );
+    List<Rectangle> unfinished = scheduler.retire();
+    MandelbrotModel.Frame frame = model.retireFrame( unfinished );
+    assertFalse( unfinished.isEmpty() );
+
+    // The next image is computed right away, while the workers of the
+    // retired one leave, and they don't write into it
+    model.setBounds( new Rectangle2D.Double( REGION.x + 64.0/256, REGION.y, REGION.width, REGION.height ) );
+    model.setMaxIterations( 500 );
+    render( model, image, 4 );
+    for( MandelbrotSwingWorker worker : retiredWorkers )
+    {
+      try
+      {
+        worker.get();
+      }
+      catch( CancellationException e )
+      {
+      }
+    }
+    checkImage( computeDirectly( model ), model );
+
+    // The tiles finished before retiring are cached, and the rest are not
+    frame.cacheTiles();
+    MandelbrotModel restored = createModel( REGION, 20000 );
+    restored.setTileCache( cache );
+    List<Rectangle> missing = restored.restoreCachedTiles( image );
+    int restoredPixels = 0;
+    for( int y = 0; y < YRES; y++ )
+    {
+      for( int x = 0; x < XRES; x++ )
+      {
+        if ( contains( frame.getUnfinishedAreas(), x, y ) )
+          assertTrue( "Pixel at " + x + "," + y, contains( missing, x, y ) );
+        if ( contains( missing, x, y ) )
+          continue;
+        restoredPixels++;
+        assertEquals( expected[0][ y*XRES + x ], restored.getIterations( x, y ) );
+        assertEquals( expected[1][ y*XRES + x ], restored.getPeriod( x, y ) );
+      }
+    }
+    assertTrue( restoredPixels > 0 );
+  }
+
+  private static boolean contains( List<Rectangle> someAreas, int x, int y )
+  {
+    for( Rectangle area : someAreas )
+      if ( area.contains( x, y ) )
+        return true;
+    return false;
+  }
+
+  static MandelbrotModel createModel( Rectangle2D.Double aRegion, int aMaxIterations )
+  {
+    MandelbrotModel model = new MandelbrotModel();
+    model.setBounds( aRegion );
+    model.setMaxIterations( aMaxIterations );
+    model.setKernelType( EscapeTimeKernel.Type.SCALAR );
+    model.setAutomaticPrecision( false );
+    model.setRendererType( TileRenderer.Type.BRUTE_FORCE );
+    // Proven tiles get the period of the proof, not the period computed
+    model.setTileProofs( false );
+    model.setTileCache( new TileCache( 0 ) );
+    return model;
+  }
+
+  /**
+   * Computes some areas of the image of a model, as
+   *  MandelbrotViewController does (but for the tile cache): the rows
+   *  mirroring other rows are copied (or published by the workers) and not
+   *  computed.
+   * @return the scheduler, once every worker is done.
+   */
+  static TileScheduler render( MandelbrotModel aModel, List<Rectangle> someAreas, int nWorkers )
+    throws Exception
+  {
+    TileScheduler scheduler = startRendering( aModel, someAreas, nWorkers );
+    for( MandelbrotSwingWorker worker : workers )
+      worker.get();
+    return scheduler;
+  }
+
+  private static MandelbrotSwingWorker [] workers;
+
+  /**
+   * Starts computing some areas of the image of a model (see render()),
+   *  without waiting for the workers.
+   * @return the scheduler.
+   */
+  static TileScheduler startRendering( MandelbrotModel aModel, List<Rectangle> someAreas, int nWorkers )
+  {
+    Rectangle computedArea = aModel.getComputedArea();
+    List<Rectangle> areas = new ArrayList<Rectangle>();
+    for( Rectangle area : someAreas )
+    {
+      aModel.mirrorRows( area );
+      Rectangle computed = area.intersection( computedArea );
+      if ( ! computed.isEmpty() )
+        areas.add( computed );
+    }
+    TileScheduler scheduler = new TileScheduler( areas, nWorkers );
+    RenderExecutor executor = new RenderExecutor( nWorkers );
+    workers = new MandelbrotSwingWorker[ nWorkers ];
+    for( int i=0; i<nWorkers; i++ )
+    {
+      workers[i] = new MandelbrotSwingWorker( aModel, scheduler, i );
+      executor.execute( workers[i] );
+    }
+    executor.shutdown();
+    return scheduler;
+  }
+
+  /**
+   * Returns the workers started by the last startRendering().
+   */
+  static MandelbrotSwingWorker [] getWorkers()
+  {
+    return workers;
+  }
+
+  /**
+   * Computes every pixel of the image of a model, one row at a time.
+   * @return the number of iterations and the periods of the pixels, row
+   *  after row.
+   */
+  static int [][] computeDirectly( MandelbrotModel aModel )
+  {
+    EscapeTimeKernel kernel = EscapeTimeKernel.create( EscapeTimeKernel.Type.SCALAR );
+    kernel.setUp( aModel );
+    Rectangle2D.Double bounds = aModel.getBounds();
+    double xScale = bounds.width / XRES;
+    double yScale = bounds.height / YRES;
+    double [] a = new double[ XRES ];
+    double [] b = new double[ XRES ];
+    int [] rowIterations = new int[ XRES ];
+    int [] rowPeriods = new int[ XRES ];
+    int [][] image = new int[2][ XRES * YRES ];
+    for( int y = 0; y < YRES; y++ )
+    {
+      for( int x = 0; x < XRES; x++ )
+      {
+        a[x] = bounds.x + x * xScale;
+        b[x] = bounds.y + y * yScale;
+      }
+      kernel.compute( a, b, XRES, rowIterations, rowPeriods );
+      System.arraycopy( rowIterations, 0, image[0], y*XRES, XRES );
+      System.arraycopy( rowPeriods, 0, image[1], y*XRES, XRES );
+    }
+    return image;
+  }
+
+  /**
+   * Returns the number of iterations and the periods of the pixels of the
+   *  image of a model, row after row.
+   */
+  static int [][] getImage( MandelbrotModel aModel )
+  {
+    int [][] image = new int[2][ XRES * YRES ];
+    for( int y = 0; y < YRES; y++ )
+    {
+      for( int x = 0; x < XRES; x++ )
+      {
+        image[0][ y*XRES + x ] = aModel.getIterations( x, y );
+        image[1][ y*XRES + x ] = aModel.getPeriod( x, y );
+      }
+    }
+    return image;
+  }
+
+  static void checkIterations( int [][] anExpectedImage, MandelbrotModel aModel )
+  {
+    for( int i = 0; i < XRES * YRES; i++ )
+      assertEquals( "Iterations at " + (i % XRES) + "," + (i / XRES),
+        anExpectedImage[0][i], aModel.getIterations( i % XRES, i / XRES ) );
+  }
+
+  static void checkImage( int [][] anExpectedImage, MandelbrotModel aModel )
+  {
+    int [][] image = getImage( aModel );
+    for( int i = 0; i < XRES * YRES; i++ )
+    {
+      assertEquals( "Iterations at " + (i % XRES) + "," + (i / XRES), anExpectedImage[0][i], image[0][i] );
+      assertEquals( "Period at " + (i % XRES) + "," + (i / XRES), anExpectedImage[1][i], image[1][i] );
+    }
+  }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * $Id $
+ *
+ * Copyright 2005 Sun Microsystems
+ *
+ * Initially developed by Antonio Vieiro (vieiro@dev.java.net).
+ *
+ * This software is released under the Common Development and Distribution
+ *  License, version 1.0. See http://www.opensource.org/licenses/cddl1.php
+ *  for details.
+ *
+ * This software is distributed on an "AS IS" basis, without warranty of any
+ *  kind, either express or implied.
+ *
+ * All this stuff basically means that you can use this source code in your
+ *  software, either proprietary or not. See
+ *  http://www.opensolaris.org/os/about/faq/licensing_faq/ for interesting
+ *  information about the CDDL license.
+ *
+ */
+package org.jdesktop.swingworker.demos.mandelbrot.model;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Checks that the pieces of the image published by MandelbrotSwingWorkers
+ *  (from buffers reused by every tile) end up in the image untouched, and
+ *  that the image doesn't depend on the number of workers.
+ * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
+ * @version $Revision: $
+ */
+public class MandelbrotSwingWorkerTest
+{
+  private static final List<Rectangle> IMAGE = Collections.singletonList(
+    new Rectangle( 0, 0, MandelbrotModel.XRESOLUTION, MandelbrotModel.YRESOLUTION ) );
+
+  /**
+   * Off the real axis, so no rows are mirrored.
+   */
+  private static final Rectangle2D.Double REGION = new Rectangle2D.Double( -2.0, -0.9375 + 1.0/1024, 2.5, 1.875 );
+
+  @Test
+  public void testBruteForce()
+    throws Exception
+  {
+    MandelbrotModel model = MandelbrotModelTest.createModel( REGION, 500 );
+    MandelbrotModelTest.render( model, IMAGE, 4 );
+    MandelbrotModelTest.checkImage( MandelbrotModelTest.computeDirectly( model ), model );
+  }
+
+  @Test
+  public void testWorkers()
+    throws Exception
+  {
+    for( TileRenderer.Type type : TileRenderer.Type.values() )
+    {
+      MandelbrotModel model = MandelbrotModelTest.createModel( REGION, 500 );
+      model.setRendererType( type );
+      MandelbrotModelTest.render( model, IMAGE, 1 );
+      int [][] expected = MandelbrotModelTest.getImage( model );
+
+      model = MandelbrotModelTest.createModel( REGION, 500 );
+      model.setRendererType( type );
+      MandelbrotModelTest.render( model, IMAGE, 4 );
+      MandelbrotModelTest.checkImage( expected, model );
+    }
+  }
+
+}
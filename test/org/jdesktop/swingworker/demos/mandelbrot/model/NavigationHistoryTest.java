@@ -0,0 +1,159 @@
+/*
+ * $Id $
+ *
+ * Copyright 2005 Sun Microsystems
+ *
+ * Initially developed by Antonio Vieiro (vieiro@dev.java.net).
+ *
+ * This software is released under the Common Development and Distribution
+ *  License, version 1.0. See http://www.opensource.org/licenses/cddl1.php
+ *  for details.
+ *
+ * This software is distributed on an "AS IS" basis, without warranty of any
+ *  kind, either express or implied.
+ *
+ * All this stuff basically means that you can use this source code in your
+ *  software, either proprietary or not. See
+ *  http://www.opensolaris.org/os/about/faq/licensing_faq/ for interesting
+ *  information about the CDDL license.
+ *
+ */
+package org.jdesktop.swingworker.demos.mandelbrot.model;
+import java.awt.Rectangle;
+import java.util.Collections;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that NavigationHistory goes back and forward through the
+ *  viewports visited, restores their images from its snapshots, and drops
+ *  the snapshots farthest from the current entry when full.
+ * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
+ * @version $Revision: $
+ */
+public class NavigationHistoryTest
+{
+  private static final int XRES = MandelbrotModel.XRESOLUTION;
+  private static final int YRES = MandelbrotModel.YRESOLUTION;
+
+  @Test
+  public void testBackAndForward()
+    throws Exception
+  {
+    NavigationHistory history = new NavigationHistory( 64L * 1024 * 1024 );
+    assertNull( history.getCurrent() );
+    MandelbrotModel model = MandelbrotModelTest.createModel( MandelbrotModelTest.REGION, 500 );
+    Viewport first = model.getViewport();
+    history.visit( first );
+    MandelbrotModelTest.render( model, Collections.singletonList( new Rectangle( 0, 0, XRES, YRES ) ), 4 );
+    history.record( model );
+    int [][] firstImage = MandelbrotModelTest.getImage( model );
+
+    Viewport second = first.zoom( 100, 100, 2 );
+    history.visit( second );
+    model.setViewport( second );
+    MandelbrotModelTest.render( model, Collections.singletonList( new Rectangle( 0, 0, XRES, YRES ) ), 4 );
+    history.record( model );
+    int [][] secondImage = MandelbrotModelTest.getImage( model );
+    assertTrue( history.canGoBack() );
+    assertFalse( history.canGoForward() );
+
+    // Going back restores the snapshot of the first image...
+    NavigationHistory.Entry entry = history.back();
+    assertSame( first, entry.getViewport() );
+    assertTrue( entry.hasSnapshot() );
+    model.setViewport( entry.getViewport() );
+    assertTrue( history.restore( entry, model ) );
+    MandelbrotModelTest.checkImage( firstImage, model );
+    assertFalse( history.canGoBack() );
+    assertTrue( history.canGoForward() );
+
+    // ... and forward the snapshot of the second one
+    entry = history.forward();
+    assertSame( second, entry.getViewport() );
+    model.setViewport( entry.getViewport() );
+    assertTrue( history.restore( entry, model ) );
+    MandelbrotModelTest.checkImage( secondImage, model );
+
+    // Snapshots taken with another maximum number of iterations are not
+    // restored
+    model.setMaxIterations( 600 );
+    assertFalse( history.restore( entry, model ) );
+
+    // Visiting a viewport drops the entries after the current one
+    history.back();
+    history.visit( first.shift( 10, 10 ) );
+    assertFalse( history.canGoForward() );
+    assertSame( first, history.back().getViewport() );
+  }
+
+  @Test
+  public void testBudget()
+  {
+    MandelbrotModel model = MandelbrotModelTest.createModel( MandelbrotModelTest.REGION, 500 );
+    NavigationHistory unbounded = new NavigationHistory( Long.MAX_VALUE );
+    unbounded.visit( model.getViewport() );
+    record( unbounded, model, 0 );
+    long snapshotSize = unbounded.getSize();
+    assertTrue( snapshotSize > 0 );
+
+    // Room for three snapshots (of about the same size)
+    NavigationHistory history = new NavigationHistory( 3 * snapshotSize + snapshotSize / 2 );
+    Viewport [] viewports = new Viewport[5];
+    for( int i=0; i<viewports.length; i++ )
+    {
+      viewports[i] = model.getViewport().shift( i, 0 );
+      history.visit( viewports[i] );
+    }
+    // Going back from the last entry, the snapshots of the entries after
+    // the current one are dropped first
+    for( int i=viewports.length-1; i>=0; i-- )
+    {
+      model.setViewport( viewports[i] );
+      record( history, model, i );
+      assertTrue( history.getSize() <= history.getBudget() );
+      if ( i > 0 )
+        history.back();
+    }
+    boolean [] expected = { true, true, true, false, false };
+    for( int i=0; i<viewports.length; i++ )
+    {
+      assertEquals( "Snapshot " + i, expected[i], history.getCurrent().hasSnapshot() );
+      if ( i < viewports.length-1 )
+        history.forward();
+    }
+  }
+
+  @Test
+  public void testMaxEntries()
+  {
+    MandelbrotModel model = MandelbrotModelTest.createModel( MandelbrotModelTest.REGION, 500 );
+    NavigationHistory history = new NavigationHistory( 0 );
+    Viewport first = model.getViewport().shift( 1, 0 );
+    history.visit( first );
+    for( int i=1; i<NavigationHistory.MAX_ENTRIES + 1; i++ )
+      history.visit( model.getViewport().shift( i+1, 0 ) );
+    int entries = 1;
+    while( history.canGoBack() )
+    {
+      assertNotSame( first, history.back().getViewport() );
+      entries++;
+    }
+    assertEquals( NavigationHistory.MAX_ENTRIES, entries );
+  }
+
+  /**
+   * Fills the image of a model with some (different) numbers and takes its
+   *  snapshot.
+   */
+  private static void record( NavigationHistory aHistory, MandelbrotModel aModel, int aSeed )
+  {
+    int [] iterations = new int[ XRES * YRES ];
+    int [] periods = new int[ XRES * YRES ];
+    for( int i=0; i<iterations.length; i++ )
+      iterations[i] = (int) (((i + aSeed) * 2654435761L) % 500);
+    aModel.restoreImage( iterations, periods );
+    aHistory.record( aModel );
+  }
+
+}
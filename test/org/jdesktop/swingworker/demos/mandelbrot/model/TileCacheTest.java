@@ -0,0 +1,158 @@
+/*
+ * $Id $
+ *
+ * Copyright 2005 Sun Microsystems
+ *
+ * Initially developed by Antonio Vieiro (vieiro@dev.java.net).
+ *
+ * This software is released under the Common Development and Distribution
+ *  License, version 1.0. See http://www.opensource.org/licenses/cddl1.php
+ *  for details.
+ *
+ * This software is distributed on an "AS IS" basis, without warranty of any
+ *  kind, either express or implied.
+ *
+ * All this stuff basically means that you can use this source code in your
+ *  software, either proprietary or not. See
+ *  http://www.opensolaris.org/os/about/faq/licensing_faq/ for interesting
+ *  information about the CDDL license.
+ *
+ */
+package org.jdesktop.swingworker.demos.mandelbrot.model;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that TileCache tells tiles apart by their keys, evicts the tiles
+ *  used least recently, and finds the tiles of an image moved some tiles
+ *  away.
+ * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
+ * @version $Revision: $
+ */
+public class TileCacheTest
+{
+  private static final int XRES = MandelbrotModel.XRESOLUTION;
+  private static final int YRES = MandelbrotModel.YRESOLUTION;
+  private static final int TILE_PIXELS = 10;
+  private static final long TILE_SIZE = 4 * (TILE_PIXELS + TILE_PIXELS) + 256;
+
+  @Test
+  public void testKeys()
+  {
+    TileCache.Key key = createKey( "0.00390625", 3, 500 );
+    // Trailing zeros don't make a different size
+    TileCache.Key same = createKey( "0.0039062500", 3, 500 );
+    assertEquals( key, same );
+    assertEquals( key.hashCode(), same.hashCode() );
+    assertEquals( key.getId(), same.getId() );
+
+    assertFalse( key.equals( createKey( "0.001953125", 3, 500 ) ) );
+    assertFalse( key.equals( createKey( "0.00390625", 4, 500 ) ) );
+    assertFalse( key.equals( createKey( "0.00390625", 3, 501 ) ) );
+    assertFalse( key.getId().equals( createKey( "0.00390625", 3, 501 ).getId() ) );
+    assertFalse( key.equals( new TileCache.Key( new BigDecimal( "0.00390625" ), new BigDecimal( "0.00390625" ),
+      BigDecimal.ZERO, BigDecimal.ZERO, BigInteger.valueOf( 3 ), BigInteger.ONE,
+      new Rectangle( 0, 16, 32, 16 ), 500, EscapeTimeKernel.Type.SCALAR, TileRenderer.Type.BRUTE_FORCE ) ) );
+    assertFalse( key.equals( new TileCache.Key( new BigDecimal( "0.00390625" ), new BigDecimal( "0.00390625" ),
+      BigDecimal.ZERO, BigDecimal.ZERO, BigInteger.valueOf( 3 ), BigInteger.ONE,
+      new Rectangle( 0, 0, 32, 32 ), 500, EscapeTimeKernel.Type.SCALAR, TileRenderer.Type.MARIANI_SILVER ) ) );
+  }
+
+  @Test
+  public void testEviction()
+  {
+    TileCache cache = new TileCache( 3 * TILE_SIZE );
+    for( int i=0; i<3; i++ )
+      cache.put( createKey( "0.00390625", i, 500 ), createTile( i ) );
+    assertEquals( 3, cache.getTileCount() );
+    assertEquals( 3 * TILE_SIZE, cache.getSize() );
+
+    // Tile 0 is used, so tile 1 is the one used least recently
+    assertEquals( 0, cache.get( createKey( "0.00390625", 0, 500 ) ).getIterations()[0] );
+    cache.put( createKey( "0.00390625", 3, 500 ), createTile( 3 ) );
+    assertEquals( 3, cache.getTileCount() );
+    assertTrue( cache.contains( createKey( "0.00390625", 0, 500 ) ) );
+    assertFalse( cache.contains( createKey( "0.00390625", 1, 500 ) ) );
+    assertTrue( cache.contains( createKey( "0.00390625", 2, 500 ) ) );
+    assertTrue( cache.contains( createKey( "0.00390625", 3, 500 ) ) );
+    assertNull( cache.get( createKey( "0.00390625", 1, 500 ) ) );
+    assertEquals( 1, cache.getHits() );
+    assertEquals( 1, cache.getMisses() );
+
+    // A smaller budget evicts tiles right away...
+    cache.setBudget( TILE_SIZE );
+    assertEquals( 1, cache.getTileCount() );
+    assertTrue( cache.contains( createKey( "0.00390625", 3, 500 ) ) );
+    // ... and tiles bigger than the budget are not kept
+    cache.put( createKey( "0.00390625", 4, 500 ), new TileCache.Tile( new int[ 2*TILE_PIXELS ], new int[ 2*TILE_PIXELS ] ) );
+    assertFalse( cache.contains( createKey( "0.00390625", 4, 500 ) ) );
+    assertEquals( TILE_SIZE, cache.getSize() );
+  }
+
+  @Test
+  public void testMovedImage()
+    throws Exception
+  {
+    TileCache cache = new TileCache( 64L * 1024 * 1024 );
+    MandelbrotModel model = MandelbrotModelTest.createModel( MandelbrotModelTest.REGION, 500 );
+    model.setTileCache( cache );
+    MandelbrotModelTest.render( model, Collections.singletonList( new Rectangle( 0, 0, XRES, YRES ) ), 4 );
+    model.cacheTiles();
+    assertEquals( 16 * 20, cache.getTileCount() );
+
+    // The image moved two tiles to the left, and half a tile up (so the
+    // tiles of the first and last rows are cut in a different way)
+    Rectangle2D.Double region = MandelbrotModelTest.REGION;
+    MandelbrotModel moved = MandelbrotModelTest.createModel( new Rectangle2D.Double(
+      region.x + 64.0/256, region.y + 16.0/256, region.width, region.height ), 500 );
+    moved.setTileCache( cache );
+    List<Rectangle> missing = moved.restoreCachedTiles( Collections.singletonList( new Rectangle( 0, 0, XRES, YRES ) ) );
+    int [][] expected = MandelbrotModelTest.computeDirectly( moved );
+    for( int y = 0; y < YRES; y++ )
+    {
+      for( int x = 0; x < XRES; x++ )
+      {
+        // The columns of tiles moved into the image, and the last row of
+        // tiles (cut before, and whole now)
+        boolean restored = x < XRES - 64 && y < YRES - 32;
+        assertEquals( "Pixel at " + x + "," + y, ! restored, contains( missing, x, y ) );
+        if ( restored )
+        {
+          assertEquals( expected[0][ y*XRES + x ], moved.getIterations( x, y ) );
+          assertEquals( expected[1][ y*XRES + x ], moved.getPeriod( x, y ) );
+        }
+      }
+    }
+  }
+
+  private static boolean contains( List<Rectangle> someAreas, int x, int y )
+  {
+    for( Rectangle area : someAreas )
+      if ( area.contains( x, y ) )
+        return true;
+    return false;
+  }
+
+  private static TileCache.Key createKey( String aScale, int aTileX, int aMaxIterations )
+  {
+    return new TileCache.Key( new BigDecimal( aScale ), new BigDecimal( "0.00390625" ),
+      BigDecimal.ZERO, BigDecimal.ZERO, BigInteger.valueOf( aTileX ), BigInteger.ONE,
+      new Rectangle( 0, 0, 32, 32 ), aMaxIterations, EscapeTimeKernel.Type.SCALAR, TileRenderer.Type.BRUTE_FORCE );
+  }
+
+  private static TileCache.Tile createTile( int aValue )
+  {
+    int [] iterations = new int[ TILE_PIXELS ];
+    int [] periods = new int[ TILE_PIXELS ];
+    Arrays.fill( iterations, aValue );
+    return new TileCache.Tile( iterations, periods );
+  }
+
+}
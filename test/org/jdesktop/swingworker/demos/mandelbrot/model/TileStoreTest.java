@@ -0,0 +1,267 @@
+/*
+ * $Id $
+ *
+ * Copyright 2005 Sun Microsystems
+ *
+ * Initially developed by Antonio Vieiro (vieiro@dev.java.net).
+ *
+ * This software is released under the Common Development and Distribution
+ *  License, version 1.0. See http://www.opensource.org/licenses/cddl1.php
+ *  for details.
+ *
+ * This software is distributed on an "AS IS" basis, without warranty of any
+ *  kind, either express or implied.
+ *
+ * All this stuff basically means that you can use this source code in your
+ *  software, either proprietary or not. See
+ *  http://www.opensolaris.org/os/about/faq/licensing_faq/ for interesting
+ *  information about the CDDL license.
+ *
+ */
+package org.jdesktop.swingworker.demos.mandelbrot.model;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that TileStore gets its tiles back when reopened, even if the
+ *  application died while writing a record (or its index), and that it
+ *  doesn't grow beyond its size.
+ * Stores are reopened while still open, as if the application had died
+ *  (the segments written are in the files anyway).
+ * @author Antonio Vieiro (vieiro@dev.java.net)  $Author$
+ * @version $Revision: $
+ */
+public class TileStoreTest
+{
+  private static final long MAX_SIZE = 64L * 1024 * 1024;
+  private static final int TILE_PIXELS = 32 * 32;
+
+  private File directory;
+
+  @Before
+  public void setUp()
+    throws IOException
+  {
+    directory = File.createTempFile( "tilestore", "" );
+    assertTrue( directory.delete() );
+  }
+
+  @After
+  public void tearDown()
+  {
+    File [] files = directory.listFiles();
+    for( File file : files == null ? new File[0] : files )
+      if ( ! file.delete() )
+        file.deleteOnExit();
+    if ( ! directory.delete() )
+      directory.deleteOnExit();
+  }
+
+  @Test
+  public void testReopen()
+    throws IOException
+  {
+    TileStore store = new TileStore( directory, MAX_SIZE );
+    for( int i=0; i<100; i++ )
+      store.put( getId( i ), createTile( i ) );
+    store.flush();
+
+    TileStore reopened = new TileStore( directory, MAX_SIZE );
+    assertEquals( 100, reopened.getTileCount() );
+    for( int i=0; i<100; i++ )
+      checkTile( reopened, i );
+    assertNull( reopened.get( getId( 100 ) ) );
+  }
+
+  @Test
+  public void testTornRecord()
+    throws IOException
+  {
+    TileStore store = new TileStore( directory, MAX_SIZE );
+    for( int i=0; i<10; i++ )
+      store.put( getId( i ), createTile( i ) );
+    store.flush();
+    // Tiles appended after the index was saved are found too...
+    store.put( getId( 10 ), createTile( 10 ) );
+    store.put( getId( 11 ), createTile( 11 ) );
+    // ... but not if the last record is torn
+    damage( getId( 11 ) );
+
+    TileStore reopened = new TileStore( directory, MAX_SIZE );
+    assertEquals( 11, reopened.getTileCount() );
+    for( int i=0; i<=10; i++ )
+      checkTile( reopened, i );
+    assertFalse( reopened.contains( getId( 11 ) ) );
+    assertNull( reopened.get( getId( 11 ) ) );
+
+    // The torn record is overwritten by the next one
+    reopened.put( getId( 12 ), createTile( 12 ) );
+    TileStore reopenedAgain = new TileStore( directory, MAX_SIZE );
+    assertEquals( 12, reopenedAgain.getTileCount() );
+    checkTile( reopenedAgain, 12 );
+  }
+
+  @Test
+  public void testDamagedRecord()
+    throws IOException
+  {
+    TileStore store = new TileStore( directory, MAX_SIZE );
+    for( int i=0; i<10; i++ )
+      store.put( getId( i ), createTile( i ) );
+    store.flush();
+    // A record the index knows about is damaged
+    damage( getId( 5 ) );
+
+    TileStore reopened = new TileStore( directory, MAX_SIZE );
+    assertNull( reopened.get( getId( 5 ) ) );
+    assertFalse( reopened.contains( getId( 5 ) ) );
+    for( int i=0; i<10; i++ )
+      if ( i != 5 )
+        checkTile( reopened, i );
+  }
+
+  @Test
+  public void testDamagedIndex()
+    throws IOException
+  {
+    TileStore store = new TileStore( directory, MAX_SIZE );
+    for( int i=0; i<10; i++ )
+      store.put( getId( i ), createTile( i ) );
+    store.flush();
+    RandomAccessFile index = new RandomAccessFile( new File( directory, "tiles.idx" ), "rw" );
+    try
+    {
+      index.setLength( index.length() / 2 );
+    }
+    finally
+    {
+      index.close();
+    }
+
+    // The segments are scanned instead
+    TileStore reopened = new TileStore( directory, MAX_SIZE );
+    assertEquals( 10, reopened.getTileCount() );
+    for( int i=0; i<10; i++ )
+      checkTile( reopened, i );
+  }
+
+  @Test
+  public void testEviction()
+    throws IOException
+  {
+    // Tiles of 256x256 pixels, about 30 per segment, and room for two
+    // segments only
+    int pixels = 256 * 256;
+    long maxSize = 2L * TileStore.SEGMENT_SIZE;
+    TileStore store = new TileStore( directory, maxSize );
+    for( int i=0; i<100; i++ )
+      store.put( getId( i ), createTile( i, pixels ) );
+    store.flush();
+
+    long size = 0;
+    for( File file : directory.listFiles() )
+      if ( file.getName().endsWith( ".seg" ) )
+        size += file.length();
+    assertTrue( size <= maxSize );
+    assertTrue( store.getTileCount() < 100 );
+    // The oldest tiles are gone, the newest ones are kept
+    assertNull( store.get( getId( 0 ) ) );
+    assertNotNull( store.get( getId( 99 ) ) );
+
+    TileStore reopened = new TileStore( directory, maxSize );
+    assertEquals( store.getTileCount(), reopened.getTileCount() );
+    assertNull( reopened.get( getId( 0 ) ) );
+    assertArrayEquals( createTile( 99, pixels ).getIterations(), reopened.get( getId( 99 ) ).getIterations() );
+  }
+
+  /**
+   * Returns the id of a tile (no id is the beginning of another one, so
+   *  records can be found by their id).
+   */
+  private static String getId( int aNumber )
+  {
+    return "tile-" + aNumber + ";";
+  }
+
+  private static TileCache.Tile createTile( int aNumber )
+  {
+    return createTile( aNumber, TILE_PIXELS );
+  }
+
+  private static TileCache.Tile createTile( int aNumber, int aPixelCount )
+  {
+    int [] iterations = new int[ aPixelCount ];
+    int [] periods = new int[ aPixelCount ];
+    for( int i=0; i<aPixelCount; i++ )
+    {
+      iterations[i] = aNumber * 1000 + i;
+      periods[i] = i % 7;
+    }
+    return new TileCache.Tile( iterations, periods );
+  }
+
+  private static void checkTile( TileStore aStore, int aNumber )
+  {
+    TileCache.Tile tile = aStore.get( getId( aNumber ) );
+    assertNotNull( "Tile " + aNumber, tile );
+    TileCache.Tile expected = createTile( aNumber );
+    assertArrayEquals( expected.getIterations(), tile.getIterations() );
+    assertArrayEquals( expected.getPeriods(), tile.getPeriods() );
+  }
+
+  /**
+   * Overwrites some pixels of the record of a tile, as if it had been half
+   *  written, in whatever segment holds it.
+   */
+  private void damage( String anId )
+    throws IOException
+  {
+    byte [] id = anId.getBytes( Charset.forName( "UTF-8" ) );
+    for( File file : directory.listFiles() )
+    {
+      if ( ! file.getName().endsWith( ".seg" ) )
+        continue;
+      RandomAccessFile segment = new RandomAccessFile( file, "rw" );
+      try
+      {
+        byte [] contents = new byte[ (int) segment.length() ];
+        segment.readFully( contents );
+        int position = indexOf( contents, id );
+        if ( position >= 0 )
+        {
+          segment.seek( position + id.length + 100 );
+          segment.write( new byte[ 4 * TILE_PIXELS ] );
+          return;
+        }
+      }
+      finally
+      {
+        segment.close();
+      }
+    }
+    fail( "No record for " + anId );
+  }
+
+  /**
+   * Returns where some bytes are, or -1 if nowhere.
+   */
+  private static int indexOf( byte [] someBytes, byte [] aPattern )
+  {
+    search:
+    for( int i=0; i + aPattern.length <= someBytes.length; i++ )
+    {
+      for( int j=0; j<aPattern.length; j++ )
+        if ( someBytes[i+j] != aPattern[j] )
+          continue search;
+      return i;
+    }
+    return -1;
+  }
+
+}